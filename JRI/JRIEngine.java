@@ -2,14 +2,26 @@
 // Copyright(c) 2009 Simon Urbanek
 //
 // Currently it uses low-level calls from org.rosuda.JRI.Rengine, but
-// all REXP representations are created based on the org.rosuda.REngine API
+// all REXP representations are created based on the org.rosuda.rengine API
 
-package org.rosuda.REngine.JRI;
+package org.rosuda.rengine.jri;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import org.rosuda.JRI.Rengine;
 import org.rosuda.JRI.Mutex;
 import org.rosuda.JRI.RMainLoopCallbacks;
-import org.rosuda.REngine.*;
+import org.rosuda.rengine.*;
 
 /** <code>JRIEngine</code> is a <code>REngine</code> implementation using JRI (Java/R Interface).
  <p>
@@ -64,7 +76,196 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	
 	/** canonical NULL object */
 	public REXPNull nullValue;
+	
+	/** whether lists are resolved in one piece through R serialization, see {@link #setBulkResolution} */
+	boolean bulkResolution = true;
+	
+	/** whether references are lazy, see {@link #setLazyReferences} */
+	boolean lazyReferences = false;
 
+	/** queue of collected owners of preserved R objects, see {@link ReleaseReference} */
+	ReferenceQueue releaseQueue = new ReferenceQueue();
+	
+	/** release references whose owners are still alive (this keeps the references themselves reachable); also guards <code>deferred</code> */
+	HashSet tracked = new HashSet();
+	
+	/** pointers passed to <code>finalizeReference</code> which have not been released yet */
+	long[] deferred = new long[64];
+	int deferredCount = 0;
+	
+	/** number of R objects released so far by {@link #releasePendingReferences} */
+	long releasedCount = 0;
+	
+	/** phantom reference to the Java object owning a preserved R object. Once the owner is collected, the reference shows up in <code>releaseQueue</code> and the R object is released with the next entry into R. This replaces finalizers which took the R lock for each object separately on the finalizer thread. */
+	static class ReleaseReference extends PhantomReference {
+		long ptr;
+		ReleaseReference(Object owner, long ptr, ReferenceQueue q) {
+			super(owner, q);
+			this.ptr = ptr;
+		}
+	}
+	
+	/** reference to a preserved R object which is released through <code>releaseQueue</code> when it is collected. The empty <code>finalize</code> overrides the one of <code>REXPReference</code> such that the JVM doesn't register a finalizer at all. */
+	static class JRIReference extends REXPReference {
+		ReleaseReference release;
+		JRIReference(REngine eng, long ptr) {
+			super(eng, new Long(ptr));
+		}
+		
+		protected void finalize() {
+		}
+	}
+	
+	/** reference which answers questions about the R object - its type, length, single attributes and list elements - through targeted calls into R instead of resolving the whole object, see {@link #setLazyReferences}. What has been fetched is cached until {@link #invalidate} is called. All other methods resolve the object as usual; once it is resolved, all answers come from the resolved object. */
+	static class LazyReference extends JRIReference {
+		/** R type of the object, -1 if not known yet */
+		int type = -1;
+		/** whether the object is a Java reference, which is resolved into <code>REXPJavaReference</code> regardless of its type */
+		boolean javaRef;
+		Boolean factor;
+		int length = -1;
+		/** attributes fetched so far, <code>null</code> values stand for missing attributes */
+		HashMap attrs;
+		RList list;
+		
+		LazyReference(JRIEngine eng, long ptr) {
+			super(eng, ptr);
+		}
+		
+		long pointer() {
+			return ((Long) handle).longValue();
+		}
+		
+		/** @return R type of the object or -1 if the answers have to come from the resolved object */
+		int type() {
+			if (resolvedValue != null) return -1;
+			if (type < 0) {
+				JRIEngine e = (JRIEngine) eng;
+				boolean obtainedLock = e.rniMutex.safeLock();
+				try {
+					long jobj = e.rni.rniGetAttr(pointer(), "jobj");
+					javaRef = (jobj != 0 && jobj != e.R_NilValue);
+					type = e.rni.rniExpType(pointer());
+				} finally {
+					if (obtainedLock) e.rniMutex.unlock();
+				}
+			}
+			return javaRef ? -1 : type;
+		}
+		
+		public boolean isString() { int t = type(); return (t < 0) ? super.isString() : (t == STRSXP); }
+		public boolean isNumeric() { int t = type(); return (t < 0) ? super.isNumeric() : (t == INTSXP || t == REALSXP); }
+		public boolean isInteger() { int t = type(); return (t < 0) ? super.isInteger() : (t == INTSXP); }
+		public boolean isNull() { int t = type(); return (t < 0) ? super.isNull() : (t == NILSXP); }
+		public boolean isList() { int t = type(); return (t < 0) ? super.isList() : (t == NILSXP || t == VECSXP || t == LISTSXP || t == LANGSXP); }
+		public boolean isLogical() { int t = type(); return (t < 0) ? super.isLogical() : (t == LGLSXP); }
+		public boolean isEnvironment() { int t = type(); return (t < 0) ? super.isEnvironment() : (t == ENVSXP); }
+		public boolean isLanguage() { int t = type(); return (t < 0) ? super.isLanguage() : (t == LANGSXP); }
+		public boolean isSymbol() { int t = type(); return (t < 0) ? super.isSymbol() : (t == SYMSXP); }
+		public boolean isRaw() { int t = type(); return (t < 0) ? super.isRaw() : (t == RAWSXP); }
+		public boolean isComplex() { int t = type(); return (t < 0) ? super.isComplex() : false; } // complex vectors are not supported by REXP
+		public boolean isRecursive() { int t = type(); return (t < 0) ? super.isRecursive() : (t == VECSXP || t == LISTSXP || t == LANGSXP); }
+		public boolean isVector() {
+			int t = type();
+			if (t < 0) return super.isVector();
+			return t == STRSXP || t == INTSXP || t == REALSXP || t == LGLSXP || t == RAWSXP || t == VECSXP || t == LISTSXP || t == LANGSXP;
+		}
+		
+		public boolean isFactor() {
+			int t = type();
+			if (t < 0) return super.isFactor();
+			if (t != INTSXP) return false;
+			if (factor == null)
+				factor = Boolean.valueOf(((JRIEngine) eng).isFactorPointer(pointer()));
+			return factor.booleanValue();
+		}
+		
+		public int length() throws REXPMismatchException {
+			if (length >= 0 && resolvedValue == null) return length;
+			if (type() < 0 || !isVector()) return super.length();
+			int n = ((JRIEngine) eng).lengthOf(pointer());
+			if (n < 0) return super.length();
+			return length = n;
+		}
+		
+		public REXP getAttribute(String name) {
+			int t = type();
+			if (t < 0 || t == LISTSXP || t == LANGSXP) return super.getAttribute(name); // R makes up names of pairlists from their tags
+			synchronized (this) {
+				if (attrs != null && attrs.containsKey(name)) return (REXP) attrs.get(name);
+			}
+			REXP a = ((JRIEngine) eng).resolveAttribute(pointer(), name);
+			synchronized (this) {
+				if (attrs == null) attrs = new HashMap();
+				attrs.put(name, a);
+			}
+			return a;
+		}
+		
+		public boolean hasAttribute(String name) {
+			return getAttribute(name) != null;
+		}
+		
+		public int[] dim() {
+			REXP d = getAttribute("dim");
+			try {
+				return (d == null) ? null : d.asIntegers();
+			} catch (REXPMismatchException me) {
+			}
+			return null;
+		}
+		
+		public RList asList() throws REXPMismatchException {
+			if (type() != VECSXP) return super.asList();
+			RList l = list;
+			if (l == null)
+				list = l = ((JRIEngine) eng).lazyList(this);
+			return l;
+		}
+		
+		public void invalidate() {
+			super.invalidate();
+			type = -1;
+			factor = null;
+			length = -1;
+			synchronized (this) {
+				attrs = null;
+			}
+			list = null;
+		}
+	}
+	
+	/** element of a {@link PointerList} which has not been resolved yet */
+	static final class Pending {
+		final long ptr;
+		Pending(long ptr) { this.ptr = ptr; }
+	}
+	
+	/** elements of an R list which are resolved when they are accessed for the first time, see {@link LazyReference#asList} and {@link AbstractLazyRList}. Until then each element is just its pointer, which stays valid as long as the list holds on to the reference of the R list. R is never entered while the list is locked. */
+	class PointerList extends AbstractLazyRList {
+		/** reference of the R list, <code>null</code> once all elements are resolved */
+		LazyReference owner;
+		
+		PointerList(LazyReference owner, Collection contents, String[] names) {
+			super(contents, names);
+			this.owner = owner;
+		}
+		
+		protected REXP decode(Object placeholder) {
+			try {
+				return resolveValue(((Pending) placeholder).ptr);
+			} catch (REngineException e) {
+				throw new IllegalStateException("unable to resolve list element: " + e.getMessage());
+			} catch (REXPMismatchException e) {
+				throw new IllegalStateException("unable to resolve list element: " + e.getMessage());
+			}
+		}
+		
+		protected void allDecoded() {
+			owner = null;
+		}
+	}
+	
 	/** class used for wrapping raw pointers such that they are adequately protected and released according to the lifespan of the Java object */
 	class JRIPointer {
 		long ptr;
@@ -78,27 +279,78 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 					if (obtainedLock) rniMutex.unlock();
 				}
 			}
+			track(this, ptr);
 		}
 		
-		protected void finalize() throws Throwable {
-			try {
-				if (ptr != 0 && ptr != R_NilValue) {
-					boolean obtainedLock = rniMutex.safeLock();
-					try {
-						rni.rniRelease(ptr);
-					} finally {
-						if (obtainedLock)
-							rniMutex.unlock();
-					}
-				}
-			} finally {
-				super.finalize();
-			}
-		}	
-		
 		long pointer() { return ptr; }
 	}
 	
+	/** registers the owner of a preserved R object such that the object is released once the owner is collected
+	 @return release reference or <code>null</code> if the pointer needs no release */
+	ReleaseReference track(Object owner, long ptr) {
+		if (ptr == 0 || ptr == R_NilValue) return null;
+		ReleaseReference r = new ReleaseReference(owner, ptr, releaseQueue);
+		synchronized (tracked) {
+			tracked.add(r);
+		}
+		return r;
+	}
+	
+	/** creates a reference to an R object which has already been preserved */
+	REXPReference newReference(long ptr) {
+		JRIReference ref = lazyReferences ? new LazyReference(this, ptr) : new JRIReference(this, ptr);
+		ref.release = track(ref, ptr);
+		return ref;
+	}
+	
+	/** releases all R objects whose owners were collected or which were passed to <code>finalizeReference</code>. The caller must hold the R lock. */
+	void releasePending() {
+		Reference r;
+		while ((r = releaseQueue.poll()) != null) {
+			boolean wasTracked;
+			synchronized (tracked) {
+				wasTracked = tracked.remove(r);
+			}
+			if (wasTracked) {
+				rni.rniRelease(((ReleaseReference) r).ptr);
+				releasedCount++;
+			}
+		}
+		if (deferredCount == 0) return; // racy read is fine, a missed pointer is released next time
+		long[] d;
+		int n;
+		synchronized (tracked) {
+			d = deferred;
+			n = deferredCount;
+			deferred = new long[64];
+			deferredCount = 0;
+		}
+		for (int i = 0; i < n; i++)
+			rni.rniRelease(d[i]);
+		releasedCount += n;
+	}
+	
+	/** releases all R objects whose Java references were collected. This happens automatically whenever R is entered through this engine, so it is only needed by applications which may stay idle for a long time.
+	 @return number of R objects released so far (in total) */
+	public long releasePendingReferences() {
+		boolean obtainedLock = rniMutex.safeLock();
+		try {
+			releasePending();
+			return releasedCount;
+		} finally {
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+	}
+	
+	/** returns the number of R objects preserved on behalf of Java objects which are either alive or waiting to be released
+	 @return number of outstanding preserved objects */
+	public int getPreservedCount() {
+		synchronized (tracked) {
+			return tracked.size() + deferredCount;
+		}
+	}
+	
 	/** factory method called by <code>engineForClass</code> 
 	 @return new or current engine (new if there is none, current otherwise since R allows only one engine at any time) */
 	public static REngine createEngine() throws REngineException {
@@ -246,10 +498,11 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		REXP ref = null;
 		boolean obtainedLock = rniMutex.safeLock();
 		try {
+			releasePending();
 			long pr = rni.rniParse(text, -1);
 			if (pr == 0 || pr == R_NilValue) throw(new REngineException(this, "Parse error"));
 			rni.rniPreserve(pr);
-			ref = new REXPReference(this, new Long(pr));
+			ref = newReference(pr);
 			if (resolve)
 				try { ref = resolveReference(ref); } catch (REXPMismatchException me) { };
 		} finally {
@@ -278,11 +531,12 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		}
 		boolean obtainedLock = rniMutex.safeLock();
 		try {
+			releasePending();
 			long pr = rni.rniEval(((Long)((REXPReference)what).getHandle()).longValue(), rho);
 			if (pr == 0) // rniEval() signals error by passing 0
 				throw new REngineEvalException(this, "error during evaluation", REngineEvalException.ERROR) ;
 			rni.rniPreserve(pr);
-			ref = new REXPReference(this, new Long(pr));
+			ref = newReference(pr);
 			if (resolve)
 				ref = resolveReference(ref);
 		} finally {
@@ -306,6 +560,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			value = createReference(value); // if value is not a reference, we have to create one
 		boolean obtainedLock = rniMutex.safeLock(), succeeded = false;
 		try {
+			releasePending();
 			succeeded = rni.rniAssign(symbol, ((Long)((REXPReference)value).getHandle()).longValue(), rho);
 		} finally {
 			if (obtainedLock)
@@ -327,10 +582,11 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			if (env != null) rho = ((Long)((REXPReference)env).getHandle()).longValue();
 		boolean obtainedLock = rniMutex.safeLock();
 		try {
+			releasePending();
 			long pr = rni.rniFindVar(symbol, rho);
 			if (pr == R_UnboundValue || pr == 0) return null;
 			rni.rniPreserve(pr);
-			ref = new REXPReference(this, new Long(pr));
+			ref = newReference(pr);
 			if (resolve)
 				try { ref = resolveReference(ref); } catch (REXPMismatchException me) { };
 		} finally {
@@ -341,14 +597,171 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	}
 
 	public REXP resolveReference(REXP ref) throws REngineException, REXPMismatchException {
-		REXP res = null;
 		if (ref == null) throw(new REngineException(this, "resolveReference called on NULL input"));
 		if (!ref.isReference()) throw(new REXPMismatchException(ref, "reference"));
-		long ptr = ((Long)((REXPReference)ref).getHandle()).longValue();
+		return resolveValue(((Long)((REXPReference)ref).getHandle()).longValue());
+	}
+
+	/** resolves an R object, in one piece if possible (see {@link #setBulkResolution}) */
+	REXP resolveValue(long ptr) throws REngineException, REXPMismatchException {
 		if (ptr == 0) return nullValue;
+		if (bulkResolution) {
+			REXP res = resolveSerialized(ptr);
+			if (res != null) return res;
+		}
 		return resolvePointer(ptr);
 	}
 
+	/** enables or disables lazy references. Lazy references (disabled by default) returned by <code>parse</code>, <code>eval</code>, <code>get</code> and <code>createReference</code> answer type checks (<code>isList()</code> etc.), <code>length()</code>, <code>dim()</code>, <code>getAttribute()</code> and element access through <code>asList()</code> with targeted calls into R, so e.g. the dimensions of a large matrix can be obtained without copying its contents into Java. Any other access resolves the whole object as before. Since lazy references keep the R object alive and look at it again later, they are opt-in.
+	 @param enable <code>true</code> to create lazy references */
+	public void setLazyReferences(boolean enable) {
+		lazyReferences = enable;
+	}
+
+	/** @return <code>true</code> if lazy references are created (see {@link #setLazyReferences}) */
+	public boolean getLazyReferences() {
+		return lazyReferences;
+	}
+
+	/** @return <code>true</code> if the integer vector is a factor which would be resolved into <code>REXPFactor</code> */
+	boolean isFactorPointer(long ptr) {
+		boolean obtainedLock = rniMutex.safeLock();
+		try {
+			if (!rni.rniInherits(ptr, "factor")) return false;
+			long levx = rni.rniGetAttr(ptr, "levels");
+			return levx != 0 && rni.rniExpType(levx) == STRSXP;
+		} finally {
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+	}
+
+	/** determines the length of a vector without copying its contents. Lists are measured directly, other vectors by <code>length(x)</code> unless they have a class other than <code>factor</code> (which might have its own <code>length</code> method).
+	 @return length or -1 if it cannot be determined this way */
+	int lengthOf(long ptr) {
+		boolean obtainedLock = rniMutex.safeLock();
+		try {
+			if (rni.rniExpType(ptr) == VECSXP) {
+				long[] l = rni.rniGetVector(ptr);
+				return (l == null) ? -1 : l.length;
+			}
+			long cls = rni.rniGetAttr(ptr, "class");
+			if (cls != 0 && cls != R_NilValue) {
+				String[] c = (rni.rniExpType(cls) == STRSXP) ? rni.rniGetStringArray(cls) : null;
+				if (c == null || c.length != 1 || !"factor".equals(c[0])) return -1;
+			}
+			long call = rni.rniLCons(rni.rniInstallSymbol("length"), rni.rniCons(ptr, R_NilValue));
+			rni.rniProtect(call);
+			try {
+				long res = rni.rniEval(call, ((Long)baseEnv.getHandle()).longValue());
+				if (res == 0) return -1;
+				int rt = rni.rniExpType(res);
+				if (rt == INTSXP) {
+					int[] n = rni.rniGetIntArray(res);
+					return (n != null && n.length == 1) ? n[0] : -1;
+				}
+				if (rt == REALSXP) { // long vectors
+					double[] n = rni.rniGetDoubleArray(res);
+					return (n != null && n.length == 1 && n[0] <= Integer.MAX_VALUE) ? (int) n[0] : -1;
+				}
+				return -1;
+			} finally {
+				rni.rniUnprotect(1);
+			}
+		} finally {
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+	}
+
+	/** resolves a single attribute of an R object
+	 @return attribute or <code>null</code> if the object doesn't have it */
+	REXP resolveAttribute(long ptr, String name) {
+		boolean obtainedLock = rniMutex.safeLock();
+		try {
+			long aptr = rni.rniGetAttr(ptr, name);
+			if (aptr == 0 || aptr == R_NilValue) return null;
+			REXP a = resolvePointer(aptr);
+			return (a == nullValue) ? null : a;
+		} catch (REngineException e) {
+			return null;
+		} catch (REXPMismatchException e) {
+			return null;
+		} finally {
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+	}
+
+	/** creates the list of the elements of an R list without resolving them, see {@link PointerList} */
+	RList lazyList(LazyReference owner) {
+		long ptr = owner.pointer();
+		long[] l;
+		String[] names = null;
+		boolean obtainedLock = rniMutex.safeLock();
+		try {
+			l = rni.rniGetVector(ptr);
+			long na = rni.rniGetAttr(ptr, "names");
+			if (na != 0 && rni.rniExpType(na) == STRSXP)
+				names = rni.rniGetStringArray(na);
+		} finally {
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+		ArrayList contents = new ArrayList((l == null) ? 0 : l.length);
+		for (int i = 0; l != null && i < l.length; i++)
+			contents.add(new Pending(l[i]));
+		return new PointerList(owner, contents, names);
+	}
+
+	/** enables or disables bulk resolution of lists. With bulk resolution (the default), lists and pairlists are serialized by R in one call and decoded in Java by {@link RSerializationDecoder}, instead of crossing JNI several times per element and attribute. Lists containing objects the decoder can't handle (e.g. environments or Java references) are still resolved element by element.
+	 @param enable <code>true</code> to resolve lists in one piece */
+	public void setBulkResolution(boolean enable) {
+		bulkResolution = enable;
+	}
+
+	/** @return <code>true</code> if lists are resolved in one piece (see {@link #setBulkResolution}) */
+	public boolean getBulkResolution() {
+		return bulkResolution;
+	}
+
+	/** resolves a list by evaluating <code>serialize(x, NULL, version = 2)</code> in the base environment and decoding the result after leaving R
+	 @return resolved object or <code>null</code> if the object is not a list or cannot be resolved this way */
+	REXP resolveSerialized(long ptr) {
+		byte[] b = null;
+		boolean obtainedLock = rniMutex.safeLock();
+		int upp = 0;
+		try {
+			int xt = rni.rniExpType(ptr);
+			if (xt != VECSXP && xt != LISTSXP) return null;
+			long ver = rni.rniPutIntArray(new int[] { 2 });
+			rni.rniProtect(ver);
+			upp++;
+			long call = rni.rniLCons(rni.rniInstallSymbol("serialize"),
+						 rni.rniCons(ptr,
+							     rni.rniCons(R_NilValue,
+									 rni.rniCons(ver, R_NilValue, rni.rniInstallSymbol("version"), false),
+									 0, false),
+							     0, false));
+			rni.rniProtect(call);
+			upp++;
+			long res = rni.rniEval(call, ((Long)baseEnv.getHandle()).longValue());
+			if (res == 0 || rni.rniExpType(res) != RAWSXP) return null;
+			b = rni.rniGetRawArray(res);
+		} finally {
+			if (upp > 0)
+				rni.rniUnprotect(upp);
+			if (obtainedLock)
+				rniMutex.unlock();
+		}
+		if (b == null) return null;
+		try {
+			return new RSerializationDecoder(b).decode();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	/** 
 	 * Turn an R pointer (long) into a REXP object.
 	 * 
@@ -510,7 +923,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			if (obtainedLock)
 				rniMutex.unlock();
 		}
-		return new REXPReference(this, new Long(ptr));
+		return newReference(ptr);
 	}
 	
 	/** 
@@ -655,15 +1068,23 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		return 0;
 	}
 	
+	/** releases the R object of a reference. The release is deferred until R is entered next time, because this is also called by finalizers which must not compete for the R lock. */
 	public void finalizeReference(REXP ref) throws REngineException, REXPMismatchException {
 		if (ref != null && ref.isReference()) {
 			long ptr = ((Long)((REXPReference)ref).getHandle()).longValue();
-			boolean obtainedLock = rniMutex.safeLock();
-			try {
-				rni.rniRelease(ptr);
-			} finally {
-				if (obtainedLock)
-					rniMutex.unlock();
+			if (ptr == 0 || ptr == R_NilValue) return;
+			synchronized (tracked) {
+				if (ref instanceof JRIReference) {
+					ReleaseReference r = ((JRIReference) ref).release;
+					if (r == null || !tracked.remove(r)) return; // released already
+					r.clear();
+				}
+				if (deferredCount == deferred.length) {
+					long[] d = new long[deferred.length * 2];
+					System.arraycopy(deferred, 0, d, 0, deferredCount);
+					deferred = d;
+				}
+				deferred[deferredCount++] = ptr;
 			}
 		}
 	}
@@ -683,7 +1104,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			long pr = rni.rniParentEnv(rho);
 			if (pr == 0 || pr == R_NilValue) return null; // this should never happen, really
 			rni.rniPreserve(pr);
-			ref = new REXPReference(this, new Long(pr));
+			ref = newReference(pr);
 			if (resolve)
 				ref = resolveReference(ref);
 		} finally {
@@ -710,7 +1131,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			long p = rni.rniEval(rni.rniLCons(rni.rniInstallSymbol("new.env"), rni.rniCons(rho, R_NilValue, rni.rniInstallSymbol("parent"), false)), 0);
 			/* TODO: should we handle REngineEvalException.INVALID_INPUT and REngineEvalException.ERROR here, for completeness */
 			if (p != 0) rni.rniPreserve(p);
-			ref = new REXPReference(this, new Long(p));
+			ref = newReference(p);
 			if (resolve)
 				ref = resolveReference(ref);
 		} finally {
@@ -722,6 +1143,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 
 	public boolean close() {
 		if (rni == null) return false;
+		stopExecutor();
 		rni.end();
 		return true;
 	}
@@ -745,6 +1167,130 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		if (lockValue == 1) rniMutex.unlock();
 	}
 	
+	/** work to be done in R by the executor thread, see {@link #submit} */
+	public interface Task<T> {
+		/** performs the work. The R lock is held by the calling thread, so any number of engine methods can be called without further lock handoffs.
+		 @param eng this engine
+		 @return result passed to the future */
+		T run(JRIEngine eng) throws REngineException, REXPMismatchException;
+	}
+	
+	/** maximal number of tasks run by the executor in one locked section before giving other threads a chance to enter R */
+	static final int EXECUTOR_BATCH = 64;
+	
+	/** tasks waiting for the executor thread (many producers, one consumer) */
+	final ConcurrentLinkedQueue executorQueue = new ConcurrentLinkedQueue();
+	
+	/** executor thread or <code>null</code> if the executor is not running */
+	volatile Thread executor = null;
+	
+	/** queued task along with its future */
+	static class QueuedTask {
+		Task task;
+		CompletableFuture future;
+		QueuedTask(Task task, CompletableFuture future) {
+			this.task = task;
+			this.future = future;
+		}
+	}
+	
+	/** starts the executor thread (if it is not running yet). All tasks passed to {@link #submit} are run by that thread; as long as tasks are queued, it keeps holding the R lock so consecutive tasks don't hand the lock over between each other. Direct calls of engine methods from other threads remain possible, they wait for the lock as usual. */
+	public synchronized void startExecutor() {
+		if (executor != null) return;
+		executor = new Thread(new Runnable() {
+				public void run() {
+					runExecutor();
+				}
+			}, "JRIEngine executor");
+		executor.setDaemon(true);
+		executor.start();
+	}
+	
+	/** stops the executor thread after the current batch of tasks. Tasks still queued fail with an <code>REngineException</code>. */
+	public void stopExecutor() {
+		Thread t;
+		synchronized (this) {
+			t = executor;
+			executor = null;
+		}
+		if (t == null) return;
+		LockSupport.unpark(t);
+		if (t != Thread.currentThread())
+			try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+		QueuedTask q;
+		while ((q = (QueuedTask) executorQueue.poll()) != null)
+			q.future.completeExceptionally(new REngineException(this, "executor stopped"));
+	}
+	
+	/** submits a task to the executor thread, starting it if necessary. Typically a task performs several steps at once, e.g. parse, evaluate and resolve, so it enters R only once. A task submitted from the executor thread itself is run right away. Note that waiting for a future inside a task deadlocks.
+	 @param task task to run in R
+	 @return future result of the task, it completes exceptionally if the task throws an exception */
+	public <T> CompletableFuture<T> submit(Task<T> task) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		Thread t = executor;
+		if (t == null) {
+			startExecutor();
+			t = executor;
+			if (t == null) { // stopped right after it was started
+				f.completeExceptionally(new REngineException(this, "executor stopped"));
+				return f;
+			}
+		}
+		if (t == Thread.currentThread()) {
+			runTask(new QueuedTask(task, f));
+			return f;
+		}
+		QueuedTask q = new QueuedTask(task, f);
+		executorQueue.offer(q);
+		LockSupport.unpark(t);
+		if (executor != t && executorQueue.remove(q)) // stopped meanwhile
+			f.completeExceptionally(new REngineException(this, "executor stopped"));
+		return f;
+	}
+	
+	/** parses and evaluates an expression on the executor thread (see {@link #submit})
+	 @param text expression
+	 @param where environment or <code>null</code> for the global environment
+	 @param resolve whether to resolve the result
+	 @return future result */
+	public CompletableFuture<REXP> submitParseAndEval(final String text, final REXP where, final boolean resolve) {
+		return submit(new Task<REXP>() {
+				public REXP run(JRIEngine eng) throws REngineException, REXPMismatchException {
+					return eng.parseAndEval(text, where, resolve);
+				}
+			});
+	}
+	
+	void runTask(QueuedTask q) {
+		try {
+			q.future.complete(q.task.run(this));
+		} catch (Throwable e) {
+			q.future.completeExceptionally(e);
+		}
+	}
+	
+	void runExecutor() {
+		Thread self = Thread.currentThread();
+		while (executor == self) {
+			QueuedTask q = (QueuedTask) executorQueue.poll();
+			if (q == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			boolean obtainedLock = rniMutex.safeLock();
+			try {
+				releasePending();
+				int n = 0;
+				do {
+					runTask(q);
+				} while (++n < EXECUTOR_BATCH && executor == self && (q = (QueuedTask) executorQueue.poll()) != null);
+			} finally {
+				if (obtainedLock)
+					rniMutex.unlock();
+			}
+		}
+	}
+	
 	public boolean supportsReferences() { return true; }
 	public boolean supportsEnvironments() { return true; }
 	// public boolean supportsREPL() { return true; }
@@ -774,7 +1320,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			} else{ 
 				long p = rx.xp;
 				rni.rniPreserve(p) ;
-				ref = new REXPReference( this, new Long(p) ) ;
+				ref = newReference(p) ;
 			}
 		} finally {
 			if (obtainedLock)
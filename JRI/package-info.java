@@ -3,7 +3,7 @@
  *
  * <p>
  * Currently it uses low-level calls from org.rosuda.JRI.Rengine, but
- * all REXP representations are created based on the org.rosuda.REngine API
+ * all REXP representations are created based on the org.rosuda.rengine API
  */
-package org.rosuda.REngine.JRI ;
+package org.rosuda.rengine.jri ;
 
@@ -1,4 +1,4 @@
-import org.rosuda.REngine.*;
+import org.rosuda.rengine.*;
 
 class TestException extends Exception {
 	public TestException(String msg) { super(msg); }
@@ -10,10 +10,10 @@ public class RTest {
 	public static void main(String[] args) {
 		try { 
 			// the simple initialization is done using
-			// REngine eng = REngine.engineForClass("org.rosuda.REngine.JRI.JRIEngine");
+			// REngine eng = REngine.engineForClass("org.rosuda.rengine.jri.JRIEngine");
 			// but the one below allows us to see all output from R via REngineStdOutput()
 			// However, it won't succeed if the engine doesn't support callbacks, so be prepared to fall back
-			REngine eng = REngine.engineForClass("org.rosuda.REngine.JRI.JRIEngine", args, new REngineStdOutput(), false);
+			REngine eng = REngine.engineForClass("org.rosuda.rengine.jri.JRIEngine", args, new REngineStdOutput(), false);
 
 			if (args.length > 0 && args[0].equals("--debug")) { // --debug waits for <Enter> so a debugger can be attached
 				System.out.println("R Version: " + eng.parseAndEval("R.version.string").asString());
@@ -288,7 +288,7 @@ public class RTest {
 				System.out.println("* Test creation of references to java objects");
 				if (!((REXPLogical)eng.parseAndEval("require(rJava)")).isTRUE()[0]) {
 					System.out.println("  - rJava is not available, skipping test\n");
-				} else if (!(eng instanceof org.rosuda.REngine.JRI.JRIEngine)) {
+				} else if (!(eng instanceof org.rosuda.rengine.jri.JRIEngine)) {
 					System.out.println("  - the used engine is not JRIEngine, skipping test\n");
 				} else {
 					/* try to use rJava before it is initialized */
@@ -305,7 +305,7 @@ public class RTest {
 					System.out.println( " : ok" ) ;
 					
 					eng.parseAndEval(".jinit()");
-					REXPReference ref = ((org.rosuda.REngine.JRI.JRIEngine)eng).createRJavaRef( null );
+					REXPReference ref = ((org.rosuda.rengine.jri.JRIEngine)eng).createRJavaRef( null );
 					if( ref != null ){
 						throw new TestException( "null object should create null REXPReference" ) ; 
 					}
@@ -313,7 +313,7 @@ public class RTest {
 					
 					System.out.println( "  pushing a java.awt.Point to R " ) ;
 					java.awt.Point p = new java.awt.Point( 10, 10) ;
-					ref = ((org.rosuda.REngine.JRI.JRIEngine)eng).createRJavaRef( p ); 
+					ref = ((org.rosuda.rengine.jri.JRIEngine)eng).createRJavaRef( p ); 
 					eng.assign( "p", ref ) ;
 					String cmd = "exists('p') && inherits( p, 'jobjRef') && .jclass(p) == 'java.awt.Point' " ; 
 					System.out.println( "  test if the object was pushed correctly " ) ;
@@ -1,53 +1,111 @@
 package org.patocarranza.dataframe;
 
-import java.util.Collection;
 import java.util.LinkedHashMap;
 import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLogical;
 import org.rosuda.rengine.REXPMismatchException;
 import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.RList;
 
 /**
- * DataFrame java object, maps to a DataFrame from R. 
+ * DataFrame java object, maps to a DataFrame from R.
  * BEWARE: DataFrame is similar to a matrix plus more attributes, but
  * the notation is reversed: columnsXrows is the notation used in this
  * object to determine its size. Therefore, a DataFrame 5x2 has 5 columns
  * and 2 rows. It was chosen this way because in an R DataFrame all values
- * from a column must be of the same type, while rows have no condition. 
+ * from a column must be of the same type, while rows have no condition.
  * Also, REngine's REXP objects have facilities to traverse its references
  * by columns easily, but very cumbersome to traverse by rows.
- * @author paulcurcean (http://github.com/paulcurcean) 
+ * <p>
+ * Data is stored by column in primitive arrays (see {@link #getColumnType}).
+ * When created from a REXP the arrays of the column vectors are used as they
+ * are, nothing is copied or boxed (except for off-heap vectors, which are
+ * copied onto the heap once). The typed accessors such as
+ * {@link #getDoubleColumn} return these arrays directly, while the
+ * <code>Object</code> based accessors box values on demand.
+ * @author paulcurcean (http://github.com/paulcurcean)
  *         patocarranza (http://github.com/patocarranza)
  */
 public class DataFrame {
 
-    private Object[][] objects;
+    /** column of doubles (<code>double[]</code>) */
+    public static final int TYPE_DOUBLE = 1;
+    /** column of integers (<code>int[]</code>) */
+    public static final int TYPE_INT = 2;
+    /** factor column, one-based level codes (<code>int[]</code>) plus levels */
+    public static final int TYPE_FACTOR = 3;
+    /** logical column, R encoding (<code>byte[]</code>, see {@link REXPLogical}) */
+    public static final int TYPE_LOGICAL = 4;
+    /** column of strings (<code>String[]</code>) */
+    public static final int TYPE_STRING = 5;
+    /** column of arbitrary objects (<code>Object[]</code>) */
+    public static final int TYPE_OBJECT = 6;
+
+    private Object[] columns;
+    private int[] types;
+    private String[][] levels;
+    private int rows;
+    /** row names, <code>null</code> for automatic (1..n) row names */
     private String[] rowNames;
     private String[] colNames;
-    
-    public DataFrame(REXP rexpRef) 
+
+    public DataFrame(REXP rexpRef)
             throws REXPMismatchException {
         //Check that this is an R DataFrame
-        String varType = ((REXPString) rexpRef._attr().asList().values().toArray()[2]).asString();
-        if( ! varType.toLowerCase().contains("data.frame"))
+        REXP cls = rexpRef.getAttribute("class");
+        if( ! (rexpRef instanceof REXPGenericVector) || cls == null
+                || ! cls.isString() || ! cls.asString().toLowerCase().contains("data.frame"))
             throw new REXPMismatchException(rexpRef, "data.frame");
-                
-        this.colNames = ((REXPString) rexpRef._attr().asList().values().toArray()[0]).asStrings();
-        this.rowNames = ((REXPString) rexpRef._attr().asList().values().toArray()[1]).asStrings();
-        
-        this.objects = new Object[this.colNames.length][this.rowNames.length];
-        
-        Collection data = rexpRef.asList().values();        
-        int colCounter = 0;
-        int rowCounter = 0;
-        //Support for string cell values so far only.
-        for(Object objRexpcol : data) {
-            REXPString singleColumn = (REXPString)objRexpcol;;
-            for(String singleValue : singleColumn.asStrings()) {
-                this.objects[colCounter][rowCounter] = singleValue;
-                rowCounter++;
+
+        RList data = rexpRef.asList();
+        int n = data.size();
+        REXP names = rexpRef.getAttribute("names");
+        this.colNames = (names != null && names.isString()) ? names.asStrings() : createDefaultNamesArray(n);
+        this.columns = new Object[n];
+        this.types = new int[n];
+        this.levels = new String[n][];
+        this.rows = (n > 0) ? data.at(0).length() : 0;
+
+        REXP rn = rexpRef.getAttribute("row.names");
+        if (rn != null && rn.isString()) {
+            this.rowNames = rn.asStrings();
+            this.rows = this.rowNames.length;
+        } else if (rn != null && rn.isInteger()) {
+            int[] ids = rn.asIntegers();
+            //compact form c(NA, -n) used by R for automatic row names
+            if (ids.length == 2 && ids[0] == REXPInteger.NA)
+                this.rows = Math.abs(ids[1]);
+            else
+                this.rows = ids.length;
+        }
+
+        for (int i = 0; i < n; i++) {
+            REXP col = data.at(i);
+            if (col.length() != this.rows)
+                throw new REXPMismatchException(col, "data.frame column of length " + this.rows);
+            if (col instanceof REXPFactor) {
+                this.types[i] = TYPE_FACTOR;
+                this.columns[i] = col.asFactor().asIntegers(1);
+                this.levels[i] = col.asFactor().levels();
+            } else if (col instanceof REXPInteger) {
+                this.types[i] = TYPE_INT;
+                this.columns[i] = col.asIntegers();
+            } else if (col instanceof REXPDouble) {
+                this.types[i] = TYPE_DOUBLE;
+                this.columns[i] = col.asDoubles();
+            } else if (col instanceof REXPLogical) {
+                this.types[i] = TYPE_LOGICAL;
+                this.columns[i] = ((REXPLogical) col).asBytes();
+            } else if (col instanceof REXPString) {
+                this.types[i] = TYPE_STRING;
+                this.columns[i] = col.asStrings();
+            } else {
+                throw new REXPMismatchException(col, "data.frame column");
             }
-            colCounter++;
-            rowCounter = 0;
         }
     }
 
@@ -58,15 +116,37 @@ public class DataFrame {
         if (objects[0].length != rowNames.length) {
             throw  new IllegalArgumentException("The number of rows of the data frame is not equal with the number of row names!");
         }
-        this.objects = objects;
+        this.columns = objects;
+        this.types = new int[objects.length];
+        this.levels = new String[objects.length][];
+        for (int i = 0; i < objects.length; i++)
+            this.types[i] = TYPE_OBJECT;
+        this.rows = rowNames.length;
         this.rowNames = rowNames;
         this.colNames = colNames;
     }
-    
+
     public DataFrame(Object defaultObject, String[] colNames, String[] rowNames) {
-        this.objects = createObjectsMatrix(colNames.length, rowNames.length, defaultObject);
+        this(createObjectsMatrix(colNames.length, rowNames.length, defaultObject), colNames, rowNames);
+    }
+
+    /**
+     * create a DataFrame without columns, they can be added with the
+     * <code>addColumn</code> methods
+     * @param rows is the number of rows
+     * @param rowNames are the row names or <code>null</code> for automatic
+     *        row names
+     */
+    public DataFrame(int rows, String[] rowNames) {
+        if (rowNames != null && rowNames.length != rows) {
+            throw  new IllegalArgumentException("The number of rows of the data frame is not equal with the number of row names!");
+        }
+        this.columns = new Object[0];
+        this.types = new int[0];
+        this.levels = new String[0][];
+        this.rows = rows;
         this.rowNames = rowNames;
-        this.colNames = colNames;
+        this.colNames = new String[0];
     }
 
     /**
@@ -76,16 +156,135 @@ public class DataFrame {
      * @return an empty data frame of the dimension n x m
      */
     public static DataFrame create(int columns, int rows) {
-        return new DataFrame(createEmptyObjectsMatrix(columns,rows), 
+        return new DataFrame(createEmptyObjectsMatrix(columns,rows),
                              createDefaultNamesArray(columns),
                              createDefaultNamesArray(rows));
-    }    
-    
-    public Object[] getColumn(int colIndex) {
+    }
+
+    private DataFrame addColumn(String name, int type, Object values, int length, String[] lev) {
+        if (length != this.rows) {
+            throw new IllegalArgumentException("The length of the column is not equal with the number of rows of the data frame!");
+        }
+        int n = this.columns.length;
+        Object[] c = new Object[n + 1];
+        int[] t = new int[n + 1];
+        String[][] l = new String[n + 1][];
+        String[] cn = new String[n + 1];
+        System.arraycopy(this.columns, 0, c, 0, n);
+        System.arraycopy(this.types, 0, t, 0, n);
+        System.arraycopy(this.levels, 0, l, 0, n);
+        System.arraycopy(this.colNames, 0, cn, 0, n);
+        c[n] = values;
+        t[n] = type;
+        l[n] = lev;
+        cn[n] = name;
+        this.columns = c;
+        this.types = t;
+        this.levels = l;
+        this.colNames = cn;
+        return this;
+    }
+
+    /** add a numeric column, the array is used without copying */
+    public DataFrame addColumn(String name, double[] values) {
+        return addColumn(name, TYPE_DOUBLE, values, values.length, null);
+    }
+
+    /** add an integer column, the array is used without copying */
+    public DataFrame addColumn(String name, int[] values) {
+        return addColumn(name, TYPE_INT, values, values.length, null);
+    }
+
+    /** add a logical column (R encoding, see {@link REXPLogical}), the array is used without copying */
+    public DataFrame addColumn(String name, byte[] values) {
+        return addColumn(name, TYPE_LOGICAL, values, values.length, null);
+    }
+
+    /** add a character column, the array is used without copying */
+    public DataFrame addColumn(String name, String[] values) {
+        return addColumn(name, TYPE_STRING, values, values.length, null);
+    }
+
+    /** add a factor column given by one-based level codes, the arrays are used without copying */
+    public DataFrame addFactorColumn(String name, int[] codes, String[] levels) {
+        return addColumn(name, TYPE_FACTOR, codes, codes.length, levels);
+    }
+
+    private void checkColumn(int colIndex) {
         if (colIndex >= getNumberOfColumns() || colIndex < 0) {
             throw new IllegalArgumentException("Requested index is greater than the number of columns - 1!");
-        }        
-        return objects[colIndex];
+        }
+    }
+
+    private Object typedColumn(int colIndex, int type) {
+        checkColumn(colIndex);
+        if (this.types[colIndex] != type) {
+            throw new IllegalArgumentException("Column " + this.colNames[colIndex] + " is not of the requested type!");
+        }
+        return this.columns[colIndex];
+    }
+
+    /**
+     * @return the type of the column, one of the <code>TYPE_*</code> constants
+     */
+    public int getColumnType(int colIndex) {
+        checkColumn(colIndex);
+        return this.types[colIndex];
+    }
+
+    /**
+     * @return index of the first column with the given name or -1 if there is none
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < this.colNames.length; i++)
+            if (this.colNames[i] != null && this.colNames[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /** @return the values of a {@link #TYPE_DOUBLE} column (not a copy) */
+    public double[] getDoubleColumn(int colIndex) {
+        return (double[]) typedColumn(colIndex, TYPE_DOUBLE);
+    }
+
+    /** @return the values of a {@link #TYPE_INT} column (not a copy) */
+    public int[] getIntColumn(int colIndex) {
+        return (int[]) typedColumn(colIndex, TYPE_INT);
+    }
+
+    /** @return the values of a {@link #TYPE_LOGICAL} column (not a copy) */
+    public byte[] getLogicalColumn(int colIndex) {
+        return (byte[]) typedColumn(colIndex, TYPE_LOGICAL);
+    }
+
+    /** @return the values of a {@link #TYPE_STRING} column (not a copy) */
+    public String[] getStringColumn(int colIndex) {
+        return (String[]) typedColumn(colIndex, TYPE_STRING);
+    }
+
+    /** @return the one-based level codes of a {@link #TYPE_FACTOR} column (not a copy) */
+    public int[] getFactorCodes(int colIndex) {
+        return (int[]) typedColumn(colIndex, TYPE_FACTOR);
+    }
+
+    /** @return the levels of a {@link #TYPE_FACTOR} column */
+    public String[] getFactorLevels(int colIndex) {
+        typedColumn(colIndex, TYPE_FACTOR);
+        return this.levels[colIndex];
+    }
+
+    /**
+     * @return the column as an array of objects. Object columns are returned
+     *         as they are, all other columns are boxed into a new array.
+     */
+    public Object[] getColumn(int colIndex) {
+        checkColumn(colIndex);
+        if (this.types[colIndex] == TYPE_OBJECT)
+            return (Object[]) this.columns[colIndex];
+        Object[] col = new Object[this.rows];
+        for (int i = 0; i < this.rows; i++)
+            col[i] = value(colIndex, i);
+        return col;
     }
 
     public Object[] getRow(int rowIndex) {
@@ -93,29 +292,48 @@ public class DataFrame {
             throw  new IllegalArgumentException("Requested index is greater than the number of rows - 1!");
         }
 
-        Object[] row = new Object[objects.length];
+        Object[] row = new Object[this.columns.length];
 
-        for (int j = 0; j < objects.length; j++) {
-            row[j] = objects[j][rowIndex];
+        for (int j = 0; j < this.columns.length; j++) {
+            row[j] = value(j, rowIndex);
         }
 
         return row;
     }
 
+    /**
+     * @return the whole data frame as objects, boxing all typed columns
+     */
     public Object[][] getObjects() {
+        Object[][] objects = new Object[this.columns.length][];
+        for (int i = 0; i < objects.length; i++)
+            objects[i] = getColumn(i);
         return objects;
     }
 
+    /**
+     * @return the row names, automatic row names are created as "1".."n"
+     */
     public String[] getRowNames() {
+        if (this.rowNames == null) {
+            String[] names = new String[this.rows];
+            for (int i = 0; i < this.rows; i++)
+                names[i] = Integer.toString(i + 1);
+            this.rowNames = names;
+        }
         return rowNames;
     }
 
+    public String[] getColumnNames() {
+        return colNames;
+    }
+
     public int getNumberOfColumns() {
-        return objects.length;
+        return this.columns.length;
     }
 
     public int getNumberOfRows() {
-        return objects[0].length;
+        return this.rows;
     }
 
     public Object getObject(int colIndex, int rowIndex) {
@@ -127,9 +345,95 @@ public class DataFrame {
             throw new IllegalArgumentException("Requested index is greater than the number of rows - 1!");
         }
 
-        return objects[colIndex][rowIndex];
+        return value(colIndex, rowIndex);
     }
-    
+
+    /**
+     * boxed value of a cell, NAs are mapped to <code>null</code> and factors
+     * to their level
+     */
+    private Object value(int colIndex, int rowIndex) {
+        switch (this.types[colIndex]) {
+            case TYPE_DOUBLE: {
+                double d = ((double[]) this.columns[colIndex])[rowIndex];
+                return REXPDouble.isNA(d) ? null : Double.valueOf(d);
+            }
+            case TYPE_INT: {
+                int v = ((int[]) this.columns[colIndex])[rowIndex];
+                return (v == REXPInteger.NA) ? null : Integer.valueOf(v);
+            }
+            case TYPE_FACTOR: {
+                int v = ((int[]) this.columns[colIndex])[rowIndex];
+                String[] lev = this.levels[colIndex];
+                return (v < 1 || v > lev.length) ? null : lev[v - 1];
+            }
+            case TYPE_LOGICAL: {
+                byte v = ((byte[]) this.columns[colIndex])[rowIndex];
+                return REXPLogical.isNA(v) ? null : Boolean.valueOf(v != REXPLogical.FALSE);
+            }
+            default:
+                return ((Object[]) this.columns[colIndex])[rowIndex];
+        }
+    }
+
+    /**
+     * converts this data frame back into an R data frame using
+     * {@link REXP#createDataFrame(RList, String[])}. Typed columns are passed
+     * on without copying. Object columns become integer, numeric or logical
+     * vectors if all their values are of such type and character vectors
+     * otherwise.
+     * @return R data frame
+     */
+    public REXP toREXP() throws REXPMismatchException {
+        REXP[] cols = new REXP[this.columns.length];
+        for (int i = 0; i < cols.length; i++) {
+            Object c = this.columns[i];
+            switch (this.types[i]) {
+                case TYPE_DOUBLE: cols[i] = new REXPDouble((double[]) c); break;
+                case TYPE_INT: cols[i] = new REXPInteger((int[]) c); break;
+                case TYPE_FACTOR: cols[i] = new REXPFactor((int[]) c, this.levels[i]); break;
+                case TYPE_LOGICAL: cols[i] = new REXPLogical((byte[]) c); break;
+                case TYPE_STRING: cols[i] = new REXPString((String[]) c); break;
+                default: cols[i] = objectColumnAsREXP((Object[]) c);
+            }
+        }
+        return REXP.createDataFrame(new RList(cols, this.colNames), this.rowNames);
+    }
+
+    private static REXP objectColumnAsREXP(Object[] c) {
+        boolean ints = true, nums = true, logs = true;
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] == null)
+                continue;
+            ints &= (c[i] instanceof Integer);
+            nums &= (c[i] instanceof Number);
+            logs &= (c[i] instanceof Boolean);
+        }
+        if (ints) {
+            int[] v = new int[c.length];
+            for (int i = 0; i < c.length; i++)
+                v[i] = (c[i] == null) ? REXPInteger.NA : ((Integer) c[i]).intValue();
+            return new REXPInteger(v);
+        }
+        if (nums) {
+            double[] v = new double[c.length];
+            for (int i = 0; i < c.length; i++)
+                v[i] = (c[i] == null) ? REXPDouble.NA : ((Number) c[i]).doubleValue();
+            return new REXPDouble(v);
+        }
+        if (logs) {
+            byte[] v = new byte[c.length];
+            for (int i = 0; i < c.length; i++)
+                v[i] = (c[i] == null) ? REXPLogical.NA
+                        : (((Boolean) c[i]).booleanValue() ? REXPLogical.TRUE : REXPLogical.FALSE);
+            return new REXPLogical(v);
+        }
+        String[] v = new String[c.length];
+        for (int i = 0; i < c.length; i++)
+            v[i] = (c[i] == null) ? null : c[i].toString();
+        return new REXPString(v);
+    }
+
     private static Object[][] createEmptyObjectsMatrix(int cols, int rows) {
         return new Object[cols][rows];
     }
@@ -139,7 +443,7 @@ public class DataFrame {
 
         for (int i = 0; i < cols; i++) {
             for (int j = 0; j < rows; j++)
-                objects[i][j] = o;            
+                objects[i][j] = o;
         }
 
         return objects;
@@ -148,22 +452,23 @@ public class DataFrame {
     public static String[] createDefaultNamesArray(int n) {
         String[] names = new String[n];
 
-        for (int i = 0; i < n; i++) 
-            names[i] = "var" + i;       
+        for (int i = 0; i < n; i++)
+            names[i] = "var" + i;
 
         return names;
     }
-    
+
     public LinkedHashMap<String, LinkedHashMap<String, Object>> getDataFrameAsHashMap() {
-        LinkedHashMap<String, LinkedHashMap<String, Object>> map = 
+        LinkedHashMap<String, LinkedHashMap<String, Object>> map =
                 new LinkedHashMap<String, LinkedHashMap<String, Object>>();
-        for(int i = 0; i > this.colNames.length; i++) {
+        String[] rn = getRowNames();
+        for(int i = 0; i < this.colNames.length; i++) {
             LinkedHashMap<String, Object> colMap = new LinkedHashMap<String, Object>();
-            for(int k = 0; k > this.rowNames.length; k++) {
-                colMap.put(this.rowNames[k], this.getObject(i, k));
+            for(int k = 0; k < rn.length; k++) {
+                colMap.put(rn[k], value(i, k));
             }
             map.put(this.colNames[i], colMap);
         }
         return map;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,249 @@
+package org.rosuda.rengine;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * list whose elements are only decoded when they are accessed for the first
+ * time. Until then an element is a placeholder - any object which is not a
+ * {@link REXP} - which {@link #decode} turns into the element, e.g. the
+ * offset of its encoded form in a buffer or a pointer to the R object. Names
+ * are not lazy since they are needed for lookups by key.
+ * <p>
+ * Single elements are decoded by {@link #at(int)}, {@link #at(String)},
+ * <code>get</code> and <code>elementAt</code>; any operation which looks at
+ * all elements (iteration, searching, conversion to an array etc.) decodes
+ * all remaining elements first. Elements are decoded without holding the
+ * monitor of the list, so decoding may enter other locks (e.g. the one of an
+ * engine) without risking deadlocks with threads using the list. Whatever
+ * the decoding needs is released by {@link #allDecoded} only once no decode
+ * is running any more, even if several threads decode the same element.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractLazyRList extends RList {
+
+  /**
+   * number of elements which have not been decoded yet
+   */
+  int pending;
+  /**
+   * number of decodes running at the moment
+   */
+  int decoding;
+
+  protected AbstractLazyRList() {
+    super();
+  }
+
+  /**
+   * @param contents placeholders of all elements
+   * @param names names of the elements or <code>null</code>
+   */
+  protected AbstractLazyRList(Collection contents, String[] names) {
+    super(contents, names);
+    pending = contents.size();
+  }
+
+  /**
+   * counts a placeholder which is about to be added to this list as pending
+   *
+   * @param placeholder placeholder
+   * @return <code>placeholder</code>
+   */
+  protected synchronized Object pending(Object placeholder) {
+    pending++;
+    return placeholder;
+  }
+
+  /**
+   * decodes an element
+   *
+   * @param placeholder placeholder of the element
+   * @return element
+   * @throws IllegalStateException if the element cannot be decoded
+   */
+  protected abstract REXP decode(Object placeholder);
+
+  /**
+   * called once all elements have been decoded (or the list was cleared) and
+   * no decode is running any more, so that whatever was needed for decoding
+   * can be released. It is called with the monitor of the list held.
+   */
+  protected void allDecoded() {
+  }
+
+  /**
+   * @return number of elements which have not been decoded yet
+   */
+  public synchronized int getPendingCount() {
+    return pending;
+  }
+
+  Object resolve(int i) {
+    Object o;
+    synchronized (this) {
+      o = super.elementAt(i);
+      if (o == null || o instanceof REXP) {
+        return o;
+      }
+      decoding++;
+    }
+    REXP x = null;
+    boolean installed = false;
+    try {
+      x = decode(o);
+    } finally {
+      synchronized (this) {
+        decoding--;
+        if (x != null && i < elementCount && elementData[i] == o) {
+          elementData[i] = x;
+          pending--;
+          installed = true;
+        }
+        if (pending == 0 && decoding == 0) {
+          allDecoded();
+        }
+      }
+    }
+    return installed ? x : super.elementAt(i); // decoded by another thread meanwhile
+  }
+
+  /**
+   * decodes all elements which have not been decoded yet
+   */
+  public void resolveAll() {
+    for (int i = 0; getPendingCount() > 0 && i < size(); i++) {
+      resolve(i);
+    }
+  }
+
+  // --- single element access
+  public Object get(int index) {
+    return resolve(index);
+  }
+
+  public Object elementAt(int index) {
+    return resolve(index);
+  }
+
+  public REXP at(int i) {
+    return (i >= 0 && i < size()) ? (REXP) resolve(i) : null;
+  }
+
+  public Object set(int index, Object element) {
+    resolve(index);
+    return super.set(index, element);
+  }
+
+  public Object remove(int index) {
+    resolve(index);
+    return super.remove(index);
+  }
+
+  public synchronized void clear() {
+    super.clear();
+    pending = 0;
+    if (decoding == 0) {
+      allDecoded();
+    }
+  }
+
+  // --- operations on all elements
+  public Object firstElement() {
+    resolveAll();
+    return super.firstElement();
+  }
+
+  public Object lastElement() {
+    resolveAll();
+    return super.lastElement();
+  }
+
+  public Enumeration elements() {
+    resolveAll();
+    return super.elements();
+  }
+
+  public Iterator iterator() {
+    resolveAll();
+    return super.iterator();
+  }
+
+  public ListIterator listIterator() {
+    resolveAll();
+    return super.listIterator();
+  }
+
+  public ListIterator listIterator(int index) {
+    resolveAll();
+    return super.listIterator(index);
+  }
+
+  public Object[] toArray() {
+    resolveAll();
+    return super.toArray();
+  }
+
+  public Object[] toArray(Object[] a) {
+    resolveAll();
+    return super.toArray(a);
+  }
+
+  public int indexOf(Object o, int index) {
+    resolveAll();
+    return super.indexOf(o, index);
+  }
+
+  public int lastIndexOf(Object o, int index) {
+    resolveAll();
+    return super.lastIndexOf(o, index);
+  }
+
+  public void copyInto(Object[] anArray) {
+    resolveAll();
+    super.copyInto(anArray);
+  }
+
+  public void forEach(Consumer action) {
+    resolveAll();
+    super.forEach(action);
+  }
+
+  public boolean removeIf(Predicate filter) {
+    resolveAll();
+    return super.removeIf(filter);
+  }
+
+  public void replaceAll(UnaryOperator operator) {
+    resolveAll();
+    super.replaceAll(operator);
+  }
+
+  public void sort(Comparator c) {
+    resolveAll();
+    super.sort(c);
+  }
+
+  public Spliterator spliterator() {
+    resolveAll();
+    return super.spliterator();
+  }
+
+  public boolean equals(Object o) {
+    resolveAll();
+    return super.equals(o);
+  }
+
+  public int hashCode() {
+    resolveAll();
+    return super.hashCode();
+  }
+}
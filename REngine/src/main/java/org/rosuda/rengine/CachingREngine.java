@@ -0,0 +1,767 @@
+package org.rosuda.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * engine which passes everything on to another engine but remembers the
+ * results of {@link #parseAndEval(String, REXP, boolean)} in the global
+ * environment, so that repeated evaluations of the same expression over the
+ * same inputs don't enter R again.
+ * <p>
+ * A result is keyed by the expression text plus content hashes of the values
+ * most recently assigned through this engine to the symbols the expression
+ * refers to. Assigning a different value to a symbol drops all results which
+ * refer to it, assigning the same content again keeps them. The symbols of an
+ * expression are found by a simple scan of its text (names outside of strings
+ * and comments), so all names of an expression count, even those which are
+ * not variables.
+ * <p>
+ * The cached results are bounded by their estimated size in bytes (see
+ * {@link #weigh}), the least recently used (<code>POLICY_LRU</code>) or least
+ * frequently used (<code>POLICY_LFU</code>) results are evicted first.
+ * Optionally, results expire after a time to live.
+ * <p>
+ * Expressions containing assignments or calls of functions with side effects
+ * or varying results (random numbers, time, files etc., see
+ * {@link #isPure}) are never cached; evaluating them drops the results
+ * referring to any name they contain. Apart from that, only use this engine
+ * for expressions which depend on nothing but the values assigned through it
+ * (or on data that never changes): results depending on variables modified by
+ * other means or on functions not recognized as impure will be stale. Such
+ * expressions can be excluded by overriding {@link #isCacheable}. Evaluations through
+ * {@link #eval}, references (<code>resolve = false</code>) and other
+ * environments are never cached. Cached results are shared, so they must not
+ * be modified.
+ * <pre>
+ * CachingREngine eng = new CachingREngine(new RConnection(), 64L &lt;&lt; 20, CachingREngine.POLICY_LRU);
+ * eng.assign("coef", coefficients);
+ * REXP s = eng.parseAndEval("score(coef, 42L)"); // evaluated by R
+ * s = eng.parseAndEval("score(coef, 42L)"); // cached
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class CachingREngine extends REngine {
+
+  /**
+   * evict the least recently used results first
+   */
+  public static final int POLICY_LRU = 0;
+  /**
+   * evict the least frequently used results first, the least recently used
+   * ones among equally frequently used
+   */
+  public static final int POLICY_LFU = 1;
+
+  /**
+   * estimated size of an object without its contents
+   */
+  static final long OBJECT_OVERHEAD = 32;
+
+  /**
+   * cached result
+   */
+  static class Entry {
+
+    String key;
+    REXP value;
+    long weight;
+    String[] symbols;
+    long expires;
+    long hits;
+    /**
+     * order of the last access
+     */
+    long seq;
+
+    Entry(String key, REXP value, long weight, String[] symbols, long expires) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+      this.symbols = symbols;
+      this.expires = expires;
+    }
+  }
+
+  final REngine engine;
+  final long maxWeight;
+  final int policy;
+  long ttl = 0;
+
+  /**
+   * cached results by key
+   */
+  final HashMap entries = new HashMap();
+  /**
+   * cached results in the order of eviction
+   */
+  final TreeSet order;
+  /**
+   * cached results by the symbols they refer to (symbol -&gt; set of entries)
+   */
+  final HashMap dependents = new HashMap();
+  /**
+   * content hashes of the values assigned through this engine (symbol -&gt;
+   * Long)
+   */
+  final HashMap hashes = new HashMap();
+  /**
+   * incremented by every invalidation, results computed meanwhile are not
+   * cached
+   */
+  long generation = 0;
+  long seq = 0;
+  long weight = 0;
+
+  long hits, misses, evictions, expirations, invalidations;
+
+  /**
+   * @param engine engine to pass everything on to
+   * @param maxWeight maximal total size of the cached results in bytes
+   * @param policy eviction policy, <code>POLICY_LRU</code> or
+   * <code>POLICY_LFU</code>
+   */
+  public CachingREngine(REngine engine, long maxWeight, int policy) {
+    if (policy != POLICY_LRU && policy != POLICY_LFU) {
+      throw new IllegalArgumentException("unknown eviction policy " + policy);
+    }
+    this.engine = engine;
+    this.maxWeight = maxWeight;
+    this.policy = policy;
+    order = new TreeSet(new Comparator() {
+      public int compare(Object o1, Object o2) {
+        Entry a = (Entry) o1, b = (Entry) o2;
+        if (CachingREngine.this.policy == POLICY_LFU && a.hits != b.hits) {
+          return (a.hits < b.hits) ? -1 : 1;
+        }
+        return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+      }
+    });
+  }
+
+  /**
+   * @return engine everything is passed on to
+   */
+  public REngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * sets the time after which cached results expire. It applies to results
+   * cached from now on.
+   *
+   * @param time time to live, 0 for results which don't expire (default)
+   * @param unit unit of the time
+   */
+  public synchronized void setTimeToLive(long time, TimeUnit unit) {
+    ttl = unit.toNanos(time);
+  }
+
+  /**
+   * decides whether the result of an expression may be cached. The default
+   * implementation accepts all expressions without recognizable side effects
+   * (see {@link #isPure}), subclasses may exclude more, e.g. calls of their
+   * own functions which are not deterministic.
+   *
+   * @param text expression
+   * @return <code>true</code> if the result can be cached
+   */
+  protected boolean isCacheable(String text) {
+    return isPure(text);
+  }
+
+  /**
+   * evaluates an expression, answering it from the cache if possible.
+   * Expressions with side effects (see {@link #isPure}) are always passed on
+   * and drop the cached results referring to any of the names they contain,
+   * since they may assign to them.
+   */
+  public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
+    if (!isPure(text)) {
+      invalidateNames(text);
+      try {
+        return engine.parseAndEval(text, where, resolve);
+      } finally {
+        invalidateNames(text); // results computed meanwhile may have seen either value
+      }
+    }
+    if (where != null || !resolve || !isCacheable(text)) {
+      return engine.parseAndEval(text, where, resolve);
+    }
+    String[] symbols = symbols(text);
+    String key;
+    long gen;
+    synchronized (this) {
+      key = key(text, symbols);
+      Entry e = (Entry) entries.get(key);
+      if (e != null && e.expires != 0 && e.expires - System.nanoTime() <= 0) {
+        remove(e);
+        expirations++;
+        e = null;
+      }
+      if (e != null) {
+        order.remove(e);
+        e.hits++;
+        e.seq = ++seq;
+        order.add(e);
+        hits++;
+        return e.value;
+      }
+      misses++;
+      gen = generation;
+    }
+    REXP x = engine.parseAndEval(text, where, resolve);
+    if (x != null && !x.isReference()) {
+      long w = weigh(x) + 2 * text.length();
+      synchronized (this) {
+        if (gen == generation && w <= maxWeight && !entries.containsKey(key)) {
+          put(new Entry(key, x, w, symbols, (ttl == 0) ? 0 : (System.nanoTime() + ttl)));
+        }
+      }
+    }
+    return x;
+  }
+
+  public REXP parseAndEval(String cmd) throws REngineException, REXPMismatchException {
+    return parseAndEval(cmd, null, true);
+  }
+
+  /**
+   * passes the assignment on and drops the cached results which refer to the
+   * symbol, unless the value has the same content as the one assigned before
+   */
+  public void assign(String symbol, REXP value, REXP env) throws REngineException, REXPMismatchException {
+    Long h = (env == null) ? Long.valueOf(contentHash(value)) : null;
+    boolean changed;
+    synchronized (this) {
+      changed = (h == null || !h.equals(hashes.get(symbol)));
+      if (changed) {
+        invalidate(symbol);
+        hashes.remove(symbol);
+      }
+    }
+    engine.assign(symbol, value, env);
+    if (changed) {
+      synchronized (this) {
+        // results of evaluations which overlapped the assignment may have seen either value
+        generation++;
+        if (h != null) {
+          hashes.put(symbol, h);
+        }
+      }
+    }
+  }
+
+  /**
+   * drops all cached results which refer to a symbol
+   *
+   * @param symbol symbol
+   */
+  public synchronized void invalidate(String symbol) {
+    generation++;
+    HashSet d = (HashSet) dependents.get(symbol);
+    if (d == null) {
+      return;
+    }
+    Object[] es = d.toArray();
+    for (int i = 0; i < es.length; i++) {
+      remove((Entry) es[i]);
+      invalidations++;
+    }
+  }
+
+  /**
+   * drops the cached results referring to any name or string in an
+   * expression (strings count since they may name the target of
+   * <code>assign</code>) and forgets the contents assigned to them
+   */
+  synchronized void invalidateNames(String text) {
+    ArrayList t = tokens(text);
+    for (int i = 0; i < t.size(); i++) {
+      Token k = (Token) t.get(i);
+      if (k.type != Token.OP) {
+        invalidate(k.text);
+        hashes.remove(k.text);
+      }
+    }
+  }
+
+  /**
+   * drops all cached results
+   */
+  public synchronized void invalidateAll() {
+    generation++;
+    invalidations += entries.size();
+    entries.clear();
+    order.clear();
+    dependents.clear();
+    weight = 0;
+  }
+
+  void put(Entry e) {
+    e.seq = ++seq;
+    entries.put(e.key, e);
+    order.add(e);
+    weight += e.weight;
+    for (int i = 0; i < e.symbols.length; i++) {
+      HashSet d = (HashSet) dependents.get(e.symbols[i]);
+      if (d == null) {
+        dependents.put(e.symbols[i], d = new HashSet());
+      }
+      d.add(e);
+    }
+    while (weight > maxWeight && !order.isEmpty()) {
+      Entry v = (Entry) order.first();
+      remove(v);
+      evictions++;
+    }
+  }
+
+  void remove(Entry e) {
+    if (entries.remove(e.key) == null) {
+      return;
+    }
+    order.remove(e);
+    weight -= e.weight;
+    for (int i = 0; i < e.symbols.length; i++) {
+      HashSet d = (HashSet) dependents.get(e.symbols[i]);
+      if (d != null) {
+        d.remove(e);
+        if (d.isEmpty()) {
+          dependents.remove(e.symbols[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * key of an expression: its text followed by the hashes of the symbols with
+   * known content
+   */
+  String key(String text, String[] symbols) {
+    StringBuilder sb = new StringBuilder(text);
+    for (int i = 0; i < symbols.length; i++) {
+      Long h = (Long) hashes.get(symbols[i]);
+      if (h != null) {
+        sb.append('\0').append(symbols[i]).append('=').append(Long.toHexString(h.longValue()));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * token of an expression, see {@link #tokens}
+   */
+  static final class Token {
+
+    static final int NAME = 0;
+    static final int STRING = 1;
+    static final int OP = 2;
+
+    final int type;
+    final String text;
+
+    Token(int type, String text) {
+      this.type = type;
+      this.text = text;
+    }
+  }
+
+  /**
+   * operators of more than one character, longest first
+   */
+  static final String[] OPERATORS = {"<<-", "->>", "<-", "->", "==", "!=", "<=", ">=", "::", "&&", "||"};
+
+  /**
+   * functions whose results can't be cached because they have side effects or
+   * depend on something else than their arguments
+   */
+  static final HashSet IMPURE = new HashSet(Arrays.asList(new String[]{
+    "assign", "delayedAssign", "makeActiveBinding", "rm", "remove", "attach", "detach", "library", "require",
+    "requireNamespace", "loadNamespace", "source", "sys.source", "eval", "evalq", "local", "environment",
+    "globalenv", "parent.frame", "sys.function", "on.exit", "options", "Sys.setenv", "Sys.setlocale",
+    "Sys.getenv", "Sys.time", "Sys.Date", "date", "proc.time", "system.time", "Sys.sleep", "system", "system2",
+    "set.seed", "sample", "sample.int", "runif", "rnorm", "rbinom", "rpois", "rexp", "rgamma", "rbeta",
+    "rchisq", "rt", "rf", "rcauchy", "rlogis", "rlnorm", "rweibull", "rgeom", "rhyper", "rnbinom", "rmultinom",
+    "rsignrank", "rwilcox", "file", "url", "gzfile", "bzfile", "xzfile", "unz", "pipe", "fifo", "socketConnection",
+    "open", "close", "readLines", "readline", "readRDS", "readBin", "readChar", "read.table", "read.csv",
+    "read.csv2", "read.delim", "read.delim2", "read.dcf", "scan", "load", "save", "save.image", "saveRDS",
+    "writeLines", "writeBin", "writeChar", "write", "write.table", "write.csv", "write.csv2", "write.dcf",
+    "cat", "print", "message", "warning", "sink", "file.create", "file.remove", "file.rename", "file.append",
+    "file.copy", "file.exists", "file.info", "dir.create", "unlink", "list.files", "dir", "download.file",
+    "tempfile", "setwd", "getwd"
+  }));
+
+  /**
+   * splits an expression into names (identifiers and backquoted names),
+   * string literals and operators, skipping numbers, whitespace and comments
+   *
+   * @param text expression
+   * @return list of {@link Token}s
+   */
+  static ArrayList tokens(String text) {
+    ArrayList l = new ArrayList();
+    int n = text.length();
+    int i = 0;
+    while (i < n) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\'' || c == '`') {
+        StringBuilder sb = new StringBuilder();
+        i++;
+        while (i < n && text.charAt(i) != c) {
+          if (text.charAt(i) == '\\' && i + 1 < n) {
+            i++;
+          }
+          sb.append(text.charAt(i++));
+        }
+        i++;
+        l.add(new Token((c == '`') ? Token.NAME : Token.STRING, sb.toString()));
+      } else if (c == '#') {
+        while (i < n && text.charAt(i) != '\n') {
+          i++;
+        }
+      } else if (Character.isLetter(c) || (c == '.' && !(i + 1 < n && Character.isDigit(text.charAt(i + 1))))) {
+        int s = i;
+        while (i < n && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '.' || text.charAt(i) == '_')) {
+          i++;
+        }
+        l.add(new Token(Token.NAME, text.substring(s, i)));
+      } else if (Character.isDigit(c) || c == '.') { // skip numbers such as 1e10, .5 or 0x1fL
+        while (i < n && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '.')) {
+          i++;
+        }
+      } else if (Character.isWhitespace(c)) {
+        i++;
+      } else {
+        String op = String.valueOf(c);
+        for (int k = 0; k < OPERATORS.length; k++) {
+          if (text.startsWith(OPERATORS[k], i)) {
+            op = OPERATORS[k];
+            break;
+          }
+        }
+        i += op.length();
+        l.add(new Token(Token.OP, op));
+      }
+    }
+    return l;
+  }
+
+  /**
+   * finds the names an expression refers to: identifiers and backquoted names
+   * outside of strings and comments
+   *
+   * @param text expression
+   * @return names in the order of their first occurrence
+   */
+  static String[] symbols(String text) {
+    ArrayList l = new ArrayList();
+    HashSet seen = new HashSet();
+    ArrayList t = tokens(text);
+    for (int i = 0; i < t.size(); i++) {
+      Token k = (Token) t.get(i);
+      if (k.type == Token.NAME && seen.add(k.text)) {
+        l.add(k.text);
+      }
+    }
+    String[] s = new String[l.size()];
+    l.toArray(s);
+    return s;
+  }
+
+  /**
+   * checks whether an expression is free of side effects as far as it can be
+   * told from its text: it must not contain assignments (<code>&lt;-</code>,
+   * <code>&lt;&lt;-</code>, <code>-&gt;</code>, <code>-&gt;&gt;</code> or
+   * <code>=</code> outside of function arguments) nor call any of the
+   * functions known to have side effects or to return something else every
+   * time (random numbers, time, files, <code>assign</code> etc.)
+   *
+   * @param text expression
+   * @return <code>false</code> if the expression has side effects
+   */
+  static boolean isPure(String text) {
+    ArrayList t = tokens(text);
+    int depth = 0; // of parentheses and brackets, where = names an argument
+    for (int i = 0; i < t.size(); i++) {
+      Token k = (Token) t.get(i);
+      if (k.type == Token.NAME) {
+        if (i + 1 < t.size() && "(".equals(((Token) t.get(i + 1)).text) && IMPURE.contains(k.text)) {
+          return false;
+        }
+      } else if (k.type == Token.OP) {
+        String o = k.text;
+        if (o.equals("(") || o.equals("[")) {
+          depth++;
+        } else if (o.equals(")") || o.equals("]")) {
+          depth--;
+        } else if (o.equals("<-") || o.equals("<<-") || o.equals("->") || o.equals("->>") || (o.equals("=") && depth <= 0)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * estimates the size of an object in bytes from its type and length,
+   * including its attributes
+   *
+   * @param x object
+   * @return estimated size in bytes
+   */
+  protected long weigh(REXP x) {
+    if (x == null) {
+      return 0;
+    }
+    long w = OBJECT_OVERHEAD;
+    try {
+      if (x instanceof REXPDouble) {
+        w += 8L * x.length();
+      } else if (x instanceof REXPInteger) {
+        w += 4L * x.length();
+        if (x instanceof REXPFactor) {
+          w += weighStrings(((REXPFactor) x).asFactor().levels());
+        }
+      } else if (x instanceof REXPLogical || x instanceof REXPRaw) {
+        w += x.length();
+      } else if (x instanceof REXPString) {
+        w += weighStrings(x.asStrings());
+      } else if (x instanceof REXPGenericVector || x instanceof REXPList) {
+        RList l = x.asList();
+        for (int i = 0; i < l.size(); i++) {
+          w += 8 + weigh(l.at(i));
+        }
+        if (l.names != null) {
+          w += 8L * l.names.size();
+        }
+      } else if (x instanceof REXPSymbol) {
+        w += 2L * x.asString().length();
+      }
+    } catch (REXPMismatchException e) {
+    }
+    return w + ((x._attr() == null) ? 0 : weigh(x._attr()));
+  }
+
+  static long weighStrings(String[] s) {
+    long w = 8L * s.length;
+    for (int i = 0; i < s.length; i++) {
+      if (s[i] != null) {
+        w += OBJECT_OVERHEAD + 2L * s[i].length();
+      }
+    }
+    return w;
+  }
+
+  /**
+   * computes a 64-bit hash of the contents of an object (type, values and
+   * attributes). Objects whose contents are not known (references,
+   * environments etc.) get a hash that doesn't match anything.
+   *
+   * @param x object
+   * @return hash
+   */
+  static long contentHash(REXP x) {
+    long h = 0xcbf29ce484222325L;
+    if (x == null || x instanceof REXPNull) {
+      return mix(h, 1);
+    }
+    try {
+      if (x instanceof REXPDouble) {
+        double[] d = x.asDoubles();
+        h = mix(h, 14);
+        for (int i = 0; i < d.length; i++) {
+          h = mix(h, Double.doubleToLongBits(d[i]));
+        }
+      } else if (x instanceof REXPInteger) {
+        int[] v = x.asIntegers();
+        h = mix(h, 13);
+        for (int i = 0; i < v.length; i++) {
+          h = mix(h, v[i]);
+        }
+        if (x instanceof REXPFactor) { // levels are not necessarily among the attributes
+          String[] l = ((REXPFactor) x).asFactor().levels();
+          for (int i = 0; i < l.length; i++) {
+            h = mix(h, l[i]);
+          }
+        }
+      } else if (x instanceof REXPLogical || x instanceof REXPRaw) {
+        byte[] b = x.asBytes();
+        h = mix(h, (x instanceof REXPLogical) ? 10 : 24);
+        for (int i = 0; i < b.length; i++) {
+          h = mix(h, b[i]);
+        }
+      } else if (x instanceof REXPString) {
+        String[] s = x.asStrings();
+        h = mix(h, 16);
+        for (int i = 0; i < s.length; i++) {
+          h = mix(h, s[i]);
+        }
+      } else if (x instanceof REXPSymbol) {
+        h = mix(mix(h, 1), x.asString());
+      } else if (x instanceof REXPGenericVector || x instanceof REXPList) {
+        RList l = x.asList();
+        h = mix(h, (x instanceof REXPLanguage) ? 6 : ((x instanceof REXPList) ? 2 : 19));
+        for (int i = 0; i < l.size(); i++) {
+          String k = l.isNamed() ? l.keyAt(i) : null;
+          h = mix(mix(h, k), contentHash(l.at(i)));
+        }
+      } else {
+        return System.nanoTime() ^ System.identityHashCode(x) * 0x9e3779b97f4a7c15L;
+      }
+    } catch (REXPMismatchException e) {
+      return System.nanoTime() ^ System.identityHashCode(x) * 0x9e3779b97f4a7c15L;
+    }
+    return (x._attr() == null) ? h : mix(h, contentHash(x._attr()));
+  }
+
+  static long mix(long h, long v) {
+    h ^= v;
+    h *= 0x100000001b3L;
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * mixes the length and every character of a string into a hash,
+   * <code>null</code> (i.e. <code>NA</code>) differs from all strings
+   */
+  static long mix(long h, String s) {
+    if (s == null) {
+      return mix(h, -1);
+    }
+    h = mix(h, s.length());
+    for (int i = 0; i < s.length(); i++) {
+      h = mix(h, s.charAt(i));
+    }
+    return h;
+  }
+
+  /**
+   * @return number of evaluations answered from the cache
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return number of cacheable evaluations passed on to the engine
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return number of results evicted to stay within the size limit
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * @return number of results dropped because they expired
+   */
+  public synchronized long getExpirationCount() {
+    return expirations;
+  }
+
+  /**
+   * @return number of results dropped by assignments or
+   * <code>invalidate</code>
+   */
+  public synchronized long getInvalidationCount() {
+    return invalidations;
+  }
+
+  /**
+   * @return number of cached results
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return estimated total size of the cached results in bytes
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  public String toString() {
+    synchronized (this) {
+      return "CachingREngine[" + entries.size() + " results, " + weight + "/" + maxWeight + " bytes, " + hits + " hits, " + misses + " misses, "
+              + evictions + " evictions]{" + engine + "}";
+    }
+  }
+
+  //--- everything else is passed on ---
+  public REXP parse(String text, boolean resolve) throws REngineException {
+    return engine.parse(text, resolve);
+  }
+
+  public REXP eval(REXP what, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
+    return engine.eval(what, where, resolve);
+  }
+
+  public REXP get(String symbol, REXP env, boolean resolve) throws REngineException, REXPMismatchException {
+    return engine.get(symbol, env, resolve);
+  }
+
+  public REXP resolveReference(REXP ref) throws REngineException, REXPMismatchException {
+    return engine.resolveReference(ref);
+  }
+
+  public REXP createReference(REXP value) throws REngineException, REXPMismatchException {
+    return engine.createReference(value);
+  }
+
+  public void finalizeReference(REXP ref) throws REngineException, REXPMismatchException {
+    engine.finalizeReference(ref);
+  }
+
+  public REXP getParentEnvironment(REXP env, boolean resolve) throws REngineException, REXPMismatchException {
+    return engine.getParentEnvironment(env, resolve);
+  }
+
+  public REXP newEnvironment(REXP parent, boolean resolve) throws REngineException, REXPMismatchException {
+    return engine.newEnvironment(parent, resolve);
+  }
+
+  public boolean close() {
+    invalidateAll();
+    return engine.close();
+  }
+
+  public boolean supportsReferences() {
+    return engine.supportsReferences();
+  }
+
+  public boolean supportsEnvironments() {
+    return engine.supportsEnvironments();
+  }
+
+  public boolean supportsREPL() {
+    return engine.supportsREPL();
+  }
+
+  public boolean supportsLocking() {
+    return engine.supportsLocking();
+  }
+
+  public int tryLock() {
+    return engine.tryLock();
+  }
+
+  public int lock() {
+    return engine.lock();
+  }
+
+  public void unlock(int lockValue) {
+    engine.unlock(lockValue);
+  }
+}
@@ -517,6 +517,20 @@ public class REXP implements java.io.Serializable {
    * is not a vector
    */
   public static REXP createDataFrame(RList l) throws REXPMismatchException {
+    return createDataFrame(l, null);
+  }
+
+  /**
+   * creates a data frame object from a list object
+   *
+   * @param l a (named) list of vectors ({@link REXPVector} subclasses), each
+   * element corresponds to a column and all elements must have the same length
+   * @param rowNames row names or <code>null</code> for integer row names
+   * @return a data frame object
+   * @throws REXPMismatchException if the list is empty or any of the elements
+   * is not a vector
+   */
+  public static REXP createDataFrame(RList l, String[] rowNames) throws REXPMismatchException {
     if (l == null || l.size() < 1) {
       throw new REXPMismatchException(new REXPList(l), "data frame (must have dim>0)");
     }
@@ -530,7 +544,9 @@ public class REXP implements java.io.Serializable {
                             new REXP[]{
                               new REXPString("data.frame"),
                               new REXPString(l.keys()),
-                              new REXPInteger(new int[]{REXPInteger.NA, -fe.length()})
+                              (rowNames == null)
+                                      ? (REXP) new REXPInteger(new int[]{REXPInteger.NA, -fe.length()})
+                                      : new REXPString(rowNames)
                             },
                             new String[]{
                               "class",
@@ -0,0 +1,141 @@
+package org.rosuda.rengine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * REXPDirectDouble is a vector of double precision floating point values whose
+ * contents live in a (typically direct or memory-mapped) {@link ByteBuffer}
+ * holding the values in little-endian order, i.e. in the form they are
+ * transferred by Rserve. Large vectors kept this way do not occupy the Java
+ * heap.
+ * <p>
+ * The values can be accessed without copying through {@link #get} and
+ * {@link #asDoubleBuffer}. {@link #asDoubles} is supported for compatibility,
+ * but it copies the whole vector onto the heap on every call.
+ */
+public class REXPDirectDouble extends REXPDouble {
+
+  private ByteBuffer data;
+  private DoubleBuffer values;
+
+  /**
+   * create a real vector backed by the given buffer. The remaining bytes of the
+   * buffer (from its position to its limit) are used, the buffer is not copied
+   * and its position is not changed.
+   *
+   * @param buf buffer containing the values in little-endian order
+   */
+  public REXPDirectDouble(ByteBuffer buf) {
+    this(buf, null);
+  }
+
+  public REXPDirectDouble(ByteBuffer buf, REXPList attr) {
+    super(new double[0], attr);
+    data = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    values = data.asDoubleBuffer();
+  }
+
+  public int length() {
+    return values.capacity();
+  }
+
+  /**
+   * returns the value at the given index
+   *
+   * @param index index (0-based)
+   * @return value
+   */
+  public double get(int index) {
+    return values.get(index);
+  }
+
+  /**
+   * returns a view of the values. The view shares its contents with this
+   * vector, no data is copied.
+   *
+   * @return read-only buffer of all values
+   */
+  public DoubleBuffer asDoubleBuffer() {
+    return values.asReadOnlyBuffer();
+  }
+
+  /**
+   * returns a view of the underlying bytes (in little-endian order), no data
+   * is copied
+   *
+   * @return read-only buffer of the encoded values
+   */
+  public ByteBuffer asByteBuffer() {
+    return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public Object asNativeJavaObject() {
+    return asDoubles();
+  }
+
+  /**
+   * returns a copy of the values represented by this vector on the heap
+   */
+  public double[] asDoubles() {
+    double[] d = new double[values.capacity()];
+    values.duplicate().get(d);
+    return d;
+  }
+
+  public double asDouble() throws REXPMismatchException {
+    return values.get(0);
+  }
+
+  public int asInteger() throws REXPMismatchException {
+    return (int) values.get(0);
+  }
+
+  public int[] asIntegers() {
+    int[] a = new int[values.capacity()];
+    int i = 0;
+    while (i < a.length) {
+      a[i] = (int) values.get(i);
+      i++;
+    }
+    return a;
+  }
+
+  public String[] asStrings() {
+    String[] s = new String[values.capacity()];
+    int i = 0;
+    while (i < s.length) {
+      s[i] = "" + values.get(i);
+      i++;
+    }
+    return s;
+  }
+
+  public boolean[] isNA() {
+    boolean a[] = new boolean[values.capacity()];
+    int i = 0;
+    while (i < a.length) {
+      a[i] = isNA(values.get(i));
+      i++;
+    }
+    return a;
+  }
+
+  public String toDebugString() {
+    StringBuffer sb = new StringBuffer(super.toDebugString());
+    sb.setLength(sb.lastIndexOf("{") + 1); // drop the (empty) payload of REXPDouble
+    int i = 0;
+    while (i < values.capacity() && i < maxDebugItems) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(values.get(i));
+      i++;
+    }
+    if (i < values.capacity()) {
+      sb.append(",..");
+    }
+    return sb.toString() + "}";
+  }
+}
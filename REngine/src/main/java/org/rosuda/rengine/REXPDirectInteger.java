@@ -0,0 +1,140 @@
+package org.rosuda.rengine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * REXPDirectInteger is a vector of integer values whose contents live in a
+ * (typically direct or memory-mapped) {@link ByteBuffer} holding the values in
+ * little-endian order, i.e. in the form they are transferred by Rserve. Large
+ * vectors kept this way do not occupy the Java heap.
+ * <p>
+ * The values can be accessed without copying through {@link #get} and
+ * {@link #asIntBuffer}. {@link #asIntegers} is supported for compatibility,
+ * but it copies the whole vector onto the heap on every call.
+ */
+public class REXPDirectInteger extends REXPInteger {
+
+  private ByteBuffer data;
+  private IntBuffer values;
+
+  /**
+   * create an integer vector backed by the given buffer. The remaining bytes of
+   * the buffer (from its position to its limit) are used, the buffer is not
+   * copied and its position is not changed.
+   *
+   * @param buf buffer containing the values in little-endian order
+   */
+  public REXPDirectInteger(ByteBuffer buf) {
+    this(buf, null);
+  }
+
+  public REXPDirectInteger(ByteBuffer buf, REXPList attr) {
+    super(new int[0], attr);
+    data = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    values = data.asIntBuffer();
+  }
+
+  public int length() {
+    return values.capacity();
+  }
+
+  /**
+   * returns the value at the given index
+   *
+   * @param index index (0-based)
+   * @return value
+   */
+  public int get(int index) {
+    return values.get(index);
+  }
+
+  /**
+   * returns a view of the values. The view shares its contents with this
+   * vector, no data is copied.
+   *
+   * @return read-only buffer of all values
+   */
+  public IntBuffer asIntBuffer() {
+    return values.asReadOnlyBuffer();
+  }
+
+  /**
+   * returns a view of the underlying bytes (in little-endian order), no data
+   * is copied
+   *
+   * @return read-only buffer of the encoded values
+   */
+  public ByteBuffer asByteBuffer() {
+    return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public Object asNativeJavaObject() {
+    return asIntegers();
+  }
+
+  /**
+   * returns a copy of the values represented by this vector on the heap
+   */
+  public int[] asIntegers() {
+    int[] a = new int[values.capacity()];
+    values.duplicate().get(a);
+    return a;
+  }
+
+  public int asInteger() throws REXPMismatchException {
+    return values.get(0);
+  }
+
+  public double asDouble() throws REXPMismatchException {
+    return (double) values.get(0);
+  }
+
+  public double[] asDoubles() {
+    double[] d = new double[values.capacity()];
+    int i = 0;
+    while (i < d.length) {
+      d[i] = (double) values.get(i);
+      i++;
+    }
+    return d;
+  }
+
+  public String[] asStrings() {
+    String[] s = new String[values.capacity()];
+    int i = 0;
+    while (i < s.length) {
+      s[i] = "" + values.get(i);
+      i++;
+    }
+    return s;
+  }
+
+  public boolean[] isNA() {
+    boolean a[] = new boolean[values.capacity()];
+    int i = 0;
+    while (i < a.length) {
+      a[i] = (values.get(i) == NA);
+      i++;
+    }
+    return a;
+  }
+
+  public String toDebugString() {
+    StringBuffer sb = new StringBuffer(super.toDebugString());
+    sb.setLength(sb.lastIndexOf("{") + 1); // drop the (empty) payload of REXPInteger
+    int i = 0;
+    while (i < values.capacity() && i < maxDebugItems) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(values.get(i));
+      i++;
+    }
+    if (i < values.capacity()) {
+      sb.append(",..");
+    }
+    return sb.toString() + "}";
+  }
+}
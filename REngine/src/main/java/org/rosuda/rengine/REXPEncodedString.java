@@ -0,0 +1,118 @@
+package org.rosuda.rengine;
+
+/**
+ * REXPEncodedString is a character vector stored as level codes into a table
+ * of distinct values (dictionary encoding). Vectors with many repeated values
+ * take much less memory this way and the strings are only looked up when
+ * {@link #asStrings} is called for the first time.
+ *
+ * @version $Id$
+ */
+public class REXPEncodedString extends REXPString {
+
+  /**
+   * level codes (one-based, NA for missing values)
+   */
+  private int[] codes;
+  /**
+   * distinct values
+   */
+  private String[] levels;
+  /**
+   * decoded strings, created on first use
+   */
+  private String[] strings;
+
+  /**
+   * create a new dictionary-encoded character vector
+   *
+   * @param codes indices into <code>levels</code> (one-based!), NA or
+   * out-of-range codes and <code>null</code> levels stand for NA strings
+   * @param levels distinct values
+   */
+  public REXPEncodedString(int[] codes, String[] levels) {
+    this(codes, levels, null);
+  }
+
+  /**
+   * create a new dictionary-encoded character vector with attributes
+   *
+   * @param codes indices into <code>levels</code> (one-based!)
+   * @param levels distinct values
+   * @param attr attributes
+   */
+  public REXPEncodedString(int[] codes, String[] levels, REXPList attr) {
+    super(null, attr);
+    this.codes = (codes == null) ? new int[0] : codes;
+    this.levels = (levels == null) ? new String[0] : levels;
+  }
+
+  /**
+   * create a new dictionary-encoded character vector from a factor
+   *
+   * @param f factor (of any index base)
+   */
+  public REXPEncodedString(RFactor f) {
+    this(f.asIntegers(1), f.levels());
+  }
+
+  /**
+   * @return level codes (one-based)
+   */
+  public int[] getCodes() {
+    return codes;
+  }
+
+  /**
+   * @return distinct values
+   */
+  public String[] getLevels() {
+    return levels;
+  }
+
+  /**
+   * returns the string at a given index without decoding the whole vector
+   *
+   * @param i index
+   * @return string or <code>null</code> for NA
+   */
+  public String at(int i) {
+    int li = codes[i] - 1;
+    return (li < 0 || li >= levels.length) ? null : levels[li];
+  }
+
+  public RFactor asFactor() {
+    return new RFactor(codes, levels, false, 1);
+  }
+
+  public int length() {
+    return codes.length;
+  }
+
+  public Object asNativeJavaObject() {
+    return asStrings();
+  }
+
+  public String[] asStrings() {
+    if (strings == null) {
+      String[] s = new String[codes.length];
+      int i = 0;
+      while (i < s.length) {
+        s[i] = at(i);
+        i++;
+      }
+      strings = s;
+    }
+    return strings;
+  }
+
+  public boolean[] isNA() {
+    boolean a[] = new boolean[codes.length];
+    int i = 0;
+    while (i < a.length) {
+      a[i] = (at(i) == null);
+      i++;
+    }
+    return a;
+  }
+}
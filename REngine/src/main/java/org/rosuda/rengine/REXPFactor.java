@@ -9,6 +9,10 @@ public class REXPFactor extends REXPInteger {
 
   private String[] levels;
   private RFactor factor;
+  /**
+   * level names of all elements, created on first use
+   */
+  private String[] strings;
 
   /**
    * create a new factor REXP
@@ -85,7 +89,10 @@ public class REXPFactor extends REXPInteger {
   }
 
   public String[] asStrings() {
-    return factor.asStrings();
+    if (strings == null) {
+      strings = factor.asStrings();
+    }
+    return strings;
   }
 
   public Object asNativeJavaObject() {
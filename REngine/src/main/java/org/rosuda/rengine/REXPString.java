@@ -68,16 +68,17 @@ public class REXPString extends REXPVector {
   }
 
   public String toDebugString() {
+    String[] s = asStrings();
     StringBuffer sb = new StringBuffer(super.toDebugString() + "{");
     int i = 0;
-    while (i < payload.length && i < maxDebugItems) {
+    while (i < s.length && i < maxDebugItems) {
       if (i > 0) {
         sb.append(",");
       }
-      sb.append("\"" + payload[i] + "\"");
+      sb.append("\"" + s[i] + "\"");
       i++;
     }
-    if (i < payload.length) {
+    if (i < s.length) {
       sb.append(",..");
     }
     return sb.toString() + "}";
@@ -66,24 +66,65 @@ public class RFactor {
     if (c == null) {
       c = new String[0];
     }
-    Vector lv = new Vector();
     ids = new int[c.length];
+    levels = factorize(c, ids, index_base, c.length);
+  }
+
+  /**
+   * create a new factor variable by factorizing a given string array unless
+   * it has more than the given number of levels. This is useful for deciding
+   * whether a string array is worth encoding as a factor: the array is
+   * scanned only once and the scan stops as soon as there are too many
+   * levels.
+   *
+   * @param c contents
+   * @param index_base base of the level index
+   * @param maxLevels maximal number of levels
+   * @return new factor or <code>null</code> if there would be more than
+   * <code>maxLevels</code> levels
+   */
+  public static RFactor create(String c[], int index_base, int maxLevels) {
+    if (c == null) {
+      c = new String[0];
+    }
+    int[] i = new int[c.length];
+    String[] v = factorize(c, i, index_base, maxLevels);
+    return (v == null) ? null : new RFactor(i, v, false, index_base);
+  }
+
+  /**
+   * computes the level indices of the given strings, levels are created in
+   * the order of appearance
+   *
+   * @return levels or <code>null</code> if there are more than
+   * <code>maxLevels</code>
+   */
+  static String[] factorize(String[] c, int[] ids, int index_base, int maxLevels) {
+    HashMap lv = new HashMap();
+    String[] l = new String[Math.min(16, maxLevels)];
+    int n = 0;
     int i = 0;
     while (i < c.length) {
-      int ix = (c[i] == null) ? -1 : lv.indexOf(c[i]);
-      if (ix < 0 && c[i] != null) {
-        ix = lv.size();
-        lv.add(c[i]);
+      if (c[i] == null) {
+        ids[i] = REXPInteger.NA;
+      } else {
+        Integer ix = (Integer) lv.get(c[i]);
+        if (ix == null) {
+          if (n == maxLevels) {
+            return null;
+          }
+          if (n == l.length) {
+            l = Arrays.copyOf(l, Math.min(n * 2, maxLevels));
+          }
+          ix = Integer.valueOf(n);
+          l[n++] = c[i];
+          lv.put(c[i], ix);
+        }
+        ids[i] = ix.intValue() + index_base;
       }
-      ids[i] = (ix < 0) ? REXPInteger.NA : (ix + index_base);
-      i++;
-    }
-    levels = new String[lv.size()];
-    i = 0;
-    while (i < levels.length) {
-      levels[i] = (String) lv.elementAt(i);
       i++;
     }
+    return (n == l.length) ? l : Arrays.copyOf(l, n);
   }
 
   /**
@@ -19,7 +19,27 @@ import java.util.*;
  */
 public class RList extends Vector implements List {
 
+  /**
+   * lists with at least this many names are looked up by key through a hash
+   * index, shorter ones are simply scanned
+   */
+  static final int INDEX_THRESHOLD = 16;
+
+  /**
+   * the names of the elements. If this vector is modified directly (rather
+   * than through the list methods) the name index of the list may become
+   * stale, {@link #invalidateIndex} must be called in that case.
+   */
   public Vector names;
+  /**
+   * lazily built index mapping each name to its first position,
+   * <code>null</code> if it has to be (re)built
+   */
+  transient HashMap nameIndex;
+  /**
+   * size of <code>names</code> covered by <code>nameIndex</code>
+   */
+  transient int indexedSize;
 
   /**
    * constructs an empty list
@@ -144,13 +164,80 @@ public class RList extends Vector implements List {
     if (names == null) {
       return null;
     }
-    int i = names.indexOf(v);
+    int i = keyIndex(v);
     if (i < 0) {
       return null;
     }
     return (REXP) elementAt(i);
   }
 
+  /**
+   * returns the position of the first element with the given key
+   *
+   * @param key key
+   * @return index of the element or -1 if the list is unnamed or the key not
+   * found
+   */
+  public synchronized int keyIndex(Object key) {
+    return lookupKey(key);
+  }
+
+  int lookupKey(Object key) {
+    Vector n = names;
+    if (n == null) {
+      return -1;
+    }
+    int ns = n.size();
+    if (ns < INDEX_THRESHOLD) {
+      return n.indexOf(key);
+    }
+    HashMap m = nameIndex;
+    if (m == null || indexedSize != ns) {
+      m = new HashMap(ns * 2);
+      int i = ns;
+      while (i > 0) { // backwards so that the first occurrence wins
+        i--;
+        m.put(n.get(i), Integer.valueOf(i));
+      }
+      nameIndex = m;
+      indexedSize = ns;
+    }
+    Integer p = (Integer) m.get(key);
+    if (p == null) {
+      return -1;
+    }
+    int i = p.intValue();
+    Object k = n.get(i);
+    if ((key == null) ? (k == null) : key.equals(k)) {
+      return i;
+    }
+    invalidateIndex();
+    return n.indexOf(key);
+  }
+
+  /**
+   * discards the name index, it is rebuilt by the next lookup by key. This is
+   * done automatically by all methods that modify the list, it only needs to
+   * be called after modifying {@link #names} directly.
+   */
+  public void invalidateIndex() {
+    nameIndex = null;
+  }
+
+  /**
+   * records the key of an element appended at position <code>i</code> in the
+   * name index
+   */
+  void indexAppended(Object key, int i) {
+    HashMap m = nameIndex;
+    if (m != null && indexedSize == i) {
+      if (!m.containsKey(key)) {
+        m.put(key, Integer.valueOf(i));
+      }
+      indexedSize = i + 1;
+    }
+  }
+
   /**
    * get element at the specified position
    *
@@ -194,6 +281,7 @@ public class RList extends Vector implements List {
     if (i < size()) {
       names.set(i, value);
     }
+    invalidateIndex();
   }
 
   /**
@@ -216,16 +304,18 @@ public class RList extends Vector implements List {
 
     // --- overrides that sync names
   public void add(int index, Object element) {
-    super.add(index, element);
+    super.insertElementAt(element, index); // Vector.add(int, Object) would call our insertElementAt
     if (names == null) {
       return;
     }
     names.add(index, null);
+    invalidateIndex();
   }
 
   public boolean add(Object element) {
     super.add(element);
     if (names != null) {
+      indexAppended(null, names.size());
       names.add(null);
     }
     return true;
@@ -238,6 +328,7 @@ public class RList extends Vector implements List {
     }
     int l = size();
     while (names.size() < l) {
+      indexAppended(null, names.size());
       names.add(null);
     }
     return ch;
@@ -252,12 +343,14 @@ public class RList extends Vector implements List {
     while (l-- > 0) {
       names.add(index, null);
     }
+    invalidateIndex();
     return ch;
   }
 
   public void clear() {
-    super.clear();
+    super.removeAllElements(); // Vector.clear() would call our removeAllElements()
     names = null;
+    invalidateIndex();
   }
 
   public Object clone() {
@@ -271,6 +364,7 @@ public class RList extends Vector implements List {
       if (size() == 0) {
         names = null;
       }
+      invalidateIndex();
     }
     return o;
   }
@@ -342,7 +436,7 @@ public class RList extends Vector implements List {
 
     // --- Map interface
   public boolean containsKey(Object key) {
-    return (names == null) ? false : names.contains(key);
+    return keyIndex(key) >= 0;
   }
 
   public boolean containsValue(Object value) {
@@ -379,11 +473,9 @@ public class RList extends Vector implements List {
       add(value);
       return null;
     }
-    if (names != null) {
-      int p = names.indexOf(key);
-      if (p >= 0) {
-        return super.set(p, value);
-      }
+    int p = keyIndex(key);
+    if (p >= 0) {
+      return super.set(p, value);
     }
     int i = size();
     super.add(value);
@@ -391,8 +483,10 @@ public class RList extends Vector implements List {
       names = new Vector(i + 1);
     }
     while (names.size() < i) {
+      indexAppended(null, names.size());
       names.add(null);
     }
+    indexAppended(key, i);
     names.add(key);
     return null;
   }
@@ -455,13 +549,12 @@ public class RList extends Vector implements List {
     if (names == null) {
       return null;
     }
-    int i = names.indexOf(key);
+    int i = keyIndex(key);
     if (i < 0) {
       return null;
     }
     Object o = elementAt(i);
-    removeElementAt(i);
-    names.removeElementAt(i);
+    removeElementAt(i); // also removes the name
     return o;
   }
 
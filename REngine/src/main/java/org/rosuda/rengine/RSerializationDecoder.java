@@ -0,0 +1,319 @@
+package org.rosuda.rengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * decodes R objects from R's own serialization format, i.e. the result of
+ * <code>serialize(x, NULL, version = 2)</code> (XDR format). This lets an
+ * engine transfer a whole object tree in one piece instead of node by node.
+ * <p>
+ * The objects are mapped the same way as by the node-wise resolution of
+ * <code>JRIEngine</code>: factors become {@link REXPFactor}, lists
+ * {@link REXPGenericVector}, pairlists {@link REXPList} and so on; types
+ * without a REXP counterpart become {@link REXPUnknown}. Objects which only
+ * make sense as references (environments, external pointers, byte code) are
+ * not supported and make {@link #decode} fail, so that the caller can fall
+ * back to resolving them node by node.
+ *
+ * @version $Id$
+ */
+public class RSerializationDecoder {
+
+  static final int NILSXP = 0;
+  static final int SYMSXP = 1;
+  static final int LISTSXP = 2;
+  static final int CLOSXP = 3;
+  static final int ENVSXP = 4;
+  static final int PROMSXP = 5;
+  static final int LANGSXP = 6;
+  static final int SPECIALSXP = 7;
+  static final int BUILTINSXP = 8;
+  static final int CHARSXP = 9;
+  static final int LGLSXP = 10;
+  static final int INTSXP = 13;
+  static final int REALSXP = 14;
+  static final int CPLXSXP = 15;
+  static final int STRSXP = 16;
+  static final int DOTSXP = 17;
+  static final int VECSXP = 19;
+  static final int EXPRSXP = 20;
+  static final int RAWSXP = 24;
+  static final int S4SXP = 25;
+
+  // pseudo types used by the serialization only
+  static final int REFSXP = 255;
+  static final int NILVALUE_SXP = 254;
+  static final int UNBOUNDVALUE_SXP = 252;
+  static final int MISSINGARG_SXP = 251;
+  static final int ATTRLANGSXP = 240;
+  static final int ATTRLISTSXP = 239;
+
+  static final int IS_OBJECT = 1 << 8;
+  static final int HAS_ATTR = 1 << 9;
+  static final int HAS_TAG = 1 << 10;
+
+  // encoding flags of CHARSXPs (in the "levels" part of the flags)
+  static final int BYTES_MASK = 1 << 1;
+  static final int LATIN1_MASK = 1 << 2;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  ByteBuffer bb;
+  /**
+   * symbols read so far, referenced by later occurrences
+   */
+  ArrayList refs = new ArrayList();
+
+  /**
+   * @param buf serialized object
+   */
+  public RSerializationDecoder(byte[] buf) {
+    this(buf, 0, buf.length);
+  }
+
+  /**
+   * @param buf buffer containing the serialized object
+   * @param off offset of the object
+   * @param len length of the object
+   */
+  public RSerializationDecoder(byte[] buf, int off, int len) {
+    bb = ByteBuffer.wrap(buf, off, len); // big-endian, as XDR
+  }
+
+  /**
+   * decodes the object
+   *
+   * @return decoded object
+   * @throws IOException if the data is not in the supported format, is
+   * truncated or contains objects which cannot be decoded
+   */
+  public REXP decode() throws IOException {
+    try {
+      if (bb.get() != 'X' || bb.get() != '\n') {
+        throw new IOException("only the XDR serialization format is supported");
+      }
+      int version = bb.getInt();
+      bb.getInt(); // R version which wrote the data
+      bb.getInt(); // minimal R version to read it
+      if (version == 3) {
+        bb.position(bb.position() + bb.getInt()); // native encoding
+      } else if (version != 2) {
+        throw new IOException("unsupported serialization version " + version);
+      }
+      return readItem();
+    } catch (RuntimeException e) { // BufferUnderflowException, bad lengths, ...
+      throw new IOException("invalid serialized data: " + e);
+    }
+  }
+
+  REXP readItem() throws IOException {
+    return readItem(bb.getInt());
+  }
+
+  REXP readItem(int flags) throws IOException {
+    int type = flags & 0xff;
+    switch (type) {
+      case NILVALUE_SXP:
+      case UNBOUNDVALUE_SXP:
+        return new REXPNull();
+      case MISSINGARG_SXP:
+        return new REXPSymbol("");
+      case REFSXP: {
+        int i = flags >> 8;
+        if (i == 0) {
+          i = bb.getInt();
+        }
+        if (i < 1 || i > refs.size()) {
+          throw new IOException("invalid reference " + i);
+        }
+        return (REXP) refs.get(i - 1);
+      }
+      case SYMSXP: {
+        REXP s = new REXPSymbol(readString(bb.getInt()));
+        refs.add(s);
+        return s;
+      }
+      case LISTSXP:
+      case LANGSXP:
+      case ATTRLISTSXP:
+      case ATTRLANGSXP:
+        return readPairList(flags);
+      case SPECIALSXP:
+      case BUILTINSXP:
+        bb.position(bb.position() + bb.getInt()); // name of the primitive
+        return new REXPUnknown(type);
+      case S4SXP:
+        return new REXPS4(readAttributes(flags));
+    }
+    if (type != STRSXP && type != INTSXP && type != REALSXP && type != LGLSXP && type != RAWSXP
+            && type != CPLXSXP && type != VECSXP && type != EXPRSXP) {
+      throw new IOException("objects of type " + type + " cannot be decoded");
+    }
+    int n = readLength();
+    switch (type) {
+      case STRSXP: {
+        String[] s = new String[n];
+        for (int i = 0; i < n; i++) {
+          s[i] = readString(bb.getInt());
+        }
+        return new REXPString(s, readAttributes(flags));
+      }
+      case INTSXP: {
+        int[] v = new int[n];
+        bb.asIntBuffer().get(v);
+        bb.position(bb.position() + n * 4);
+        REXPList attr = readAttributes(flags);
+        REXP lev = (attr == null) ? null : attr.asList().at("levels");
+        if (lev instanceof REXPString && inherits(attr, "factor")) {
+          return new REXPFactor(v, ((REXPString) lev).asStrings(), attr);
+        }
+        return new REXPInteger(v, attr);
+      }
+      case REALSXP: {
+        double[] v = new double[n];
+        bb.asDoubleBuffer().get(v);
+        bb.position(bb.position() + n * 8);
+        return new REXPDouble(v, readAttributes(flags));
+      }
+      case LGLSXP: {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+          int v = bb.getInt();
+          b[i] = (v == 0 || v == 1) ? (byte) v : REXPLogical.NA;
+        }
+        return new REXPLogical(b, readAttributes(flags));
+      }
+      case RAWSXP: {
+        byte[] b = new byte[n];
+        bb.get(b);
+        return new REXPRaw(b, readAttributes(flags));
+      }
+      case CPLXSXP:
+        bb.position(bb.position() + n * 16);
+        return new REXPUnknown(type, readAttributes(flags));
+      case VECSXP:
+      case EXPRSXP: {
+        REXP[] v = new REXP[n];
+        for (int i = 0; i < n; i++) {
+          v[i] = readItem();
+        }
+        REXPList attr = readAttributes(flags);
+        if (type == EXPRSXP) {
+          return new REXPUnknown(type, attr);
+        }
+        REXP names = (attr == null) ? null : attr.asList().at("names");
+        RList l = (names instanceof REXPString) ? new RList(v, ((REXPString) names).asStrings()) : new RList(v);
+        return new REXPGenericVector(l, attr);
+      }
+    }
+    throw new IOException("objects of type " + type + " cannot be decoded");
+  }
+
+  /**
+   * reads a pairlist or language object; the list is read iteratively, the
+   * recursion only occurs at the value level
+   */
+  REXP readPairList(int flags) throws IOException {
+    int type = flags & 0xff;
+    boolean lang = (type == LANGSXP || type == ATTRLANGSXP);
+    REXPList attr = null;
+    RList l = new RList();
+    boolean head = true;
+    while (true) {
+      type = flags & 0xff;
+      if (type != LISTSXP && type != LANGSXP && type != ATTRLISTSXP && type != ATTRLANGSXP) {
+        if (type != NILVALUE_SXP) {
+          throw new IOException("dotted pairlists cannot be decoded");
+        }
+        break;
+      }
+      REXPList a = readAttributes((type == ATTRLISTSXP || type == ATTRLANGSXP) ? (flags | HAS_ATTR) : flags);
+      if (head) {
+        attr = a;
+        head = false;
+      }
+      String name = null;
+      if ((flags & HAS_TAG) != 0) {
+        REXP tag = readItem();
+        name = (tag instanceof REXPSymbol) ? ((REXPSymbol) tag).asString() : null;
+      }
+      REXP val = readItem();
+      if (name == null) {
+        l.add(val);
+      } else {
+        l.put(name, val);
+      }
+      flags = bb.getInt();
+    }
+    return lang ? new REXPLanguage(l, attr) : new REXPList(l, attr);
+  }
+
+  /**
+   * reads the attributes of an object if its flags say there are any
+   *
+   * @return attributes or <code>null</code>
+   */
+  REXPList readAttributes(int flags) throws IOException {
+    if ((flags & HAS_ATTR) == 0) {
+      return null;
+    }
+    REXP a = readItem();
+    if (!(a instanceof REXPList) || ((REXPList) a).asList().size() == 0) {
+      return null;
+    }
+    return (REXPList) a;
+  }
+
+  static boolean inherits(REXPList attr, String cl) {
+    REXP c = attr.asList().at("class");
+    if (!(c instanceof REXPString)) {
+      return false;
+    }
+    String[] s = ((REXPString) c).asStrings();
+    for (int i = 0; i < s.length; i++) {
+      if (cl.equals(s[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int readLength() throws IOException {
+    int n = bb.getInt();
+    if (n == -1) { // long vector: upper and lower 32 bits
+      int hi = bb.getInt();
+      n = bb.getInt();
+      if (hi != 0 || n < 0) {
+        throw new IOException("long vectors are not supported");
+      }
+    }
+    if (n < 0) {
+      throw new IOException("invalid length " + n);
+    }
+    return n;
+  }
+
+  /**
+   * reads a CHARSXP
+   *
+   * @param flags flags of the CHARSXP
+   * @return string or <code>null</code> for <code>NA</code>
+   */
+  String readString(int flags) throws IOException {
+    if ((flags & 0xff) != CHARSXP) {
+      throw new IOException("string expected, found type " + (flags & 0xff));
+    }
+    int len = bb.getInt();
+    if (len == -1) {
+      return null;
+    }
+    int levels = flags >> 12;
+    String s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, ((levels & (LATIN1_MASK | BYTES_MASK)) != 0) ? LATIN1 : UTF8);
+    bb.position(bb.position() + len);
+    return s;
+  }
+}
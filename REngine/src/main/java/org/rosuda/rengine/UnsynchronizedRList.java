@@ -0,0 +1,130 @@
+package org.rosuda.rengine;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * variant of {@link RList} for use by a single thread. The frequently used
+ * read accessors (size, element access, key lookup and iteration) work on the
+ * underlying array directly, without acquiring the monitor like the
+ * synchronized {@link java.util.Vector} methods do. The list can be used
+ * anywhere an <code>RList</code> is expected, but it must not be shared
+ * between threads without external synchronization.
+ *
+ * @version $Id$
+ */
+public class UnsynchronizedRList extends RList {
+
+  /**
+   * constructs an empty list
+   */
+  public UnsynchronizedRList() {
+    super();
+  }
+
+  /**
+   * constructs an empty list with the given capacity
+   *
+   * @param initSize initial capacity
+   * @param hasNames whether the list is named
+   */
+  public UnsynchronizedRList(int initSize, boolean hasNames) {
+    super(initSize, hasNames);
+  }
+
+  /**
+   * constructs an initialized, named list
+   *
+   * @param contents - an array of {@link REXP}s to use as contents of this list
+   * @param names - an array of {@link String}s to use as names (can be
+   * <code>null</code>)
+   */
+  public UnsynchronizedRList(REXP[] contents, String[] names) {
+    super(contents, names);
+  }
+
+  /**
+   * constructs an initialized, named list
+   *
+   * @param contents - a {@link Collection} of {@link REXP}s to use as contents
+   * of this list
+   * @param names - a {@link Collection} of {@link String}s to use as names (can
+   * be <code>null</code>)
+   */
+  public UnsynchronizedRList(Collection contents, Collection names) {
+    super(contents, names);
+  }
+
+  public int size() {
+    return elementCount;
+  }
+
+  public boolean isEmpty() {
+    return elementCount == 0;
+  }
+
+  public Object get(int index) {
+    if (index >= elementCount) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return elementData[index];
+  }
+
+  public Object elementAt(int index) {
+    return get(index);
+  }
+
+  public REXP at(int i) {
+    return (i >= 0 && i < elementCount) ? (REXP) elementData[i] : null;
+  }
+
+  public int keyIndex(Object key) {
+    return lookupKey(key);
+  }
+
+  public Iterator iterator() {
+    return new Iterator() {
+      int i = 0;
+      int last = -1;
+      int expectedModCount = modCount;
+
+      public boolean hasNext() {
+        return i < elementCount;
+      }
+
+      public Object next() {
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (i >= elementCount) {
+          throw new NoSuchElementException();
+        }
+        last = i;
+        return elementData[i++];
+      }
+
+      public void remove() {
+        if (last < 0) {
+          throw new IllegalStateException();
+        }
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        UnsynchronizedRList.this.remove(last);
+        i = last;
+        last = -1;
+        expectedModCount = modCount;
+      }
+    };
+  }
+
+  public Object clone() {
+    return new UnsynchronizedRList(this, names);
+  }
+
+  public String toString() {
+    return "Unsynchronized" + super.toString();
+  }
+}
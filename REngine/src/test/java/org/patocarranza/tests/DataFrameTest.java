@@ -7,6 +7,11 @@ import java.util.Arrays;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import org.patocarranza.dataframe.DataFrame;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.RList;
 
 /**
  * 
@@ -129,4 +134,42 @@ public class DataFrameTest {
         assertTrue(dataFrame.getObject(8,2).equals(3));*/
     }
 
+    @Test
+    public void typedColumnsFromREXPTest() throws Exception {
+        double[] d = new double[] {1.5, REXPDouble.NA, 3.0};
+        int[] codes = new int[] {2, 1, 2};
+        RList l = new RList(new REXP[] {
+                    new REXPDouble(d),
+                    new REXPFactor(codes, new String[] {"a", "b"}),
+                    new REXPLogical(new byte[] {REXPLogical.TRUE, REXPLogical.FALSE, REXPLogical.NA}) },
+                new String[] {"x", "f", "l"});
+        DataFrame dataFrame = new DataFrame(REXP.createDataFrame(l));
+
+        assertEquals(3, dataFrame.getNumberOfColumns());
+        assertEquals(3, dataFrame.getNumberOfRows());
+        assertEquals(DataFrame.TYPE_DOUBLE, dataFrame.getColumnType(0));
+        assertEquals(DataFrame.TYPE_FACTOR, dataFrame.getColumnType(1));
+        assertTrue(dataFrame.getDoubleColumn(0) == d);
+        assertTrue(dataFrame.getFactorCodes(1) == codes);
+        assertEquals("b", dataFrame.getObject(1, 0));
+        assertEquals(null, dataFrame.getObject(0, 1));
+        assertEquals(Boolean.FALSE, dataFrame.getObject(2, 1));
+        assertEquals("3", dataFrame.getRowNames()[2]);
+    }
+
+    @Test
+    public void toREXPTest() throws Exception {
+        DataFrame dataFrame = new DataFrame(2, new String[] {"r1", "r2"})
+                .addColumn("n", new int[] {1, 2})
+                .addColumn("s", new String[] {"a", "b"});
+        REXP x = dataFrame.toREXP();
+
+        assertTrue(x.inherits("data.frame"));
+        assertTrue(Arrays.equals(new String[] {"r1", "r2"}, x.getAttribute("row.names").asStrings()));
+        DataFrame back = new DataFrame(x);
+        assertEquals(DataFrame.TYPE_INT, back.getColumnType(0));
+        assertTrue(Arrays.equals(new int[] {1, 2}, back.getIntColumn(0)));
+        assertEquals("b", back.getStringColumn(1)[1]);
+    }
+
 }
\ No newline at end of file
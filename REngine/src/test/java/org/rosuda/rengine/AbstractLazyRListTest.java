@@ -0,0 +1,115 @@
+package org.rosuda.rengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * release of the decoding source of a lazy list used by several threads
+ */
+public class AbstractLazyRListTest {
+
+  /**
+   * list decoding its placeholders (strings) from a source which is released
+   * once all elements are decoded. The decode of one thread can be held up.
+   */
+  static class SlowList extends AbstractLazyRList {
+
+    Object source = new Object();
+    int released = 0;
+    Thread slow;
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch proceed = new CountDownLatch(1);
+
+    SlowList(String[] placeholders) {
+      super(Arrays.asList(placeholders), null);
+    }
+
+    protected REXP decode(Object placeholder) {
+      Object src = source;
+      if (Thread.currentThread() == slow) {
+        entered.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException("interrupted");
+        }
+        src = source; // the source must still be there
+      }
+      if (src == null) {
+        throw new IllegalStateException("source released while decoding " + placeholder);
+      }
+      return new REXPString((String) placeholder);
+    }
+
+    protected void allDecoded() {
+      source = null;
+      released++;
+    }
+  }
+
+  @Test
+  public void sourceOutlivesConcurrentDecodes() throws Exception {
+    final SlowList l = new SlowList(new String[]{"a"});
+    final Object[] res = new Object[1];
+    l.slow = new Thread() {
+      public void run() {
+        try {
+          res[0] = l.get(0);
+        } catch (RuntimeException e) {
+          res[0] = e;
+        }
+      }
+    };
+    l.slow.start();
+    l.entered.await();
+    // the same (last) element is decoded by this thread in the meantime
+    assertEquals("a", ((REXP) l.get(0)).asString());
+    assertEquals(0, l.getPendingCount());
+    assertNotNull(l.source);
+    assertEquals(0, l.released);
+    l.proceed.countDown();
+    l.slow.join();
+    assertEquals("a", ((REXP) res[0]).asString());
+    assertNull(l.source);
+    assertEquals(1, l.released);
+  }
+
+  @Test
+  public void clearWhileDecoding() throws Exception {
+    final SlowList l = new SlowList(new String[]{"a", "b"});
+    l.slow = new Thread() {
+      public void run() {
+        try {
+          l.get(1);
+        } catch (ArrayIndexOutOfBoundsException e) { // the list is empty by now
+        }
+      }
+    };
+    l.slow.start();
+    l.entered.await();
+    l.clear();
+    assertEquals(0, l.size());
+    assertNotNull(l.source);
+    l.proceed.countDown();
+    l.slow.join();
+    assertNull(l.source);
+    assertEquals(1, l.released);
+  }
+
+  @Test
+  public void decodesOnAccess() throws Exception {
+    SlowList l = new SlowList(new String[]{"a", "b", "c"});
+    assertEquals(3, l.getPendingCount());
+    assertEquals("b", l.at(1).asString());
+    assertEquals(2, l.getPendingCount());
+    assertEquals(3, l.toArray().length); // decodes the rest
+    assertEquals(0, l.getPendingCount());
+    assertEquals(1, l.released);
+  }
+}
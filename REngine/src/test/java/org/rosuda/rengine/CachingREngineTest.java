@@ -0,0 +1,229 @@
+package org.rosuda.rengine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * result cache in front of an engine which counts its evaluations
+ */
+public class CachingREngineTest {
+
+  /**
+   * engine understanding just <code>x</code>, <code>x &lt;- number</code>,
+   * <code>sum(x)</code>, <code>rep(n)</code> and <code>rnorm(1)</code>
+   */
+  static class CountingEngine extends REngine {
+
+    HashMap vars = new HashMap();
+    int evals = 0;
+
+    public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
+      evals++;
+      if (vars.containsKey(text)) {
+        return (REXP) vars.get(text);
+      }
+      if (text.indexOf(" <- ") > 0) {
+        REXP v = new REXPDouble(Double.parseDouble(text.substring(text.indexOf(" <- ") + 4)));
+        vars.put(text.substring(0, text.indexOf(" <- ")), v);
+        return v;
+      }
+      if (text.equals("rnorm(1)")) {
+        return new REXPDouble(Math.random());
+      }
+      if (text.startsWith("sum(") && vars.containsKey(text.substring(4, text.length() - 1))) {
+        double[] d = ((REXP) vars.get(text.substring(4, text.length() - 1))).asDoubles();
+        double s = 0;
+        for (int i = 0; i < d.length; i++) {
+          s += d[i];
+        }
+        return new REXPDouble(s);
+      }
+      if (text.startsWith("rep(")) {
+        return new REXPDouble(new double[Integer.parseInt(text.substring(4, text.length() - 1))]);
+      }
+      throw new REngineException(this, "cannot evaluate " + text);
+    }
+
+    public void assign(String symbol, REXP value, REXP env) {
+      vars.put(symbol, value);
+    }
+
+    public REXP parse(String text, boolean resolve) {
+      return null;
+    }
+
+    public REXP eval(REXP what, REXP where, boolean resolve) {
+      return null;
+    }
+
+    public REXP get(String symbol, REXP env, boolean resolve) {
+      return (REXP) vars.get(symbol);
+    }
+
+    public REXP resolveReference(REXP ref) {
+      return ref;
+    }
+
+    public REXP createReference(REXP value) {
+      return value;
+    }
+
+    public void finalizeReference(REXP ref) {
+    }
+
+    public REXP getParentEnvironment(REXP env, boolean resolve) {
+      return null;
+    }
+
+    public REXP newEnvironment(REXP parent, boolean resolve) {
+      return null;
+    }
+  }
+
+  @Test
+  public void assignmentsInvalidateDependentResults() throws Exception {
+    CountingEngine r = new CountingEngine();
+    CachingREngine eng = new CachingREngine(r, 1 << 20, CachingREngine.POLICY_LRU);
+    eng.assign("x", new double[]{1, 2, 3});
+    eng.assign("y", new double[]{10});
+
+    REXP s = eng.parseAndEval("sum(x)");
+    assertEquals(6.0, s.asDouble(), 0.0);
+    assertSame(s, eng.parseAndEval("sum(x)"));
+    assertEquals(10.0, eng.parseAndEval("sum(y)").asDouble(), 0.0);
+    assertEquals(2, r.evals);
+    assertEquals(1, eng.getHitCount());
+    assertEquals(2, eng.getMissCount());
+
+    // same content again keeps the result, other content drops it
+    eng.assign("x", new double[]{1, 2, 3});
+    eng.parseAndEval("sum(x)");
+    assertEquals(2, r.evals);
+    eng.assign("x", new double[]{4, 5});
+    assertEquals(9.0, eng.parseAndEval("sum(x)").asDouble(), 0.0);
+    assertEquals(3, r.evals);
+    assertEquals(1, eng.getInvalidationCount());
+
+    // unrelated results survive
+    eng.parseAndEval("sum(y)");
+    assertEquals(3, r.evals);
+    assertEquals(2, eng.getSize());
+  }
+
+  @Test
+  public void evictionByWeight() throws Exception {
+    CountingEngine r = new CountingEngine();
+    // room for two vectors of 1000 doubles
+    CachingREngine eng = new CachingREngine(r, 17000, CachingREngine.POLICY_LFU);
+    eng.parseAndEval("rep(1000)");
+    eng.parseAndEval("rep(1000)");
+    eng.parseAndEval("rep(999)");
+    assertEquals(2, eng.getSize());
+    eng.parseAndEval("rep(998)"); // evicts rep(999) which was used less often than rep(1000)
+    assertEquals(2, eng.getSize());
+    assertEquals(1, eng.getEvictionCount());
+    assertNotNull(eng.parseAndEval("rep(1000)"));
+    assertEquals(3, r.evals);
+    eng.parseAndEval("rep(999)");
+    assertEquals(4, r.evals);
+
+    // results larger than the cache are not kept
+    eng.parseAndEval("rep(5000)");
+    eng.parseAndEval("rep(5000)");
+    assertEquals(6, r.evals);
+    assertTrue(eng.getWeight() <= 17000);
+  }
+
+  @Test
+  public void expirationAndErrors() throws Exception {
+    CountingEngine r = new CountingEngine();
+    CachingREngine eng = new CachingREngine(r, 1 << 20, CachingREngine.POLICY_LRU);
+    eng.setTimeToLive(1, TimeUnit.NANOSECONDS);
+    eng.parseAndEval("rep(3)");
+    Thread.sleep(1);
+    eng.parseAndEval("rep(3)");
+    assertEquals(2, r.evals);
+    assertEquals(1, eng.getExpirationCount());
+
+    // failures are not cached
+    for (int i = 0; i < 2; i++) {
+      try {
+        eng.parseAndEval("sum(z)");
+      } catch (REngineException e) {
+      }
+    }
+    assertEquals(4, r.evals);
+    assertEquals(0, eng.getHitCount());
+    assertNull(eng.get("z", null, true));
+  }
+
+  @Test
+  public void collidingStrings() throws Exception {
+    CountingEngine r = new CountingEngine();
+    CachingREngine eng = new CachingREngine(r, 1 << 20, CachingREngine.POLICY_LRU);
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    eng.assign("x", "Aa");
+    assertEquals("Aa", eng.parseAndEval("x").asString());
+    eng.assign("x", "BB");
+    assertEquals("BB", eng.parseAndEval("x").asString());
+    eng.assign("x", new String[]{"Aa", "BB"});
+    eng.parseAndEval("x");
+    eng.assign("x", new String[]{"BB", "Aa"});
+    assertEquals("BB", eng.parseAndEval("x").asStrings()[0]);
+    assertEquals(4, r.evals);
+  }
+
+  @Test
+  public void sideEffectsAreNotCached() throws Exception {
+    CountingEngine r = new CountingEngine();
+    CachingREngine eng = new CachingREngine(r, 1 << 20, CachingREngine.POLICY_LRU);
+    eng.parseAndEval("x <- 1");
+    eng.parseAndEval("x <- 1");
+    assertEquals(2, r.evals);
+    assertEquals(1.0, eng.parseAndEval("sum(x)").asDouble(), 0.0);
+    eng.parseAndEval("sum(x)");
+    assertEquals(3, r.evals);
+
+    // the assignment drops the results depending on x
+    eng.parseAndEval("x <- 2");
+    assertEquals(2.0, eng.parseAndEval("sum(x)").asDouble(), 0.0);
+    assertEquals(5, r.evals);
+
+    eng.parseAndEval("rnorm(1)");
+    eng.parseAndEval("rnorm(1)");
+    assertEquals(7, r.evals);
+    assertEquals(2, eng.getMissCount());
+  }
+
+  @Test
+  public void impureExpressions() {
+    assertTrue(CachingREngine.isPure("predict(fit, newdata = x, type = \"response\")"));
+    assertTrue(CachingREngine.isPure("x[x == 1 & y <= -2] # x <- 1"));
+    assertTrue(CachingREngine.isPure("paste(\"a <- b\", rep(1, 3))"));
+    assertFalse(CachingREngine.isPure("x <- x + 1"));
+    assertFalse(CachingREngine.isPure("x<<-1"));
+    assertFalse(CachingREngine.isPure("f(x) -> y"));
+    assertFalse(CachingREngine.isPure("a = 1"));
+    assertFalse(CachingREngine.isPure("{ a = 1; a }"));
+    assertFalse(CachingREngine.isPure("base::assign(\"x\", 1)"));
+    assertFalse(CachingREngine.isPure("set.seed(1); rnorm(5)"));
+    assertFalse(CachingREngine.isPure("mean(runif(10))"));
+    assertFalse(CachingREngine.isPure("Sys.time()"));
+    assertFalse(CachingREngine.isPure("nrow(read.csv(\"data.csv\"))"));
+  }
+
+  @Test
+  public void symbolsOfExpressions() {
+    assertArrayEquals(new String[]{"predict", "fit", "newdata", "x", "my var", ".y"},
+            CachingREngine.symbols("predict(fit, newdata = x[, \"col\"]) + `my var` * .y + 1e3 # comment z"));
+  }
+}
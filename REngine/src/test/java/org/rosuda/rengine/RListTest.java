@@ -0,0 +1,104 @@
+package org.rosuda.rengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import org.junit.Test;
+
+/**
+ * key lookups in wide lists going through the name index
+ */
+public class RListTest {
+
+  static RList wide(RList l, int n) {
+    for (int i = 0; i < n; i++) {
+      l.put("v" + i, new REXPInteger(i));
+    }
+    return l;
+  }
+
+  static int value(RList l, String key) throws REXPMismatchException {
+    return l.at(key).asInteger();
+  }
+
+  void checkIndex(RList l) throws REXPMismatchException {
+    assertEquals(57, value(l, "v57"));
+    assertNull(l.at("nope"));
+
+    // duplicate names resolve to the first occurrence
+    l.add(new REXPInteger(-1));
+    l.setKeyAt(l.size() - 1, "v3");
+    assertEquals(3, value(l, "v3"));
+
+    l.remove(0);
+    assertNull(l.at("v0"));
+    assertEquals(1, l.keyIndex("v2"));
+    assertEquals(99, value(l, "v99"));
+
+    l.setKeyAt(1, "renamed");
+    assertEquals(1, value(l, "v1"));
+    assertEquals(2, value(l, "renamed"));
+    assertFalse(l.containsKey("v2"));
+
+    l.add(0, new REXPInteger(100));
+    assertEquals(99, value(l, "v99"));
+    assertEquals(1, l.keyIndex("v1"));
+
+    l.put("v99", new REXPInteger(-99));
+    assertEquals(-99, value(l, "v99"));
+    l.put("new", new REXPInteger(1000));
+    assertEquals(1000, value(l, "new"));
+
+    assertEquals(5, ((REXP) l.removeByKey("v5")).asInteger());
+    assertNull(l.at("v5"));
+    assertEquals(l.size(), l.names.size());
+
+    // direct modification of the names
+    l.names.set(10, "direct");
+    l.invalidateIndex();
+    assertEquals(10, l.keyIndex("direct"));
+  }
+
+  @Test
+  public void nameIndex() throws Exception {
+    checkIndex(wide(new RList(), 100));
+  }
+
+  @Test
+  public void unsynchronizedNameIndex() throws Exception {
+    checkIndex(wide(new UnsynchronizedRList(), 100));
+  }
+
+  @Test
+  public void unsynchronizedIteration() throws Exception {
+    RList l = wide(new UnsynchronizedRList(), 20);
+    int n = 0;
+    Iterator it = l.iterator();
+    while (it.hasNext()) {
+      REXP x = (REXP) it.next();
+      if (x.asInteger() % 2 == 1) {
+        it.remove();
+      }
+      n++;
+    }
+    assertEquals(20, n);
+    assertEquals(10, l.size());
+    assertEquals(10, l.names.size());
+    assertSame(l.at(1), l.at("v2"));
+    assertTrue(l.clone() instanceof UnsynchronizedRList);
+  }
+
+  @Test
+  public void clear() throws Exception {
+    RList l = wide(new RList(), 10);
+    l.clear();
+    assertEquals(0, l.size());
+    assertNull(l.at("v1"));
+    l.put("a", new REXPInteger(1));
+    assertEquals(1, l.at("a").asInteger());
+  }
+}
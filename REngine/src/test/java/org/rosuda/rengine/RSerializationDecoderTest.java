@@ -0,0 +1,176 @@
+package org.rosuda.rengine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * objects serialized the way R does it (XDR, version 2)
+ */
+public class RSerializationDecoderTest {
+
+  static final int HAS_ATTR = 1 << 9, HAS_TAG = 1 << 10, IS_OBJECT = 1 << 8;
+  static final int UTF8 = 1 << 3 << 12, ASCII = 1 << 6 << 12;
+  static final int NIL = 254;
+
+  ByteArrayOutputStream bo = new ByteArrayOutputStream();
+  DataOutputStream os = new DataOutputStream(bo);
+
+  RSerializationDecoderTest header() throws IOException {
+    os.writeBytes("X\n");
+    os.writeInt(2);
+    os.writeInt(0x40300);
+    os.writeInt(0x20300);
+    return this;
+  }
+
+  void chars(String s, int enc) throws IOException {
+    if (s == null) {
+      os.writeInt(9);
+      os.writeInt(-1);
+      return;
+    }
+    byte[] b = s.getBytes("UTF-8");
+    os.writeInt(9 | enc);
+    os.writeInt(b.length);
+    os.write(b);
+  }
+
+  void strings(String... s) throws IOException {
+    os.writeInt(16);
+    os.writeInt(s.length);
+    for (String x : s) {
+      chars(x, ASCII);
+    }
+  }
+
+  /**
+   * tag of a pairlist node: the first occurrence of a symbol is written in
+   * full, later ones as references
+   */
+  void tag(String name, int ref) throws IOException {
+    if (ref > 0) {
+      os.writeInt(255 | (ref << 8));
+    } else {
+      os.writeInt(1);
+      chars(name, ASCII);
+    }
+  }
+
+  REXP decode() throws IOException {
+    return new RSerializationDecoder(bo.toByteArray()).decode();
+  }
+
+  @Test
+  public void decodesDataFrame() throws Exception {
+    // data.frame(a = 1:3, b = c("x", NA, "\u00e9"), f = factor(c("u", "v", "u")))
+    header();
+    os.writeInt(19 | HAS_ATTR | IS_OBJECT);
+    os.writeInt(3);
+    os.writeInt(13);
+    os.writeInt(3);
+    os.writeInt(1);
+    os.writeInt(2);
+    os.writeInt(3);
+    os.writeInt(16);
+    os.writeInt(3);
+    chars("x", ASCII);
+    chars(null, 0);
+    chars("\u00e9", UTF8);
+    os.writeInt(13 | HAS_ATTR | IS_OBJECT);
+    os.writeInt(3);
+    os.writeInt(1);
+    os.writeInt(2);
+    os.writeInt(1);
+    os.writeInt(2 | HAS_TAG); // attributes of the factor
+    tag("levels", 0);
+    strings("u", "v");
+    os.writeInt(2 | HAS_TAG);
+    tag("class", 0);
+    strings("factor");
+    os.writeInt(NIL);
+    os.writeInt(2 | HAS_TAG); // attributes of the data frame
+    tag("names", 0);
+    strings("a", "b", "f");
+    os.writeInt(2 | HAS_TAG);
+    tag("class", 2);
+    strings("data.frame");
+    os.writeInt(2 | HAS_TAG);
+    tag("row.names", 0);
+    os.writeInt(13);
+    os.writeInt(2);
+    os.writeInt(REXPInteger.NA);
+    os.writeInt(-3);
+    os.writeInt(NIL);
+
+    REXP x = decode();
+    assertTrue(x instanceof REXPGenericVector);
+    RList l = x.asList();
+    assertEquals(3, l.size());
+    assertArrayEquals(new int[]{1, 2, 3}, l.at("a").asIntegers());
+    String[] b = l.at("b").asStrings();
+    assertNull(b[1]);
+    assertEquals("\u00e9", b[2]);
+    assertTrue(l.at("f") instanceof REXPFactor);
+    assertArrayEquals(new String[]{"u", "v", "u"}, l.at("f").asStrings());
+    assertTrue(x.inherits("data.frame"));
+    assertArrayEquals(new int[]{REXPInteger.NA, -3}, x.getAttribute("row.names").asIntegers());
+  }
+
+  @Test
+  public void decodesPairListsAndLanguage() throws Exception {
+    // pairlist(a = c(1.5, NA), b = c(TRUE, NA)) and quote(f(a))
+    header();
+    os.writeInt(2 | HAS_TAG);
+    tag("a", 0);
+    os.writeInt(14);
+    os.writeInt(2);
+    os.writeDouble(1.5);
+    os.writeLong(0x7ff00000000007a2L);
+    os.writeInt(2 | HAS_TAG);
+    tag("b", 0);
+    os.writeInt(10);
+    os.writeInt(2);
+    os.writeInt(1);
+    os.writeInt(REXPInteger.NA);
+    os.writeInt(2 | HAS_TAG);
+    tag("call", 0);
+    os.writeInt(6);
+    tag("f", 0);
+    os.writeInt(2);
+    tag("a", 1);
+    os.writeInt(NIL);
+    os.writeInt(NIL);
+
+    REXP x = decode();
+    assertTrue(x instanceof REXPList);
+    RList l = x.asList();
+    assertEquals(1.5, l.at("a").asDoubles()[0], 0.0);
+    assertTrue(REXPDouble.isNA(l.at("a").asDoubles()[1]));
+    assertTrue(((REXPLogical) l.at("b")).isNA()[1]);
+    REXP call = l.at("call");
+    assertTrue(call instanceof REXPLanguage);
+    assertEquals("f", call.asList().at(0).asString());
+    assertEquals("a", call.asList().at(1).asString());
+  }
+
+  @Test
+  public void rejectsEnvironments() throws Exception {
+    header();
+    os.writeInt(19);
+    os.writeInt(1);
+    os.writeInt(253); // R_GlobalEnv
+    try {
+      decode();
+      fail("environment decoded");
+    } catch (IOException e) {
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.rosuda.rserve;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * asynchronous Rserve client. All connections created by one client share a
+ * single I/O thread which multiplexes them using a NIO selector, so any number
+ * of requests on any number of connections (to one or more Rserve instances)
+ * can be in flight without tying up a thread each. Requests are issued through
+ * {@link RAsyncConnection} objects and return <code>CompletableFuture</code>s.
+ * <pre>
+ * RAsyncClient client = new RAsyncClient();
+ * RAsyncConnection c = client.connect("localhost", 6311).get();
+ * c.eval("mean(rnorm(1e6))").thenAccept(x -&gt; ...);
+ * </pre>
+ * Responses are decoded and the futures completed by the executor supplied to
+ * the constructor, never by the I/O thread itself.
+ *
+ * @version $Id$
+ */
+public class RAsyncClient {
+
+  Selector selector;
+  Thread thread;
+  Executor executor;
+  /**
+   * tasks to be run on the I/O thread, guarded by itself
+   */
+  LinkedList tasks = new LinkedList();
+  boolean stopped = false;
+  volatile boolean closed = false;
+
+  /**
+   * creates a new client which decodes responses in the common fork-join pool
+   */
+  public RAsyncClient() throws IOException {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * creates a new client
+   *
+   * @param executor executor used to decode responses and complete the
+   * futures
+   */
+  public RAsyncClient(Executor executor) throws IOException {
+    this.executor = executor;
+    selector = Selector.open();
+    thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "RAsyncClient I/O");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * opens a new connection which does not require authentication
+   *
+   * @param host host name/IP
+   * @param port TCP port
+   * @return future connection, it completes once the handshake is done
+   */
+  public CompletableFuture<RAsyncConnection> connect(String host, int port) {
+    return connect(host, port, null, null);
+  }
+
+  /**
+   * opens a new connection and logs in if the server requires authentication
+   *
+   * @param host host name/IP
+   * @param port TCP port
+   * @param user username used for {@link RAsyncConnection#login}
+   * @param pwd password used for {@link RAsyncConnection#login}
+   * @return future connection, it completes once the handshake (and login) is
+   * done
+   */
+  public CompletableFuture<RAsyncConnection> connect(String host, int port, final String user, final String pwd) {
+    final RAsyncConnection c = new RAsyncConnection(this, host, port);
+    CompletableFuture<RAsyncConnection> f = c.handshake;
+    if (user != null) {
+      f = f.thenCompose(new Function<RAsyncConnection, CompletionStage<RAsyncConnection>>() {
+        public CompletionStage<RAsyncConnection> apply(final RAsyncConnection conn) {
+          return conn.login(user, pwd).thenApply(new Function<Void, RAsyncConnection>() {
+            public RAsyncConnection apply(Void v) {
+              return conn;
+            }
+          });
+        }
+      });
+    }
+    invoke(new Runnable() {
+      public void run() {
+        c.open();
+      }
+    });
+    return f;
+  }
+
+  /**
+   * runs a task on the I/O thread. If the client has been closed the task is
+   * run right away by the calling thread.
+   */
+  void invoke(Runnable r) {
+    synchronized (tasks) {
+      if (!stopped) {
+        tasks.addLast(r);
+        selector.wakeup();
+        return;
+      }
+    }
+    r.run();
+  }
+
+  void runTasks() {
+    while (true) {
+      Runnable r;
+      synchronized (tasks) {
+        if (tasks.isEmpty()) {
+          return;
+        }
+        r = (Runnable) tasks.removeFirst();
+      }
+      r.run();
+    }
+  }
+
+  void loop() {
+    try {
+      while (!closed) {
+        selector.select();
+        runTasks();
+        Iterator it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = (SelectionKey) it.next();
+          it.remove();
+          ((RAsyncConnection) key.attachment()).handle(key);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    // close the selector before tasks are run directly, so that a connection
+    // opened meanwhile fails to register instead of being left behind
+    Object[] keys = selector.keys().toArray();
+    try {
+      selector.close();
+    } catch (IOException e) {
+    }
+    synchronized (tasks) {
+      stopped = true;
+    }
+    RserveException x = new RserveException(null, "Client closed");
+    for (int i = 0; i < keys.length; i++) {
+      ((RAsyncConnection) ((SelectionKey) keys[i]).attachment()).fail(x);
+    }
+    runTasks();
+  }
+
+  /**
+   * closes all connections of this client and stops the I/O thread.
+   * Outstanding requests fail with a {@link RserveException}.
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  /**
+   * @return <code>true</code> if {@link #close} was called
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,480 @@
+package org.rosuda.rserve;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rserve.protocol.RPacket;
+import org.rosuda.rserve.protocol.RTalk;
+import org.rosuda.rserve.protocol.jcrypt;
+
+/**
+ * asynchronous connection to an Rserve, created by {@link RAsyncClient#connect}.
+ * All methods return immediately, the results are delivered through
+ * <code>CompletableFuture</code>s. Requests are sent in the order they were
+ * issued and the server evaluates them one by one, so the usual sequential
+ * semantics of a connection are retained. Failed requests complete
+ * exceptionally with a {@link RserveException} carrying the status returned
+ * by the server (see {@link RserveException#getRequestReturnCode}).
+ * <p>
+ * Unlike {@link RConnection} this class is thread-safe.
+ *
+ * @version $Id$
+ */
+public class RAsyncConnection {
+
+  /**
+   * request waiting for its response
+   */
+  static class Request {
+
+    CompletableFuture future;
+    boolean hasResult;
+    String what;
+
+    Request(CompletableFuture future, boolean hasResult, String what) {
+      this.future = future;
+      this.hasResult = hasResult;
+      this.what = what;
+    }
+  }
+
+  RAsyncClient client;
+  String host;
+  int port;
+  SocketChannel ch;
+  SelectionKey key;
+
+  int rsrvVersion;
+  boolean authReq = false;
+  int authType = RConnection.AT_plain;
+  String Key = null;
+
+  CompletableFuture<RAsyncConnection> handshake = new CompletableFuture<RAsyncConnection>();
+
+  /**
+   * requests not sent (completely) yet, guarded by this
+   */
+  LinkedList out = new LinkedList();
+  /**
+   * requests waiting for their response in the order they were sent, guarded
+   * by this
+   */
+  LinkedList inflight = new LinkedList();
+  boolean closed = false;
+  /**
+   * set once the handshake is done, guarded by this
+   */
+  boolean ready = false;
+  RserveException failure;
+
+  // the following is only used by the I/O thread
+  ByteBuffer ids = ByteBuffer.allocate(32);
+  ByteBuffer hdr = ByteBuffer.allocate(16);
+  ByteBuffer body;
+  int rep;
+
+  RAsyncConnection(RAsyncClient client, String host, int port) {
+    this.client = client;
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * starts connecting, called on the I/O thread
+   */
+  void open() {
+    try {
+      ch = SocketChannel.open();
+      ch.configureBlocking(false);
+      // disable Nagle's algorithm since we really want immediate replies
+      ch.socket().setTcpNoDelay(true);
+      if (ch.connect(new InetSocketAddress(host, port))) {
+        key = ch.register(client.selector, SelectionKey.OP_READ, this);
+      } else {
+        key = ch.register(client.selector, SelectionKey.OP_CONNECT, this);
+      }
+    } catch (Exception e) {
+      fail(new RserveException(null, "Cannot connect: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * handles a selected key, called on the I/O thread
+   */
+  void handle(SelectionKey k) {
+    try {
+      if (!k.isValid()) {
+        return;
+      }
+      if (k.isConnectable()) {
+        ch.finishConnect();
+        k.interestOps(SelectionKey.OP_READ);
+      }
+      if (k.isReadable()) {
+        onReadable();
+      }
+      if (k.isValid() && k.isWritable()) {
+        onWritable();
+      }
+    } catch (RserveException e) {
+      fail(e);
+    } catch (Exception e) {
+      fail(new RserveException(null, "Connection broken: " + e.getMessage(), RTalk.ERR_conn_broken));
+    }
+  }
+
+  void onReadable() throws IOException, RserveException {
+    if (!ready) {
+      if (ch.read(ids) < 0) {
+        throw new EOFException("connection closed by the server");
+      }
+      if (ids.hasRemaining()) {
+        return;
+      }
+      parseIDString(new String(ids.array()));
+      synchronized (this) {
+        ready = true;
+        if (!out.isEmpty()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+      }
+      client.executor.execute(new Runnable() {
+        public void run() {
+          handshake.complete(RAsyncConnection.this);
+        }
+      });
+    }
+    while (true) {
+      if (body == null) {
+        if (ch.read(hdr) < 0) {
+          throw new EOFException("connection closed by the server");
+        }
+        if (hdr.hasRemaining()) {
+          return;
+        }
+        byte[] h = hdr.array();
+        rep = RTalk.getInt(h, 0);
+        int rl = RTalk.getInt(h, 4);
+        if (rl < 0 || RTalk.getInt(h, 12) != 0) {
+          throw new IOException("response too large");
+        }
+        hdr.clear();
+        if (rl == 0) {
+          deliver(new RPacket(rep, null));
+          continue;
+        }
+        body = ByteBuffer.allocate(rl);
+      }
+      if (ch.read(body) < 0) {
+        throw new EOFException("connection closed by the server");
+      }
+      if (body.hasRemaining()) {
+        return;
+      }
+      byte[] b = body.array();
+      body = null;
+      deliver(new RPacket(rep, b));
+    }
+  }
+
+  void parseIDString(String ids) throws RserveException {
+    if (ids.substring(0, 4).compareTo("Rsrv") != 0) {
+      throw new RserveException(null, "Handshake failed: Rsrv signature expected, but received \"" + ids + "\" instead.");
+    }
+    try {
+      rsrvVersion = Integer.parseInt(ids.substring(4, 8));
+    } catch (Exception px) {
+    }
+    // we support (knowingly) up to 103
+    if (rsrvVersion > 103) {
+      throw new RserveException(null, "Handshake failed: The server uses more recent protocol than this client.");
+    }
+    if (ids.substring(8, 12).compareTo("QAP1") != 0) {
+      throw new RserveException(null, "Handshake failed: unupported transfer protocol (" + ids.substring(8, 12) + "), I talk only QAP1.");
+    }
+    for (int i = 12; i < 32; i += 4) {
+      String attr = ids.substring(i, i + 4);
+      if (attr.compareTo("ARpt") == 0) {
+        if (!authReq) { // this method is only fallback when no other was specified
+          authReq = true;
+          authType = RConnection.AT_plain;
+        }
+      }
+      if (attr.compareTo("ARuc") == 0) {
+        authReq = true;
+        authType = RConnection.AT_crypt;
+      }
+      if (attr.charAt(0) == 'K') {
+        Key = attr.substring(1, 3);
+      }
+    }
+  }
+
+  /**
+   * hands a response to the oldest request, decoding is done by the executor
+   */
+  void deliver(final RPacket p) throws IOException {
+    final Request r;
+    synchronized (this) {
+      if (inflight.isEmpty()) {
+        throw new IOException("unexpected response from the server");
+      }
+      r = (Request) inflight.removeFirst();
+    }
+    client.executor.execute(new Runnable() {
+      public void run() {
+        complete(r, p);
+      }
+    });
+  }
+
+  void complete(Request r, RPacket p) {
+    try {
+      if (!p.isOk()) {
+        throw new RserveException(null, r.what + " failed", p);
+      }
+      r.future.complete(r.hasResult ? RConnection.parseEvalResponse(null, p, rsrvVersion) : null);
+    } catch (Throwable e) {
+      r.future.completeExceptionally(e);
+    }
+  }
+
+  synchronized void onWritable() throws IOException {
+    if (!out.isEmpty()) {
+      ByteBuffer[] bufs = (ByteBuffer[]) out.toArray(new ByteBuffer[out.size()]);
+      ch.write(bufs);
+      while (!out.isEmpty() && !((ByteBuffer) out.getFirst()).hasRemaining()) {
+        out.removeFirst();
+      }
+    }
+    if (out.isEmpty()) {
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * fails all outstanding requests and closes the channel
+   */
+  void fail(RserveException e) {
+    LinkedList l;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      failure = e;
+      l = inflight;
+      inflight = new LinkedList();
+      out.clear();
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      if (ch != null) {
+        ch.close();
+      }
+    } catch (IOException ioe) {
+    }
+    handshake.completeExceptionally(e);
+    while (!l.isEmpty()) {
+      ((Request) l.removeFirst()).future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * queues a request for sending
+   */
+  CompletableFuture submit(int cmd, byte[] par, boolean hasResult, String what) {
+    CompletableFuture f = new CompletableFuture();
+    ByteBuffer msg = ByteBuffer.allocate(16 + par.length);
+    msg.order(ByteOrder.LITTLE_ENDIAN);
+    msg.putInt(cmd);
+    msg.putInt(par.length);
+    msg.putLong(0L);
+    msg.put(par);
+    msg.flip();
+    boolean first;
+    synchronized (this) {
+      if (closed) {
+        f.completeExceptionally((failure != null) ? failure : new RserveException(null, "Not connected"));
+        return f;
+      }
+      inflight.addLast(new Request(f, hasResult, what));
+      out.addLast(msg);
+      first = (out.size() == 1);
+    }
+    if (first) {
+      client.invoke(new Runnable() {
+        public void run() {
+          enableWrite();
+        }
+      });
+    }
+    return f;
+  }
+
+  CompletableFuture submit(int cmd, String par, boolean hasResult, String what) {
+    try {
+      return submit(cmd, RTalk.newStringParameter(par), hasResult, what);
+    } catch (Exception e) {
+      CompletableFuture f = new CompletableFuture();
+      f.completeExceptionally(new RserveException(null, what + " failed: " + e.getMessage()));
+      return f;
+    }
+  }
+
+  /**
+   * registers interest in writing, called on the I/O thread
+   */
+  void enableWrite() {
+    synchronized (this) {
+      if (closed || !ready || !key.isValid() || out.isEmpty()) {
+        return; // the handshake code enables writing once we are connected
+      }
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * evaluates the given command and retrieves the result
+   *
+   * @param cmd command/expression string
+   * @return future result
+   */
+  public CompletableFuture<REXP> eval(String cmd) {
+    return submit(RTalk.CMD_eval, cmd + "\n", true, "eval");
+  }
+
+  /**
+   * same as {@link #eval}, provided for symmetry with
+   * {@link RConnection#parseAndEval(String)}
+   *
+   * @param cmd command/expression string
+   * @return future result
+   */
+  public CompletableFuture<REXP> parseAndEval(String cmd) {
+    return eval(cmd);
+  }
+
+  /**
+   * evaluates the given command, but does not fetch the result
+   *
+   * @param cmd command/expression string
+   * @return future completed once the command was evaluated
+   */
+  public CompletableFuture<Void> voidEval(String cmd) {
+    return submit(RTalk.CMD_voidEval, cmd + "\n", false, "voidEval");
+  }
+
+  /**
+   * assign a string value to a symbol in R (see
+   * {@link RConnection#assign(String,String)})
+   *
+   * @param sym symbol name
+   * @param ct contents
+   * @return future completed once the value was assigned
+   */
+  public CompletableFuture<Void> assign(String sym, String ct) {
+    return submit(RTalk.CMD_setSEXP, RConnection.assignRequest(sym, ct), false, "assign");
+  }
+
+  /**
+   * assign a content of a REXP to a symbol in R (see
+   * {@link RConnection#assign(String,REXP)})
+   *
+   * @param sym symbol name
+   * @param rexp contents
+   * @return future completed once the value was assigned
+   */
+  public CompletableFuture<Void> assign(String sym, REXP rexp) {
+    try {
+      return submit(RTalk.CMD_setSEXP, RConnection.assignRequest(sym, rexp), false, "assign");
+    } catch (REXPMismatchException me) {
+      CompletableFuture<Void> f = new CompletableFuture<Void>();
+      f.completeExceptionally(new RserveException(null, "Error creating binary representation: " + me.getMessage()));
+      return f;
+    }
+  }
+
+  /**
+   * login using supplied user/pwd. Note that login must be the first command
+   * if used. The connection is closed if the login fails.
+   *
+   * @param user username
+   * @param pwd password
+   * @return future completed once the login succeeded
+   */
+  public CompletableFuture<Void> login(String user, String pwd) {
+    if (!authReq) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (authType == RConnection.AT_crypt) {
+      pwd = jcrypt.crypt((Key == null) ? "rs" : Key, pwd);
+    }
+    CompletableFuture<Void> f = submit(RTalk.CMD_login, user + "\n" + pwd, false, "login");
+    f.whenComplete(new BiConsumer<Void, Throwable>() {
+      public void accept(Void v, Throwable e) {
+        if (e != null) {
+          close();
+        }
+      }
+    });
+    return f;
+  }
+
+  /**
+   * closes the connection. Requests that are still outstanding fail with a
+   * {@link RserveException}.
+   */
+  public void close() {
+    final RserveException e = new RserveException(null, "Connection closed");
+    client.invoke(new Runnable() {
+      public void run() {
+        fail(e);
+      }
+    });
+  }
+
+  /**
+   * @return <code>true</code> if the server requires authentication
+   */
+  public boolean needLogin() {
+    return authReq;
+  }
+
+  /**
+   * @return server version as reported during the handshake
+   */
+  public int getServerVersion() {
+    return rsrvVersion;
+  }
+
+  /**
+   * @return <code>true</code> unless the connection was closed or failed
+   */
+  public synchronized boolean isConnected() {
+    return !closed;
+  }
+
+  /**
+   * @return number of requests that have not been answered yet
+   */
+  public synchronized int getPendingCount() {
+    return inflight.size();
+  }
+
+  public String toString() {
+    return super.toString() + "[" + host + ":" + port + "]";
+  }
+}
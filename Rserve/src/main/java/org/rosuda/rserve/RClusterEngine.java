@@ -0,0 +1,515 @@
+package org.rosuda.rserve;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REngine;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.protocol.RTalk;
+
+/**
+ * engine spreading requests over several Rserve instances. Each node (a
+ * host/port pair) is served by its own {@link RConnectionPool}, every request
+ * is routed to the node that is expected to answer first - either the one with
+ * the fewest outstanding requests or the one with the lowest (smoothed)
+ * latency weighted by its load, see {@link #setBalancing}.
+ * <p>
+ * Nodes that cannot be connected to or whose connection broke
+ * (<code>ERR_conn_broken</code> or a transport failure) are marked down and
+ * are not used until the retry interval elapsed. If a connection to the
+ * selected node cannot be established, the request fails over to the next
+ * node. Requests that failed after they were sent are not repeated since they
+ * may have been evaluated already.
+ * <p>
+ * Note that every request may be served by a different R process, so
+ * {@link #parseAndEval} and {@link #assign} are only useful for stateless
+ * work. Sequences of commands that depend on each other should use a
+ * connection obtained by {@link #borrow} which stays on one node until it is
+ * handed back by {@link #release}. Detached sessions (see
+ * {@link #voidEvalDetach}) always belong to the node that created them and
+ * are resumed there by {@link #attach}, regardless of the routing.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @version $Id$
+ */
+public class RClusterEngine extends REngine {
+
+  /**
+   * balancing: route to the node with the fewest outstanding requests
+   */
+  public static final int BALANCE_LEAST_OUTSTANDING = 0;
+  /**
+   * balancing: route to the node with the lowest average latency multiplied by
+   * the number of outstanding requests (plus one). Nodes whose latency is not
+   * known yet are assumed to be as fast as the average node, failed requests
+   * count as twice the average latency so that a node which keeps failing
+   * quickly doesn't attract all requests.
+   */
+  public static final int BALANCE_LATENCY = 1;
+
+  /**
+   * one Rserve instance
+   */
+  static class Node {
+
+    String host;
+    int port;
+    RConnectionPool pool;
+    int outstanding = 0;
+    /**
+     * exponentially weighted moving average of the request latency in ms, 0 if
+     * unknown
+     */
+    double latency = 0.0;
+    boolean down = false;
+    long downSince;
+
+    Node(String host, int port, RConnectionPool pool) {
+      this.host = host;
+      this.port = port;
+      this.pool = pool;
+    }
+
+    public String toString() {
+      return host + ":" + port + (down ? "(down)" : "") + "[out=" + outstanding + ",lat=" + latency + "]";
+    }
+  }
+
+  /**
+   * connection borrowed from the pool of a node
+   */
+  static class Lease {
+
+    Node node;
+    RConnection connection;
+
+    Lease(Node node, RConnection connection) {
+      this.node = node;
+      this.connection = connection;
+    }
+  }
+
+  /**
+   * request executed on a connection
+   */
+  interface Call {
+
+    Object run(RConnection c) throws RserveException;
+  }
+
+  Node[] nodes;
+  int balancing = BALANCE_LEAST_OUTSTANDING;
+  long retryInterval = 30000L;
+  /**
+   * weight of the most recent latency in the moving average
+   */
+  double latencyWeight = 0.2;
+  /**
+   * connections handed out by {@link #borrow} and the nodes they belong to
+   */
+  IdentityHashMap leased = new IdentityHashMap();
+  boolean closed = false;
+
+  /**
+   * creates a cluster of Rserve instances which do not require authentication
+   *
+   * @param hosts host names/IPs
+   * @param ports TCP ports (one for each host)
+   * @param maxConnections maximal number of connections per node
+   */
+  public RClusterEngine(String[] hosts, int[] ports, int maxConnections) throws RserveException {
+    this(hosts, ports, null, null, maxConnections);
+  }
+
+  /**
+   * creates a cluster of Rserve instances. Connections are logged in using the
+   * supplied credentials if the server requests authentication.
+   *
+   * @param hosts host names/IPs
+   * @param ports TCP ports (one for each host)
+   * @param user username used for {@link RConnection#login}
+   * @param pwd password used for {@link RConnection#login}
+   * @param maxConnections maximal number of connections per node
+   */
+  public RClusterEngine(String[] hosts, int[] ports, String user, String pwd, int maxConnections) throws RserveException {
+    if (hosts == null || ports == null || hosts.length != ports.length || hosts.length == 0) {
+      throw new IllegalArgumentException("hosts and ports must be non-empty and of the same length");
+    }
+    nodes = new Node[hosts.length];
+    for (int i = 0; i < hosts.length; i++) {
+      // connections are opened on demand
+      nodes[i] = new Node(hosts[i], ports[i], new RConnectionPool(hosts[i], ports[i], user, pwd, 0, maxConnections));
+    }
+  }
+
+  /**
+   * picks the node for the next request
+   *
+   * @param exclude nodes that already failed for this request
+   * @return node or <code>null</code> if no node is available
+   */
+  synchronized Node select(HashSet exclude) {
+    long now = System.currentTimeMillis();
+    double mean = meanLatency();
+    Node best = null;
+    double bestScore = 0.0;
+    for (int i = 0; i < nodes.length; i++) {
+      Node n = nodes[i];
+      if (exclude.contains(n) || (n.down && now - n.downSince < retryInterval)) {
+        continue;
+      }
+      double score;
+      if (balancing == BALANCE_LATENCY) {
+        double lat = (n.latency > 0.0) ? n.latency : ((mean > 0.0) ? mean : 1.0);
+        score = (n.outstanding + 1) * lat;
+      } else {
+        score = n.outstanding + n.latency / 1e6; // latency breaks ties
+      }
+      // on a tie prefer fewer outstanding requests, then nodes that were not measured yet
+      if (best == null || score < bestScore || (score == bestScore && (n.outstanding < best.outstanding
+              || (n.outstanding == best.outstanding && n.latency == 0.0 && best.latency > 0.0)))) {
+        best = n;
+        bestScore = score;
+      }
+    }
+    if (best != null) {
+      best.outstanding++;
+    }
+    return best;
+  }
+
+  synchronized void markDown(Node n) {
+    n.down = true;
+    n.downSince = System.currentTimeMillis();
+  }
+
+  /**
+   * @return average latency of the nodes whose latency is known, 0 if there
+   * are none. Must be called with the monitor held.
+   */
+  double meanLatency() {
+    double sum = 0.0;
+    int k = 0;
+    for (int i = 0; i < nodes.length; i++) {
+      if (nodes[i].latency > 0.0) {
+        sum += nodes[i].latency;
+        k++;
+      }
+    }
+    return (k == 0) ? 0.0 : (sum / k);
+  }
+
+  /**
+   * a request on the node finished
+   *
+   * @param nanos duration of the request, 0 if it was not executed by this
+   * engine (borrowed connections) or never sent
+   * @param ok <code>true</code> if the request succeeded
+   */
+  synchronized void done(Node n, long nanos, boolean ok) {
+    n.outstanding--;
+    if (nanos <= 0) {
+      return;
+    }
+    double ms = nanos / 1e6;
+    if (ok) {
+      n.down = false;
+    } else {
+      ms = Math.max(ms, 2.0 * meanLatency());
+    }
+    n.latency = (n.latency == 0.0) ? ms : (n.latency * (1.0 - latencyWeight) + ms * latencyWeight);
+  }
+
+  static boolean isBroken(RConnection c, RserveException e) {
+    return e.getRequestReturnCode() == RTalk.ERR_conn_broken || !c.isConnected() || c.rt == null || c.rt.isBroken();
+  }
+
+  /**
+   * selects a node and borrows a connection from its pool, failing over to
+   * the next node if no connection can be obtained. The request is counted as
+   * outstanding on the node until {@link #done} is called.
+   */
+  Lease acquire() throws RserveException {
+    HashSet tried = new HashSet();
+    RserveException last = null;
+    while (true) {
+      if (closed) {
+        throw new RserveException(null, "Cluster engine is closed");
+      }
+      Node n = select(tried);
+      if (n == null) {
+        throw new RserveException(null, "No Rserve node available" + ((last == null) ? "" : (" (" + last.getMessage() + ")")));
+      }
+      try {
+        return new Lease(n, n.pool.borrow());
+      } catch (RserveException e) {
+        done(n, 0, false);
+        markDown(n);
+        tried.add(n);
+        last = e;
+      }
+    }
+  }
+
+  /**
+   * runs a request on the best node
+   */
+  Object execute(Call call) throws RserveException {
+    Lease l = acquire();
+    Node n = l.node;
+    RConnection c = l.connection;
+    long t0 = System.nanoTime();
+    try {
+      Object r = call.run(c);
+      done(n, System.nanoTime() - t0, true);
+      n.pool.release(c);
+      return r;
+    } catch (RserveException e) {
+      done(n, System.nanoTime() - t0, false);
+      if (isBroken(c, e)) {
+        markDown(n);
+        n.pool.invalidate(c);
+      } else {
+        n.pool.release(c);
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      done(n, System.nanoTime() - t0, false);
+      n.pool.invalidate(c);
+      throw e;
+    }
+  }
+
+  /**
+   * evaluates the given command on one of the nodes and retrieves the result
+   *
+   * @param cmd command/expression string
+   * @return result
+   */
+  public REXP eval(final String cmd) throws RserveException {
+    return (REXP) execute(new Call() {
+      public Object run(RConnection c) throws RserveException {
+        return c.eval(cmd);
+      }
+    });
+  }
+
+  /**
+   * evaluates the given command on one of the nodes, but does not fetch the
+   * result
+   *
+   * @param cmd command/expression string
+   */
+  public void voidEval(final String cmd) throws RserveException {
+    execute(new Call() {
+      public Object run(RConnection c) throws RserveException {
+        c.voidEval(cmd);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * evaluates the given command on one of the nodes and detaches the session
+   * (see {@link RConnection#voidEvalDetach}). The session can only be resumed
+   * on the node that created it, use {@link #attach} or
+   * {@link RSession#attach}.
+   *
+   * @param cmd command/expression string
+   * @return session object
+   */
+  public RSession voidEvalDetach(final String cmd) throws RserveException {
+    return (RSession) execute(new Call() {
+      public Object run(RConnection c) throws RserveException {
+        return c.voidEvalDetach(cmd); // closes c, the pool will discard it
+      }
+    });
+  }
+
+  /**
+   * resumes a detached session. The connection is made to the host and port
+   * stored in the session, not to a node chosen by the balancing, and it is
+   * not managed by this engine.
+   *
+   * @param session detached session
+   * @return connection to the session
+   */
+  public RConnection attach(RSession session) throws RserveException {
+    return session.attach();
+  }
+
+  /**
+   * obtains a connection to one node for exclusive use. All requests on that
+   * connection are served by the same R process, so it can be used for
+   * sequences of dependent commands. The connection must be handed back using
+   * {@link #release}.
+   *
+   * @return connection
+   */
+  public RConnection borrow() throws RserveException {
+    Lease l = acquire();
+    synchronized (this) {
+      leased.put(l.connection, l.node);
+    }
+    return l.connection;
+  }
+
+  /**
+   * hands back a connection obtained by {@link #borrow}
+   *
+   * @param c connection
+   */
+  public void release(RConnection c) {
+    Node n;
+    synchronized (this) {
+      n = (Node) leased.remove(c);
+    }
+    if (n == null) {
+      throw new IllegalArgumentException("connection was not borrowed from this engine");
+    }
+    done(n, 0, false);
+    if (!c.isConnected() || c.rt == null || c.rt.isBroken()) {
+      markDown(n);
+    }
+    n.pool.release(c);
+  }
+
+  //========= REngine interface API
+  public REXP parse(String text, boolean resolve) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support separate parsing step.");
+  }
+
+  public REXP eval(REXP what, REXP where, boolean resolve) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support evaluation of parsed expressions.");
+  }
+
+  public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException {
+    if (where != null) {
+      throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+    }
+    return eval(text);
+  }
+
+  /**
+   * assign into the global environment of one of the nodes
+   *
+   * @param symbol symbol name
+   * @param value value to assign
+   * @param env environment to assign to (must be <code>null</code>)
+   */
+  public void assign(final String symbol, final REXP value, REXP env) throws REngineException {
+    if (env != null) {
+      throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+    }
+    execute(new Call() {
+      public Object run(RConnection c) throws RserveException {
+        c.assign(symbol, value);
+        return null;
+      }
+    });
+  }
+
+  public REXP get(String symbol, REXP env, boolean resolve) throws REngineException {
+    if (!resolve) {
+      throw new REngineException(this, "Rserve doesn't support references");
+    }
+    if (env != null) {
+      throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+    }
+    return eval("get(\"" + symbol + "\")");
+  }
+
+  public REXP resolveReference(REXP ref) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support references");
+  }
+
+  public REXP createReference(REXP ref) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support references");
+  }
+
+  public void finalizeReference(REXP ref) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support references");
+  }
+
+  public REXP getParentEnvironment(REXP env, boolean resolve) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+  }
+
+  public REXP newEnvironment(REXP parent, boolean resolve) throws REngineException {
+    throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+  }
+
+  /**
+   * closes the connection pools of all nodes
+   */
+  public boolean close() {
+    closed = true;
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i].pool.close();
+    }
+    return true;
+  }
+
+  /**
+   * set the balancing strategy
+   *
+   * @param mode {@link #BALANCE_LEAST_OUTSTANDING} (default) or
+   * {@link #BALANCE_LATENCY}
+   */
+  public synchronized void setBalancing(int mode) {
+    balancing = mode;
+  }
+
+  /**
+   * set the time after which a node that was marked down is tried again
+   *
+   * @param ms time in milliseconds
+   */
+  public synchronized void setRetryInterval(long ms) {
+    retryInterval = ms;
+  }
+
+  /**
+   * @return number of nodes
+   */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * @param i node index
+   * @return <code>true</code> unless the node is marked down
+   */
+  public synchronized boolean isNodeUp(int i) {
+    return !nodes[i].down;
+  }
+
+  /**
+   * @param i node index
+   * @return number of requests currently running on the node
+   */
+  public synchronized int getOutstanding(int i) {
+    return nodes[i].outstanding;
+  }
+
+  /**
+   * @param i node index
+   * @return average latency of the node in milliseconds (0 if unknown)
+   */
+  public synchronized double getLatency(int i) {
+    return nodes[i].latency;
+  }
+
+  public synchronized String toString() {
+    StringBuffer sb = new StringBuffer(super.toString() + "{");
+    for (int i = 0; i < nodes.length; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(nodes[i]);
+    }
+    return sb.toString() + "}";
+  }
+}
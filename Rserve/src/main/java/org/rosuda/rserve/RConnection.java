@@ -4,14 +4,24 @@ package org.rosuda.rserve;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 
 import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPEncodedString;
+import org.rosuda.rengine.REXPFactor;
 import org.rosuda.rengine.REXPMismatchException;
 import org.rosuda.rengine.REXPNull;
+import org.rosuda.rengine.REXPString;
 import org.rosuda.rengine.REngine;
 import org.rosuda.rengine.REngineException;
+import org.rosuda.rengine.RFactor;
+import org.rosuda.rengine.RList;
+import org.rosuda.rserve.protocol.REXPEncoder;
 import org.rosuda.rserve.protocol.REXPFactory;
+import org.rosuda.rserve.protocol.REXPStreamParser;
 import org.rosuda.rserve.protocol.RPacket;
 import org.rosuda.rserve.protocol.RTalk;
 import org.rosuda.rserve.protocol.jcrypt;
@@ -30,12 +40,17 @@ public class RConnection extends REngine {
    */
   String lastError = null;
   Socket s;
+  SocketChannel ch;
   boolean connected = false;
   InputStream is;
   OutputStream os;
   boolean authReq = false;
   int authType = AT_plain;
   String Key = null;
+  /**
+   * whether the server accepts and sends compressed bodies
+   */
+  boolean compressionSupported = false;
   RTalk rt = null;
 
   String host;
@@ -67,6 +82,46 @@ public class RConnection extends REngine {
    */
   protected int rsrvVersion;
 
+  /**
+   * minimal size (in bytes) of eval results that are decoded directly from the
+   * socket, negative if disabled
+   */
+  int streamingThreshold = -1;
+  /**
+   * minimal size (in bytes) of numeric and integer vectors that are kept
+   * off-heap, negative if disabled
+   */
+  int offHeapThreshold = -1;
+  /**
+   * whether list elements of eval results are decoded on first access
+   */
+  boolean lazyDecoding = false;
+  /**
+   * whether repetitive character vectors are sent as factors
+   */
+  boolean dictionaryEncoding = false;
+  /**
+   * receiver of timings and sizes of requests, <code>null</code> if disabled
+   */
+  RserveMetrics metrics;
+  /**
+   * minimal length of character vectors sent as factors
+   */
+  static final int DICTIONARY_MIN_LENGTH = 1024;
+  /**
+   * temporary symbol holding a dictionary-encoded vector until R has turned
+   * it back into a character vector
+   */
+  static final String DICTIONARY_TMP = ".rjava.dict";
+  /**
+   * largest request buffer kept for reuse by {@link #assign(String, REXP)}
+   */
+  static final int MAX_POOLED_REQUEST = 1024 * 1024;
+  /**
+   * request buffer kept for reuse, <code>null</code> if none or in use
+   */
+  byte[] requestBuffer;
+
   /**
    * make a new local connection on default port (6311)
    */
@@ -120,24 +175,31 @@ public class RConnection extends REngine {
     this.host = host;
     this.port = port;
     try {
-      s = new Socket(host, port);
+      ch = SocketChannel.open(new InetSocketAddress(host, port));
+      s = ch.socket();
       // disable Nagle's algorithm since we really want immediate replies
       s.setTcpNoDelay(true);
     } catch (Exception sce) {
       throw new RserveException(this, "Cannot connect: " + sce.getMessage());
     }
     try {
-      is = s.getInputStream();
-      os = s.getOutputStream();
+      is = Channels.newInputStream(ch);
+      os = Channels.newOutputStream(ch);
     } catch (Exception gse) {
       throw new RserveException(this, "Cannot get io stream: " + gse.getMessage());
     }
-    rt = new RTalk(is, os);
+    rt = new RTalk(ch);
     if (session == null) {
       byte[] IDs = new byte[32];
-      int n = -1;
+      int n = 0;
       try {
-        n = is.read(IDs);
+        while (n < 32) { // the ID string may arrive in more than one piece
+          int rd = is.read(IDs, n, 32 - n);
+          if (rd < 0) {
+            break;
+          }
+          n += rd;
+        }
       } catch (Exception sre) {
         throw new RserveException(this, "Error while receiving data: " + sre.getMessage());
       }
@@ -175,6 +237,9 @@ public class RConnection extends REngine {
           if (attr.charAt(0) == 'K') {
             Key = attr.substring(1, 3);
           }
+          if (attr.equals(RTalk.COMPRESSION_ATTR)) {
+            compressionSupported = true;
+          }
         }
       } catch (RserveException innerX) {
         try {
@@ -274,6 +339,18 @@ public class RConnection extends REngine {
   }
 
   REXP parseEvalResponse(RPacket rp) throws RserveException {
+    return parseEvalResponse(this, rp, rsrvVersion);
+  }
+
+  /**
+   * decodes the result of an eval from a response packet
+   *
+   * @param c connection used for error reporting (can be <code>null</code>)
+   * @param rp response packet
+   * @param rsrvVersion protocol version of the server
+   * @return result of the evaluation
+   */
+  static REXP parseEvalResponse(RConnection c, RPacket rp, int rsrvVersion) throws RserveException {
     int rxo = 0;
     byte[] pc = rp.getCont();
     if (rsrvVersion > 100) { /* since 0101 eval responds correctly by using DT_SEXP type/len header which is 4 bytes long */
@@ -281,7 +358,7 @@ public class RConnection extends REngine {
       rxo = 4;
       /* we should check parameter type (should be DT_SEXP) and fail if it's not */
       if (pc[0] != RTalk.DT_SEXP && pc[0] != (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
-        throw new RserveException(this, "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pc[0] + ".");
+        throw new RserveException(c, "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pc[0] + ".");
       }
       if (pc[0] == (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
         rxo = 8; // large data need skip of 8 bytes
@@ -291,11 +368,12 @@ public class RConnection extends REngine {
     if (pc.length > rxo) {
       try {
         REXPFactory rx = new REXPFactory();
+        rx.setLazyDecoding(c != null && c.lazyDecoding);
         rx.parseREXP(pc, rxo);
         return rx.getREXP();
       } catch (REXPMismatchException me) {
         me.printStackTrace();
-        throw new RserveException(this, "Error when parsing response: " + me.getMessage());
+        throw new RserveException(c, "Error when parsing response: " + me.getMessage());
       }
     }
     return null;
@@ -311,13 +389,338 @@ public class RConnection extends REngine {
     if (!connected || rt == null) {
       throw new RserveException(this, "Not connected");
     }
+    int st = streamingThreshold;
+    if (offHeapThreshold >= 0 && (st < 0 || offHeapThreshold < st)) {
+      st = offHeapThreshold; // off-heap vectors are only created by the streaming decoder
+    }
+    RserveMetrics m = metrics;
+    if (st >= 0 && rsrvVersion > 100) {
+      RPacket rp = rt.requestStreamed(RTalk.CMD_eval, cmd + "\n", st);
+      if (rp != null && rp.isOk()) {
+        long t0 = (m == null) ? 0 : System.nanoTime();
+        InputStream bs = rt.getBodyStream();
+        REXP x = (bs == null) ? parseEvalResponse(rp) : parseEvalResponse(bs);
+        if (m != null) { // a streamed body is received while decoding
+          m.phase(RTalk.CMD_eval, RserveMetrics.PHASE_DECODE, System.nanoTime() - t0);
+        }
+        return x;
+      }
+      throw new RserveException(this, "eval failed", rp);
+    }
     RPacket rp = rt.request(RTalk.CMD_eval, cmd + "\n");
     if (rp != null && rp.isOk()) {
-      return parseEvalResponse(rp);
+      long t0 = (m == null) ? 0 : System.nanoTime();
+      REXP x = parseEvalResponse(rp);
+      if (m != null) {
+        m.phase(RTalk.CMD_eval, RserveMetrics.PHASE_DECODE, System.nanoTime() - t0);
+      }
+      return x;
     }
     throw new RserveException(this, "eval failed", rp);
   }
 
+  /**
+   * decodes the result of an eval directly from the response body
+   *
+   * @param bs stream of the response body
+   */
+  REXP parseEvalResponse(InputStream bs) throws RserveException {
+    try {
+      try {
+        REXPStreamParser p = new REXPStreamParser(bs);
+        p.setOffHeapThreshold(offHeapThreshold);
+        int pt = p.readParameterHeader();
+        if (pt != RTalk.DT_SEXP) {
+          throw new RserveException(this, "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pt + ".");
+        }
+        return p.parseREXP();
+      } finally {
+        bs.close();
+      }
+    } catch (IOException ioe) {
+      throw new RserveException(this, "Error while receiving eval output: " + ioe.getMessage());
+    } catch (REXPMismatchException me) {
+      throw new RserveException(this, "Error when parsing response: " + me.getMessage());
+    }
+  }
+
+  /**
+   * set the size above which eval results are decoded directly from the
+   * socket instead of being received as a whole first. This roughly halves the
+   * memory needed to fetch large vectors since the encoded response is never
+   * held in memory. Results below the threshold are received as usual. This
+   * requires Rserve protocol 0101 or higher, older servers ignore this setting.
+   *
+   * @param bytes minimal size of the encoded result in bytes, negative values
+   * disable streaming (default)
+   */
+  public void setStreamingThreshold(int bytes) {
+    streamingThreshold = bytes;
+  }
+
+  /**
+   * @return current streaming threshold (see {@link #setStreamingThreshold})
+   */
+  public int getStreamingThreshold() {
+    return streamingThreshold;
+  }
+
+  /**
+   * set the size above which numeric and integer vectors in eval results are
+   * received into direct buffers outside of the Java heap (see
+   * {@link org.rosuda.rengine.REXPDirectDouble} and
+   * {@link org.rosuda.rengine.REXPDirectInteger}). Such results are always
+   * decoded directly from the socket (see {@link #setStreamingThreshold}).
+   * This requires Rserve protocol 0101 or higher, older servers ignore this
+   * setting.
+   *
+   * @param bytes minimal size of a vector in bytes, negative values disable
+   * off-heap storage (default)
+   */
+  public void setOffHeapThreshold(int bytes) {
+    offHeapThreshold = bytes;
+  }
+
+  /**
+   * @return current off-heap threshold (see {@link #setOffHeapThreshold})
+   */
+  public int getOffHeapThreshold() {
+    return offHeapThreshold;
+  }
+
+  /**
+   * enables or disables lazy decoding of eval results. If enabled, the
+   * elements of lists are left in their binary form until they are accessed
+   * for the first time (see {@link org.rosuda.rserve.protocol.LazyRList}).
+   * This is useful if only a few elements of a large list are needed, e.g. a
+   * couple of fields of a model object. The binary response is kept in memory
+   * as long as any element of it has not been decoded. Results decoded
+   * directly from the socket (see {@link #setStreamingThreshold}) are always
+   * decoded completely.
+   *
+   * @param lazy <code>true</code> to decode list elements on demand (it is
+   * disabled by default)
+   */
+  public void setLazyDecoding(boolean lazy) {
+    lazyDecoding = lazy;
+  }
+
+  /**
+   * @return whether lazy decoding is enabled (see {@link #setLazyDecoding})
+   */
+  public boolean getLazyDecoding() {
+    return lazyDecoding;
+  }
+
+  /**
+   * enables or disables dictionary encoding of character vectors sent by
+   * {@link #assign(String, REXP)}. If enabled, long character vectors with
+   * at most half as many distinct values as elements are sent as level codes
+   * plus a table of the distinct values and converted back to a character
+   * vector by R, which saves most of the bytes and the encoding of repeated
+   * strings. Results can be received the same way using
+   * {@link #evalStrings}.
+   *
+   * @param enable <code>true</code> to enable dictionary encoding (it is
+   * disabled by default)
+   */
+  public void setDictionaryEncoding(boolean enable) {
+    dictionaryEncoding = enable;
+  }
+
+  /**
+   * @return whether dictionary encoding is enabled (see
+   * {@link #setDictionaryEncoding})
+   */
+  public boolean getDictionaryEncoding() {
+    return dictionaryEncoding;
+  }
+
+  /**
+   * evaluates an expression returning a character vector and receives the
+   * result dictionary-encoded, i.e. as integer codes plus the distinct values.
+   * Each distinct value is transferred and decoded only once; the strings of
+   * the result are only looked up when they are first accessed. This is much
+   * faster for vectors with many repeated values such as category labels.
+   *
+   * @param cmd expression, the result is converted by
+   * <code>as.character</code>
+   * @return character vector
+   */
+  public REXPEncodedString evalStrings(String cmd) throws RserveException {
+    REXP x = eval("(function(x) { l <- unique(x); list(match(x, l), l) })(as.character(" + cmd + "\n))");
+    try {
+      RList l = x.asList();
+      return new REXPEncodedString(l.at(0).asIntegers(), l.at(1).asStrings());
+    } catch (REXPMismatchException me) {
+      throw new RserveException(this, "Error when parsing response: " + me.getMessage());
+    }
+  }
+
+  /**
+   * creates a pipeline on this connection. Requests issued through the
+   * pipeline are sent back-to-back without waiting for the responses, which
+   * saves one network round trip per request. This is useful for long
+   * sequences of small commands such as <code>assign</code> calls.
+   *
+   * @return new pipeline using this connection
+   */
+  public RPipeline pipeline() throws RserveException {
+    if (!connected || rt == null) {
+      throw new RserveException(this, "Not connected");
+    }
+    return new RPipeline(this);
+  }
+
+  /**
+   * creates an appender which builds a vector on the server from values
+   * supplied piece by piece (see {@link RVectorAppender})
+   *
+   * @param sym symbol the vector is assigned to once it is finished
+   * @param type type of the vector, one of the <code>TYPE_*</code> constants
+   * of {@link RVectorAppender} except for factors
+   * @return new appender
+   */
+  public RVectorAppender appender(String sym, int type) throws RserveException {
+    return appender(sym, type, RVectorAppender.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * creates an appender which builds a vector on the server from values
+   * supplied piece by piece (see {@link RVectorAppender})
+   *
+   * @param sym symbol the vector is assigned to once it is finished
+   * @param type type of the vector, one of the <code>TYPE_*</code> constants
+   * of {@link RVectorAppender} except for factors
+   * @param chunkSize number of values sent in one chunk, values below 1 use
+   * {@link RVectorAppender#DEFAULT_CHUNK_SIZE}
+   * @return new appender
+   */
+  public RVectorAppender appender(String sym, int type, int chunkSize) throws RserveException {
+    if (type == RVectorAppender.TYPE_FACTOR) {
+      throw new IllegalArgumentException("factor appenders need levels");
+    }
+    return new RVectorAppender(pipeline(), sym, type, null, chunkSize);
+  }
+
+  /**
+   * creates an appender which builds a factor on the server from level codes
+   * or names supplied piece by piece (see {@link RVectorAppender})
+   *
+   * @param sym symbol the factor is assigned to once it is finished
+   * @param levels levels of the factor
+   * @return new appender
+   */
+  public RVectorAppender factorAppender(String sym, String[] levels) throws RserveException {
+    return factorAppender(sym, levels, RVectorAppender.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * creates an appender which builds a factor on the server from level codes
+   * or names supplied piece by piece (see {@link RVectorAppender})
+   *
+   * @param sym symbol the factor is assigned to once it is finished
+   * @param levels levels of the factor
+   * @param chunkSize number of values sent in one chunk, values below 1 use
+   * {@link RVectorAppender#DEFAULT_CHUNK_SIZE}
+   * @return new appender
+   */
+  public RVectorAppender factorAppender(String sym, String[] levels, int chunkSize) throws RserveException {
+    return new RVectorAppender(pipeline(), sym, RVectorAppender.TYPE_FACTOR, levels, chunkSize);
+  }
+
+  /**
+   * creates an appender which builds a data frame on the server column by
+   * column (see {@link RDataFrameAppender})
+   *
+   * @param sym symbol the data frame is assigned to once it is finished
+   * @return new appender
+   */
+  public RDataFrameAppender dataFrameAppender(String sym) throws RserveException {
+    return dataFrameAppender(sym, RVectorAppender.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * creates an appender which builds a data frame on the server column by
+   * column (see {@link RDataFrameAppender})
+   *
+   * @param sym symbol the data frame is assigned to once it is finished
+   * @param chunkSize number of values of a column sent in one chunk, values
+   * below 1 use {@link RVectorAppender#DEFAULT_CHUNK_SIZE}
+   * @return new appender
+   */
+  public RDataFrameAppender dataFrameAppender(String sym, int chunkSize) throws RserveException {
+    return new RDataFrameAppender(pipeline(), sym, chunkSize);
+  }
+
+  /**
+   * enables compression of large request and response bodies. Bodies of at
+   * least the given size are sent deflate-compressed in both directions,
+   * which pays off for compressible data on slow networks, e.g. for large
+   * time series. Compressed responses can still be decoded directly from the
+   * socket (see {@link #setStreamingThreshold}). This is an extension of the
+   * Rserve protocol, the server has to announce its support during the
+   * handshake.
+   *
+   * @param bytes minimal size of a body in bytes, negative values disable
+   * compression (default)
+   * @throws RserveException if the server does not support compression
+   */
+  public void setCompressionThreshold(int bytes) throws RserveException {
+    if (!connected || rt == null) {
+      throw new RserveException(this, "Not connected");
+    }
+    if (!compressionSupported) {
+      if (bytes < 0) {
+        return;
+      }
+      throw new RserveException(this, "The server does not support compression");
+    }
+    RPacket rp = rt.request(RTalk.CMD_setCompression, bytes);
+    if (rp != null && rp.isOk()) {
+      rt.setCompressionThreshold(bytes);
+      return;
+    }
+    throw new RserveException(this, "setCompressionThreshold failed", rp);
+  }
+
+  /**
+   * @return current compression threshold (see
+   * {@link #setCompressionThreshold})
+   */
+  public int getCompressionThreshold() {
+    return (rt == null) ? -1 : rt.getCompressionThreshold();
+  }
+
+  /**
+   * @return <code>true</code> if the server supports compressed bodies (see
+   * {@link #setCompressionThreshold})
+   */
+  public boolean supportsCompression() {
+    return compressionSupported;
+  }
+
+  /**
+   * sets the receiver of timings and sizes of all requests sent through this
+   * connection, including file transfers and pipelined requests. See
+   * {@link SimpleRserveMetrics} for a ready-made implementation.
+   *
+   * @param m metrics or <code>null</code> to disable measuring (default)
+   */
+  public void setMetrics(RserveMetrics m) {
+    metrics = m;
+    if (rt != null) {
+      rt.setMetrics(m);
+    }
+  }
+
+  /**
+   * @return receiver of timings and sizes or <code>null</code> if disabled
+   */
+  public RserveMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * assign a string value to a symbol in R. The symbol is created if it doesn't
    * exist already.
@@ -334,6 +737,22 @@ public class RConnection extends REngine {
     if (!connected || rt == null) {
       throw new RserveException(this, "Not connected");
     }
+    byte[] rq = assignRequest(sym, ct);
+    RPacket rp = rt.request(RTalk.CMD_setSEXP, rq);
+    if (rp != null && rp.isOk()) {
+      return;
+    }
+    throw new RserveException(this, "assign failed", rp);
+  }
+
+  /**
+   * creates the parameters of a CMD_setSEXP request assigning a string
+   *
+   * @param sym symbol name
+   * @param ct contents
+   * @return request parameters
+   */
+  static byte[] assignRequest(String sym, String ct) {
     byte[] symn = sym.getBytes();
     byte[] ctn = ct.getBytes();
     int sl = symn.length + 1;
@@ -362,11 +781,7 @@ public class RConnection extends REngine {
     }
     RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
     RTalk.setHdr(RTalk.DT_STRING, cl, rq, sl + 4);
-    RPacket rp = rt.request(RTalk.CMD_setSEXP, rq);
-    if (rp != null && rp.isOk()) {
-      return;
-    }
-    throw new RserveException(this, "assign failed", rp);
+    return rq;
   }
 
   /**
@@ -379,33 +794,96 @@ public class RConnection extends REngine {
    * difference between a symbol and an expression!). In fact R will always
    * create the symbol, but it may not be accessible (examples: "bar\nfoo" or
    * "bar$foo").
-   * @param rexp contents
+   * @param rexp contents. Large objects are encoded straight to the connection
+   * in chunks, their encoded form is never held in memory as a whole.
+   * Character vectors may be sent as level codes and distinct values (see
+   * {@link #setDictionaryEncoding}).
    */
   public void assign(String sym, REXP rexp) throws RserveException {
     if (!connected || rt == null) {
       throw new RserveException(this, "Not connected");
     }
+    REXP f = (dictionaryEncoding && sym.indexOf('`') < 0) ? dictionaryEncode(rexp) : null;
+    if (f != null) {
+      assignDictionary(sym, f);
+      return;
+    }
+    assignREXP(sym, rexp);
+  }
+
+  /**
+   * assigns a dictionary-encoded vector: the factor is assigned to a
+   * temporary symbol which R turns into the character vector assigned to
+   * <code>sym</code>, so <code>sym</code> never holds the factor. Both
+   * requests are pipelined unless the factor is large enough to be streamed,
+   * in which case the additional round trip doesn't matter.
+   */
+  void assignDictionary(String sym, REXP f) throws RserveException {
+    String conv = "`" + sym + "` <- as.character(" + DICTIONARY_TMP + "); rm(" + DICTIONARY_TMP + ")";
+    int rl;
     try {
-      REXPFactory r = new REXPFactory(rexp);
-      int rl = r.getBinaryLength();
+      rl = assignRequestLength(DICTIONARY_TMP.getBytes(), new REXPEncoder(f));
+    } catch (REXPMismatchException me) {
+      throw new RserveException(this, "Error creating binary representation: " + me.getMessage());
+    }
+    if (rl > MAX_POOLED_REQUEST) {
+      assignREXP(DICTIONARY_TMP, f);
+      voidEval(conv);
+      return;
+    }
+    RPipeline p = pipeline();
+    p.assign(DICTIONARY_TMP, f);
+    p.voidEval(conv);
+    p.sync();
+  }
+
+  /**
+   * returns the factor representation of a character vector if it is worth
+   * sending it that way, i.e. if it is long and has few distinct values
+   *
+   * @param x REXP to encode
+   * @return factor or <code>null</code> if the REXP is to be sent as-is
+   */
+  static REXP dictionaryEncode(REXP x) {
+    if (!(x instanceof REXPString) || x._attr() != null) {
+      return null;
+    }
+    if (x instanceof REXPEncodedString) {
+      REXPEncodedString es = (REXPEncodedString) x;
+      return (es.getLevels().length * 2 <= es.length()) ? new REXPFactor(es.asFactor()) : null;
+    }
+    String[] s = ((REXPString) x).asStrings();
+    if (s.length < DICTIONARY_MIN_LENGTH) {
+      return null;
+    }
+    RFactor rf = RFactor.create(s, 1, s.length / 2);
+    return (rf == null) ? null : new REXPFactor(rf);
+  }
+
+  void assignREXP(String sym, REXP rexp) throws RserveException {
+    try {
+      REXPEncoder r = new REXPEncoder(rexp);
       byte[] symn = sym.getBytes();
-      int sl = symn.length + 1;
-      if ((sl & 3) > 0) {
-        sl = (sl & 0xfffffc) + 4; // make sure the symbol length is divisible by 4
-      }
-      byte[] rq = new byte[sl + rl + ((rl > 0xfffff0) ? 12 : 8)];
-      int ic;
-      for (ic = 0; ic < symn.length; ic++) {
-        rq[ic + 4] = symn[ic];
+      int rl = assignRequestLength(symn, r);
+      RPacket rp;
+      if (rl > MAX_POOLED_REQUEST) { // stream large objects instead of assembling the request
+        byte[] prefix = new byte[rl - r.getBinaryLength()];
+        assignPrefix(symn, r, prefix);
+        rp = rt.request(RTalk.CMD_setSEXP, prefix, r);
+      } else {
+        byte[] rq = takeRequestBuffer(rl);
+        try {
+          RserveMetrics m = metrics;
+          long t0 = (m == null) ? 0 : System.nanoTime();
+          int l = assignRequest(symn, r, rq);
+          if (m != null) {
+            m.phase(RTalk.CMD_setSEXP, RserveMetrics.PHASE_ENCODE, System.nanoTime() - t0);
+          }
+          rp = rt.request(RTalk.CMD_setSEXP, null, rq, 0, l);
+        } finally {
+          releaseRequestBuffer(rq);
+        }
       }
-      while (ic < sl) {
-        rq[ic + 4] = 0;
-        ic++;
-      }; // pad with 0
-      RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
-      RTalk.setHdr(RTalk.DT_SEXP, rl, rq, sl + 4);
-      r.getBinaryRepresentation(rq, sl + ((rl > 0xfffff0) ? 12 : 8));
-      RPacket rp = rt.request(RTalk.CMD_setSEXP, rq);
       if (rp != null && rp.isOk()) {
         return;
       }
@@ -415,6 +893,74 @@ public class RConnection extends REngine {
     }
   }
 
+  /**
+   * creates the parameters of a CMD_setSEXP request assigning a REXP
+   *
+   * @param sym symbol name
+   * @param rexp contents
+   * @return request parameters
+   */
+  static byte[] assignRequest(String sym, REXP rexp) throws REXPMismatchException {
+    REXPEncoder r = new REXPEncoder(rexp);
+    byte[] symn = sym.getBytes();
+    byte[] rq = new byte[assignRequestLength(symn, r)];
+    assignRequest(symn, r, rq);
+    return rq;
+  }
+
+  static int assignRequestLength(byte[] symn, REXPEncoder r) {
+    int rl = r.getBinaryLength();
+    return ((symn.length + 4) & 0xfffffc) + rl + ((rl > 0xfffff0) ? 12 : 8);
+  }
+
+  /**
+   * stores the parameters of a CMD_setSEXP request into a buffer
+   *
+   * @param symn symbol name
+   * @param r encoded contents
+   * @param rq buffer of at least {@link #assignRequestLength} bytes
+   * @return length of the parameters
+   */
+  static int assignRequest(byte[] symn, REXPEncoder r, byte[] rq) throws REXPMismatchException {
+    return r.encode(rq, assignPrefix(symn, r, rq));
+  }
+
+  /**
+   * stores the parameters of a CMD_setSEXP request preceding the encoded REXP
+   * (the symbol name and the header of the REXP parameter) into a buffer
+   *
+   * @return length of the prefix
+   */
+  static int assignPrefix(byte[] symn, REXPEncoder r, byte[] rq) {
+    int sl = (symn.length + 4) & 0xfffffc; // make sure the symbol length is divisible by 4
+    int o = RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
+    System.arraycopy(symn, 0, rq, o, symn.length);
+    for (int ic = symn.length; ic < sl; ic++) {
+      rq[o + ic] = 0; // pad with 0
+    }
+    return RTalk.setHdr(RTalk.DT_SEXP, r.getBinaryLength(), rq, o + sl);
+  }
+
+  /**
+   * @return buffer of at least <code>len</code> bytes for request parameters,
+   * it must be passed to {@link #releaseRequestBuffer} when the request is
+   * sent
+   */
+  synchronized byte[] takeRequestBuffer(int len) {
+    byte[] b = requestBuffer;
+    if (b != null && b.length >= len) {
+      requestBuffer = null;
+      return b;
+    }
+    return new byte[len];
+  }
+
+  synchronized void releaseRequestBuffer(byte[] b) {
+    if (b.length <= MAX_POOLED_REQUEST && (requestBuffer == null || requestBuffer.length < b.length)) {
+      requestBuffer = b;
+    }
+  }
+
   /**
    * open a file on the Rserve for reading
    *
@@ -0,0 +1,436 @@
+package org.rosuda.rserve;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * thread-safe pool of {@link RConnection}s to a single Rserve. A single
+ * <code>RConnection</code> wraps one socket and must not be used by more than
+ * one thread at a time, so concurrent clients should borrow a connection for
+ * the duration of their work and hand it back afterwards:
+ * <pre>
+ * RConnection c = pool.borrow();
+ * try {
+ *   REXP x = c.eval("...");
+ * } finally {
+ *   pool.release(c);
+ * }
+ * </pre>
+ * Connections are created on demand up to the maximal size of the pool and
+ * are logged in (see {@link RConnection#login}) before they are handed out.
+ * Connections that sat idle for longer than the validation interval are
+ * checked with a cheap round trip before they are returned by
+ * {@link #borrow}, connections whose transport failed are evicted. Evicted
+ * connections are replaced as long as the pool is below its minimal size.
+ * <p>
+ * Note that each connection is served by its own R process on the server
+ * side, so the workspace of a connection persists between borrows. Do not rely
+ * on (or leave behind) any state that is specific to one connection.
+ *
+ * @version $Id$
+ */
+public class RConnectionPool {
+
+  /**
+   * idle connection along with the time it was handed back to the pool
+   */
+  static class PooledConnection {
+
+    RConnection connection;
+    long lastUsed;
+    /**
+     * whether the connection has been opened by the pool and never been
+     * borrowed, such connections need no validation
+     */
+    boolean fresh;
+
+    PooledConnection(RConnection connection, long lastUsed, boolean fresh) {
+      this.connection = connection;
+      this.lastUsed = lastUsed;
+      this.fresh = fresh;
+    }
+  }
+
+  String host;
+  int port;
+  String user;
+  String pwd;
+  int minSize;
+  int maxSize;
+
+  /**
+   * idle connections, the most recently used connection is at the end
+   */
+  LinkedList idle = new LinkedList();
+  /**
+   * connections currently handed out
+   */
+  HashSet borrowed = new HashSet();
+  /**
+   * number of connections owned by the pool, including those that are being
+   * opened at the moment
+   */
+  int total = 0;
+  boolean closed = false;
+
+  /**
+   * idle time (in ms) after which a connection is validated before it is
+   * handed out again
+   */
+  long validationInterval = 30000L;
+  /**
+   * idle time (in ms) after which surplus connections (above the minimal size)
+   * are closed
+   */
+  long maxIdleTime = 300000L;
+  /**
+   * maximal time (in ms) {@link #borrow} waits for a connection if the pool is
+   * exhausted, negative values mean wait indefinitely
+   */
+  long maxWait = -1L;
+
+  /**
+   * creates a pool for the Rserve on the given host and port which does not
+   * require authentication
+   *
+   * @param host host name/IP
+   * @param port TCP port
+   * @param minSize number of connections that are opened right away and kept
+   * open even when idle, evicted connections are replaced
+   * @param maxSize maximal number of connections open at any time
+   */
+  public RConnectionPool(String host, int port, int minSize, int maxSize) throws RserveException {
+    this(host, port, null, null, minSize, maxSize);
+  }
+
+  /**
+   * creates a pool for the Rserve on the given host and port. Each new
+   * connection is logged in using the supplied credentials if the server
+   * requests authentication.
+   *
+   * @param host host name/IP
+   * @param port TCP port
+   * @param user username used for {@link RConnection#login}
+   * @param pwd password used for {@link RConnection#login}
+   * @param minSize number of connections that are opened right away and kept
+   * open even when idle, evicted connections are replaced
+   * @param maxSize maximal number of connections open at any time
+   */
+  public RConnectionPool(String host, int port, String user, String pwd, int minSize, int maxSize) throws RserveException {
+    if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+      throw new IllegalArgumentException("invalid pool size (min=" + minSize + ", max=" + maxSize + ")");
+    }
+    this.host = host;
+    this.port = port;
+    this.user = user;
+    this.pwd = pwd;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    try {
+      while (total < minSize) {
+        RConnection c = open();
+        total++;
+        idle.addLast(new PooledConnection(c, System.currentTimeMillis(), true));
+      }
+    } catch (RserveException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * opens and logs in a new connection
+   */
+  RConnection open() throws RserveException {
+    RConnection c = new RConnection(host, port);
+    if (c.needLogin()) {
+      c.login(user, pwd);
+    }
+    return c;
+  }
+
+  /**
+   * checks whether the connection is still usable. Connections that have been
+   * idle longer than the validation interval are probed with a round trip to
+   * the server.
+   */
+  boolean validate(PooledConnection pc, long now) {
+    RConnection c = pc.connection;
+    if (!c.isConnected() || c.rt == null || c.rt.isBroken()) {
+      return false;
+    }
+    if (!pc.fresh && validationInterval >= 0 && now - pc.lastUsed >= validationInterval) {
+      try {
+        c.voidEval("NULL");
+      } catch (RserveException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * obtain a connection from the pool. If no idle connection is available a
+   * new one is opened unless the pool has reached its maximal size in which
+   * case the call waits for a connection to be released.
+   *
+   * @return connection ready for use, it must be handed back using
+   * {@link #release} or {@link #invalidate}
+   */
+  public RConnection borrow() throws RserveException {
+    long deadline = (maxWait < 0) ? 0 : (System.currentTimeMillis() + maxWait);
+    while (true) {
+      PooledConnection pc = null;
+      synchronized (this) {
+        while (true) {
+          if (closed) {
+            throw new RserveException(null, "Connection pool is closed");
+          }
+          if (!idle.isEmpty()) {
+            pc = (PooledConnection) idle.removeLast();
+            break;
+          }
+          if (total < maxSize) {
+            total++;
+            break;
+          }
+          long wt = 0;
+          if (deadline != 0) {
+            wt = deadline - System.currentTimeMillis();
+            if (wt <= 0) {
+              throw new RserveException(null, "Timeout while waiting for a pooled connection");
+            }
+          }
+          try {
+            wait(wt);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RserveException(null, "Interrupted while waiting for a pooled connection");
+          }
+        }
+      }
+      if (pc == null) { // we have reserved a slot for a new connection
+        RConnection c;
+        try {
+          c = open();
+        } catch (RserveException e) {
+          synchronized (this) {
+            total--;
+            notifyAll();
+          }
+          throw e;
+        }
+        synchronized (this) {
+          borrowed.add(c);
+        }
+        return c;
+      }
+      if (validate(pc, System.currentTimeMillis())) {
+        synchronized (this) {
+          borrowed.add(pc.connection);
+        }
+        return pc.connection;
+      }
+      discard(pc.connection);
+    }
+  }
+
+  /**
+   * hand a connection back to the pool. Connections that are no longer
+   * connected or whose transport failed are closed instead of being kept.
+   *
+   * @param c connection previously obtained by {@link #borrow}
+   */
+  public void release(RConnection c) {
+    if (c == null) {
+      return;
+    }
+    LinkedList surplus;
+    synchronized (this) {
+      if (!borrowed.remove(c)) {
+        throw new IllegalArgumentException("connection does not belong to this pool");
+      }
+      boolean keep = !closed && c.isConnected() && c.rt != null && !c.rt.isBroken();
+      if (keep) {
+        long now = System.currentTimeMillis();
+        idle.addLast(new PooledConnection(c, now, false));
+        surplus = trimIdle(now);
+        notifyAll();
+      } else {
+        surplus = null;
+      }
+    }
+    if (surplus == null) {
+      discard(c);
+      return;
+    }
+    Iterator it = surplus.iterator();
+    while (it.hasNext()) {
+      ((RConnection) it.next()).close();
+    }
+  }
+
+  /**
+   * remove a connection from the pool and close it. This should be used when
+   * the caller knows that the connection is in an unusable state.
+   *
+   * @param c connection previously obtained by {@link #borrow}
+   */
+  public void invalidate(RConnection c) {
+    if (c == null) {
+      return;
+    }
+    synchronized (this) {
+      if (!borrowed.remove(c)) {
+        throw new IllegalArgumentException("connection does not belong to this pool");
+      }
+    }
+    discard(c);
+  }
+
+  /**
+   * closes the connection and frees its slot, then opens replacements if the
+   * pool dropped below its minimal size
+   */
+  void discard(RConnection c) {
+    c.close();
+    synchronized (this) {
+      total--;
+      notifyAll();
+    }
+    refill();
+  }
+
+  /**
+   * opens idle connections until the pool has its minimal size again. The
+   * connections are opened without holding the monitor, if the server cannot
+   * be reached the pool stays smaller until connections are borrowed.
+   */
+  void refill() {
+    while (true) {
+      synchronized (this) {
+        if (closed || total >= minSize) {
+          return;
+        }
+        total++;
+      }
+      RConnection c;
+      try {
+        c = open();
+      } catch (RserveException e) {
+        synchronized (this) {
+          total--;
+          notifyAll();
+        }
+        return;
+      }
+      synchronized (this) {
+        if (!closed) {
+          idle.addLast(new PooledConnection(c, System.currentTimeMillis(), true));
+          notifyAll();
+          continue;
+        }
+        total--;
+      }
+      c.close();
+    }
+  }
+
+  /**
+   * removes surplus connections that have been idle for too long. Must be
+   * called with the monitor held, the connections must be closed by the caller
+   * after releasing it.
+   *
+   * @return connections to close
+   */
+  LinkedList trimIdle(long now) {
+    LinkedList surplus = new LinkedList();
+    Iterator it = idle.iterator();
+    while (it.hasNext() && total > minSize) {
+      PooledConnection pc = (PooledConnection) it.next();
+      if (now - pc.lastUsed < maxIdleTime) {
+        break; // the list is ordered by the time of release
+      }
+      it.remove();
+      surplus.add(pc.connection);
+      total--;
+    }
+    return surplus;
+  }
+
+  /**
+   * closes all idle connections and prevents further borrowing. Connections
+   * that are currently borrowed are closed when they are released.
+   */
+  public void close() {
+    PooledConnection[] pcs;
+    synchronized (this) {
+      closed = true;
+      pcs = (PooledConnection[]) idle.toArray(new PooledConnection[idle.size()]);
+      total -= pcs.length;
+      idle.clear();
+      notifyAll();
+    }
+    for (int i = 0; i < pcs.length; i++) {
+      pcs[i].connection.close();
+    }
+  }
+
+  /**
+   * set the idle time after which a connection is validated by a round trip
+   * before it is handed out
+   *
+   * @param ms time in milliseconds, 0 means validate on every borrow and a
+   * negative value disables validation
+   */
+  public synchronized void setValidationInterval(long ms) {
+    validationInterval = ms;
+  }
+
+  /**
+   * set the idle time after which connections above the minimal pool size are
+   * closed
+   *
+   * @param ms time in milliseconds
+   */
+  public synchronized void setMaxIdleTime(long ms) {
+    maxIdleTime = ms;
+  }
+
+  /**
+   * set the maximal time {@link #borrow} waits for a connection if the pool is
+   * exhausted
+   *
+   * @param ms time in milliseconds, negative values mean wait indefinitely
+   */
+  public synchronized void setMaxWait(long ms) {
+    maxWait = ms;
+  }
+
+  /**
+   * @return number of connections currently owned by the pool (both idle and
+   * borrowed)
+   */
+  public synchronized int getSize() {
+    return total;
+  }
+
+  /**
+   * @return number of idle connections
+   */
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * @return number of connections currently handed out
+   */
+  public synchronized int getBorrowedCount() {
+    return borrowed.size();
+  }
+
+  public String toString() {
+    return super.toString() + "[" + host + ":" + port + ",size=" + getSize() + ",idle=" + getIdleCount() + "]";
+  }
+}
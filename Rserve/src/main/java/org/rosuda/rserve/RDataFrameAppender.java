@@ -0,0 +1,122 @@
+package org.rosuda.rserve;
+
+import java.util.Vector;
+
+import org.rosuda.rengine.REXPString;
+
+/**
+ * builds an R data frame on the server column by column from values supplied
+ * piece by piece. Each column is a {@link RVectorAppender} which sends its
+ * values in chunks, independently of the other columns. {@link #finish}
+ * assembles the columns into a data frame:
+ * <pre>
+ * RDataFrameAppender df = c.dataFrameAppender("df");
+ * RVectorAppender id = df.addColumn("id", RVectorAppender.TYPE_INT);
+ * RVectorAppender price = df.addColumn("price", RVectorAppender.TYPE_DOUBLE);
+ * for (Row r : rows) {
+ *   id.append(r.id);
+ *   price.append(r.price);
+ * }
+ * df.finish();
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class RDataFrameAppender {
+
+  RPipeline p;
+  String sym;
+  int chunkSize;
+  Vector columns = new Vector();
+  Vector names = new Vector();
+  boolean finished = false;
+
+  RDataFrameAppender(RPipeline p, String sym, int chunkSize) {
+    this.p = p;
+    this.sym = sym;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * adds a column
+   *
+   * @param name column name
+   * @param type type of the column, one of the <code>TYPE_*</code> constants
+   * of {@link RVectorAppender} except for factors (see
+   * {@link #addFactorColumn})
+   * @return appender for the values of the column
+   */
+  public RVectorAppender addColumn(String name, int type) throws RserveException {
+    if (type == RVectorAppender.TYPE_FACTOR) {
+      throw new IllegalArgumentException("factor columns need levels");
+    }
+    return addColumn(name, type, null);
+  }
+
+  /**
+   * adds a factor column
+   *
+   * @param name column name
+   * @param levels levels of the factor
+   * @return appender for the values of the column
+   */
+  public RVectorAppender addFactorColumn(String name, String[] levels) throws RserveException {
+    return addColumn(name, RVectorAppender.TYPE_FACTOR, levels);
+  }
+
+  RVectorAppender addColumn(String name, int type, String[] levels) throws RserveException {
+    if (finished) {
+      throw new IllegalStateException("appender for " + sym + " has already been finished");
+    }
+    RVectorAppender a = new RVectorAppender(p, null, type, levels, chunkSize);
+    columns.addElement(a);
+    names.addElement(name);
+    return a;
+  }
+
+  /**
+   * @return number of columns
+   */
+  public int getColumnCount() {
+    return columns.size();
+  }
+
+  /**
+   * sends the remaining values of all columns, assigns the data frame to the
+   * symbol and removes all temporary objects from the server
+   *
+   * @throws RserveException if the columns differ in length or any of the
+   * requests failed
+   */
+  public void finish() throws RserveException {
+    if (finished) {
+      return;
+    }
+    int nc = columns.size();
+    long rows = (nc > 0) ? ((RVectorAppender) columns.elementAt(0)).getLength() : 0;
+    StringBuffer cols = new StringBuffer();
+    String[] cn = new String[nc];
+    for (int i = 0; i < nc; i++) {
+      RVectorAppender a = (RVectorAppender) columns.elementAt(i);
+      if (a.getLength() != rows) {
+        throw new RserveException(null, "column " + names.elementAt(i) + " has " + a.getLength() + " values, expected " + rows);
+      }
+      a.flush();
+      if (i > 0) {
+        cols.append(", ");
+      }
+      cols.append(a.value());
+      cn[i] = (String) names.elementAt(i);
+    }
+    String nsym = ".rjava.appender" + RVectorAppender.nextId() + ".names";
+    p.assign(nsym, new REXPString(cn));
+    p.voidEval(sym + " <- structure(list(" + cols + "), names=" + nsym + ", class=\"data.frame\", row.names="
+            + ((rows == 0) ? "integer(0)" : ("c(NA, -" + rows + "L)")) + ")");
+    p.voidEval("rm(" + nsym + ")");
+    for (int i = 0; i < nc; i++) {
+      ((RVectorAppender) columns.elementAt(i)).cleanup();
+    }
+    finished = true;
+    p.sync();
+  }
+}
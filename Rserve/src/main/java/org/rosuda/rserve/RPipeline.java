@@ -0,0 +1,172 @@
+package org.rosuda.rserve;
+
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rserve.protocol.RPacket;
+import org.rosuda.rserve.protocol.RTalk;
+
+/**
+ * pipelined access to an {@link RConnection}. All requests issued through a
+ * pipeline are written to the connection right away, but their responses are
+ * read only when needed, i.e. when {@link Future#get} is called on the
+ * returned reply, when {@link #sync} is called or when the connection is used
+ * for a regular (blocking) request. The server evaluates the requests in the
+ * order they were issued. A typical use is a batch of assignments followed by
+ * one evaluation:
+ * <pre>
+ * RPipeline p = c.pipeline();
+ * for (int i = 0; i &lt; n; i++)
+ *   p.assign("x" + i, values[i]);
+ * Future&lt;RPacket&gt; r = p.eval("f(...)");
+ * p.sync(); // throws if any of the requests failed
+ * REXP result = p.get(r);
+ * </pre>
+ * Note that the pipeline (like the connection itself) is not thread-safe.
+ *
+ * @version $Id$
+ */
+public class RPipeline {
+
+  /**
+   * reply and a description of the request for error reporting
+   */
+  static class Submitted {
+
+    Future<RPacket> reply;
+    String what;
+
+    Submitted(Future<RPacket> reply, String what) {
+      this.reply = reply;
+      this.what = what;
+    }
+  }
+
+  RConnection c;
+  /**
+   * replies that were not checked by {@link #sync} yet
+   */
+  LinkedList unchecked = new LinkedList();
+
+  RPipeline(RConnection c) {
+    this.c = c;
+  }
+
+  RTalk talk() throws RserveException {
+    if (!c.connected || c.rt == null) {
+      throw new RserveException(c, "Not connected");
+    }
+    return c.rt;
+  }
+
+  Future<RPacket> track(Future<RPacket> r, String what) {
+    unchecked.addLast(new Submitted(r, what));
+    return r;
+  }
+
+  /**
+   * queues evaluation of a command without fetching the result (see
+   * {@link RConnection#voidEval})
+   *
+   * @param cmd command/expression string
+   * @return reply of the request
+   */
+  public Future<RPacket> voidEval(String cmd) throws RserveException {
+    return track(talk().submit(RTalk.CMD_voidEval, cmd + "\n"), "voidEval");
+  }
+
+  /**
+   * queues evaluation of a command. The result can be obtained using
+   * {@link #get} on the returned reply.
+   *
+   * @param cmd command/expression string
+   * @return reply of the request
+   */
+  public Future<RPacket> eval(String cmd) throws RserveException {
+    return track(talk().submit(RTalk.CMD_eval, cmd + "\n"), "eval");
+  }
+
+  /**
+   * queues assignment of a string to a symbol (see
+   * {@link RConnection#assign(String,String)})
+   *
+   * @param sym symbol name
+   * @param ct contents
+   * @return reply of the request
+   */
+  public Future<RPacket> assign(String sym, String ct) throws RserveException {
+    byte[] rq = RConnection.assignRequest(sym, ct);
+    return track(talk().submit(RTalk.CMD_setSEXP, null, rq, 0, rq.length), "assign");
+  }
+
+  /**
+   * queues assignment of a REXP to a symbol (see
+   * {@link RConnection#assign(String,REXP)})
+   *
+   * @param sym symbol name
+   * @param rexp contents
+   * @return reply of the request
+   */
+  public Future<RPacket> assign(String sym, REXP rexp) throws RserveException {
+    byte[] rq;
+    try {
+      rq = RConnection.assignRequest(sym, rexp);
+    } catch (REXPMismatchException me) {
+      throw new RserveException(c, "Error creating binary representation: " + me.getMessage());
+    }
+    return track(talk().submit(RTalk.CMD_setSEXP, null, rq, 0, rq.length), "assign");
+  }
+
+  /**
+   * retrieves the result of a request queued by {@link #eval}, waiting for the
+   * response if necessary
+   *
+   * @param reply reply returned by {@link #eval}
+   * @return result of the evaluation
+   */
+  public REXP get(Future<RPacket> reply) throws RserveException {
+    RPacket rp = response(reply);
+    if (rp != null && rp.isOk()) {
+      return c.parseEvalResponse(rp);
+    }
+    throw new RserveException(c, "eval failed", rp);
+  }
+
+  static RPacket response(Future<RPacket> reply) {
+    try {
+      return reply.get();
+    } catch (Exception e) { // replies are read synchronously, so this cannot happen
+      return null;
+    }
+  }
+
+  /**
+   * reads the responses of all requests issued so far and checks them. All
+   * responses are read even if some of the requests failed.
+   *
+   * @throws RserveException describing the first failed request
+   */
+  public void sync() throws RserveException {
+    RserveException first = null;
+    talk().drain();
+    while (!unchecked.isEmpty()) {
+      Submitted s = (Submitted) unchecked.removeFirst();
+      RPacket rp = response(s.reply);
+      if (first == null && (rp == null || !rp.isOk())) {
+        first = new RserveException(c, s.what + " failed", rp);
+      }
+    }
+    if (first != null) {
+      throw first;
+    }
+  }
+
+  /**
+   * @return number of requests whose responses have not been read yet
+   */
+  public int getPendingCount() {
+    return (c.rt == null) ? 0 : c.rt.getPendingCount();
+  }
+}
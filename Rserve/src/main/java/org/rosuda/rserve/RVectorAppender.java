@@ -0,0 +1,307 @@
+package org.rosuda.rserve;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPString;
+
+/**
+ * builds an R vector on the server from values supplied piece by piece, so the
+ * whole vector never has to be held in Java memory. Values are collected in a
+ * buffer of fixed size; each full buffer is sent to the server as one chunk
+ * through a {@link RPipeline}, i.e. without waiting for the server. The chunks
+ * are collected in a temporary list on the server and concatenated into the
+ * final vector by {@link #finish}:
+ * <pre>
+ * RVectorAppender a = c.appender("x", RVectorAppender.TYPE_DOUBLE);
+ * while (queue.hasNext())
+ *   a.append(queue.nextDouble());
+ * a.finish(); // x is now a numeric vector in R
+ * </pre>
+ * Factors are built from one-based level codes or from level names. Like the
+ * connection itself an appender is not thread-safe.
+ *
+ * @version $Id$
+ */
+public class RVectorAppender {
+
+  /**
+   * numeric vector
+   */
+  public static final int TYPE_DOUBLE = 1;
+  /**
+   * integer vector
+   */
+  public static final int TYPE_INT = 2;
+  /**
+   * character vector
+   */
+  public static final int TYPE_STRING = 3;
+  /**
+   * factor (integer codes with levels)
+   */
+  public static final int TYPE_FACTOR = 4;
+
+  /**
+   * default number of values sent in one chunk
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+  static int lastId = 0;
+
+  RPipeline p;
+  String sym;
+  int type;
+  String[] levels;
+  HashMap levelIndex;
+  /**
+   * name of the list of chunks on the server
+   */
+  String tmp;
+  double[] dbuf;
+  int[] ibuf;
+  String[] sbuf;
+  /**
+   * number of values in the buffer
+   */
+  int n = 0;
+  int chunks = 0;
+  long length = 0;
+  boolean finished = false;
+
+  static synchronized int nextId() {
+    return ++lastId;
+  }
+
+  RVectorAppender(RPipeline p, String sym, int type, String[] levels, int chunkSize) throws RserveException {
+    if (type < TYPE_DOUBLE || type > TYPE_FACTOR) {
+      throw new IllegalArgumentException("invalid vector type " + type);
+    }
+    if (type == TYPE_FACTOR && levels == null) {
+      throw new IllegalArgumentException("factor appenders need levels");
+    }
+    if (chunkSize < 1) {
+      chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+    this.p = p;
+    this.sym = sym;
+    this.type = type;
+    this.levels = levels;
+    tmp = ".rjava.appender" + nextId();
+    switch (type) {
+      case TYPE_DOUBLE:
+        dbuf = new double[chunkSize];
+        break;
+      case TYPE_STRING:
+        sbuf = new String[chunkSize];
+        break;
+      default:
+        ibuf = new int[chunkSize];
+    }
+    if (type == TYPE_FACTOR) {
+      levelIndex = new HashMap();
+      for (int i = 0; i < levels.length; i++) {
+        if (!levelIndex.containsKey(levels[i])) {
+          levelIndex.put(levels[i], Integer.valueOf(i + 1));
+        }
+      }
+      p.assign(tmp + ".levels", new REXPString(levels));
+    }
+    p.voidEval(tmp + " <- list()");
+  }
+
+  void check(int t) {
+    if (finished) {
+      throw new IllegalStateException("appender for " + sym + " has already been finished");
+    }
+    if (t != type && !(t == TYPE_INT && type == TYPE_FACTOR)) {
+      throw new IllegalArgumentException("values of a different type cannot be appended to " + sym);
+    }
+  }
+
+  /**
+   * appends a value to a numeric vector
+   */
+  public void append(double v) throws RserveException {
+    check(TYPE_DOUBLE);
+    dbuf[n++] = v;
+    if (n == dbuf.length) {
+      flush();
+    }
+  }
+
+  /**
+   * appends values to a numeric vector
+   */
+  public void append(double[] v, int off, int len) throws RserveException {
+    check(TYPE_DOUBLE);
+    while (len > 0) {
+      int l = Math.min(len, dbuf.length - n);
+      System.arraycopy(v, off, dbuf, n, l);
+      n += l;
+      off += l;
+      len -= l;
+      if (n == dbuf.length) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * appends a value to an integer vector or a level code (one-based) to a
+   * factor
+   */
+  public void append(int v) throws RserveException {
+    check(TYPE_INT);
+    ibuf[n++] = v;
+    if (n == ibuf.length) {
+      flush();
+    }
+  }
+
+  /**
+   * appends values to an integer vector or level codes (one-based) to a
+   * factor
+   */
+  public void append(int[] v, int off, int len) throws RserveException {
+    check(TYPE_INT);
+    while (len > 0) {
+      int l = Math.min(len, ibuf.length - n);
+      System.arraycopy(v, off, ibuf, n, l);
+      n += l;
+      off += l;
+      len -= l;
+      if (n == ibuf.length) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * appends a value to a character vector or a level to a factor. Values
+   * which are not among the levels of a factor (including <code>null</code>)
+   * are appended as NA.
+   */
+  public void append(String v) throws RserveException {
+    if (type == TYPE_FACTOR) {
+      Integer li = (Integer) levelIndex.get(v);
+      append((li == null) ? REXPInteger.NA : li.intValue());
+      return;
+    }
+    check(TYPE_STRING);
+    sbuf[n++] = v;
+    if (n == sbuf.length) {
+      flush();
+    }
+  }
+
+  /**
+   * appends values to a character vector or levels to a factor (see
+   * {@link #append(String)})
+   */
+  public void append(String[] v, int off, int len) throws RserveException {
+    if (type == TYPE_FACTOR) {
+      while (len-- > 0) {
+        append(v[off++]);
+      }
+      return;
+    }
+    check(TYPE_STRING);
+    while (len > 0) {
+      int l = Math.min(len, sbuf.length - n);
+      System.arraycopy(v, off, sbuf, n, l);
+      n += l;
+      off += l;
+      len -= l;
+      if (n == sbuf.length) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * sends the buffered values to the server. This happens automatically
+   * whenever the buffer is full.
+   */
+  public void flush() throws RserveException {
+    if (n == 0 || finished) {
+      return;
+    }
+    REXP x;
+    switch (type) { // a full buffer can be passed as-is since it is encoded right away
+      case TYPE_DOUBLE:
+        x = new REXPDouble((n == dbuf.length) ? dbuf : Arrays.copyOf(dbuf, n));
+        break;
+      case TYPE_STRING:
+        x = new REXPString((n == sbuf.length) ? sbuf : Arrays.copyOf(sbuf, n));
+        break;
+      default:
+        x = new REXPInteger((n == ibuf.length) ? ibuf : Arrays.copyOf(ibuf, n));
+    }
+    p.assign(tmp + ".chunk", x);
+    p.voidEval(tmp + "[[" + (++chunks) + "]] <- " + tmp + ".chunk");
+    length += n;
+    n = 0;
+  }
+
+  /**
+   * @return number of values appended so far
+   */
+  public long getLength() {
+    return length + n;
+  }
+
+  /**
+   * @return name of the symbol the vector is assigned to
+   */
+  public String getSymbol() {
+    return sym;
+  }
+
+  /**
+   * @return R expression which evaluates to the vector built so far (the
+   * buffer must have been flushed)
+   */
+  String value() {
+    String v;
+    if (chunks == 0) {
+      v = (type == TYPE_DOUBLE) ? "numeric(0)" : ((type == TYPE_STRING) ? "character(0)" : "integer(0)");
+    } else if (chunks == 1) {
+      v = tmp + "[[1]]";
+    } else {
+      v = "unlist(" + tmp + ", use.names=FALSE)";
+    }
+    if (type == TYPE_FACTOR) {
+      v = "structure(" + v + ", levels=" + tmp + ".levels, class=\"factor\")";
+    }
+    return v;
+  }
+
+  /**
+   * removes the temporary objects from the server
+   */
+  void cleanup() throws RserveException {
+    p.voidEval("rm(list=intersect(c(\"" + tmp + "\", \"" + tmp + ".chunk\", \"" + tmp + ".levels\"), ls(all.names=TRUE)))");
+    finished = true;
+  }
+
+  /**
+   * sends the remaining values, assigns the resulting vector to the symbol and
+   * removes all temporary objects from the server. No values can be appended
+   * afterwards.
+   *
+   * @throws RserveException if any of the requests failed
+   */
+  public void finish() throws RserveException {
+    if (sym == null) {
+      throw new IllegalStateException("columns are finished by their RDataFrameAppender");
+    }
+    flush();
+    p.voidEval(sym + " <- " + value());
+    cleanup();
+    p.sync();
+  }
+}
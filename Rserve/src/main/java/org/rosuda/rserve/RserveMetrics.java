@@ -0,0 +1,68 @@
+package org.rosuda.rserve;
+
+/**
+ * receives timings and sizes of the requests of an {@link RConnection} (see
+ * {@link RConnection#setMetrics}). Commands are the <code>CMD_...</code>
+ * constants of {@link org.rosuda.rserve.protocol.RTalk} (without the
+ * compression flag), sizes are in bytes as they appear on the wire
+ * (including the 16 byte header) and times are in nanoseconds.
+ * <p>
+ * The time of a request is split into phases: encoding the parameters,
+ * sending the request, waiting for the response (i.e. the time spent by R
+ * plus the network round trip), receiving the response body and decoding it.
+ * Encoding and decoding are only reported by requests where they can be
+ * separated from the transfer, so the phases of a request don't necessarily
+ * add up to its total time.
+ * <p>
+ * All methods are called by the thread using the connection. An instance may
+ * be shared by several connections, so implementations must be thread-safe
+ * and should be fast. Connections without metrics don't measure anything.
+ *
+ * @version $Id$
+ */
+public interface RserveMetrics {
+
+  int PHASE_ENCODE = 0;
+  int PHASE_SEND = 1;
+  int PHASE_WAIT = 2;
+  int PHASE_RECEIVE = 3;
+  int PHASE_DECODE = 4;
+
+  /**
+   * a request is about to be sent, it is in flight until
+   * {@link #requestCompleted} or {@link #requestFailed} is called for it
+   *
+   * @param cmd command
+   */
+  void requestStarted(int cmd);
+
+  /**
+   * a request completed successfully
+   *
+   * @param cmd command
+   * @param requestBytes size of the request
+   * @param responseBytes size of the response
+   * @param nanos time from sending the request to receiving the response
+   */
+  void requestCompleted(int cmd, long requestBytes, long responseBytes, long nanos);
+
+  /**
+   * a request failed
+   *
+   * @param cmd command
+   * @param returnCode error code returned by the server or -1 if the request
+   * failed on the transport level (same as
+   * {@link RserveException#getRequestReturnCode})
+   * @param nanos time from sending the request to the failure
+   */
+  void requestFailed(int cmd, int returnCode, long nanos);
+
+  /**
+   * reports the time spent in one phase of a request
+   *
+   * @param cmd command
+   * @param phase one of the <code>PHASE_...</code> constants
+   * @param nanos time spent
+   */
+  void phase(int cmd, int phase, long nanos);
+}
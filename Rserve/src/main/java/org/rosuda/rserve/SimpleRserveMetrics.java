@@ -0,0 +1,253 @@
+package org.rosuda.rserve;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * thread-safe {@link RserveMetrics} which keeps counters and histograms in
+ * memory, per command. It can be shared by any number of connections and
+ * polled by a monitoring system.
+ * <pre>
+ * SimpleRserveMetrics m = new SimpleRserveMetrics();
+ * c.setMetrics(m);
+ * ...
+ * long p99 = m.getCommand(RTalk.CMD_eval).getLatency().getPercentile(0.99);
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class SimpleRserveMetrics implements RserveMetrics {
+
+  /**
+   * histogram with power-of-two buckets: bucket <code>b</code> counts values
+   * from <code>2^(b-1)</code> to <code>2^b-1</code>, bucket 0 counts values
+   * up to 0
+   */
+  public static class Histogram {
+
+    final AtomicLongArray buckets = new AtomicLongArray(64);
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    void record(long v) {
+      buckets.incrementAndGet((v <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(v));
+      count.incrementAndGet();
+      sum.addAndGet(v);
+      long m;
+      while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public double getMean() {
+      long n = count.get();
+      return (n == 0) ? 0.0 : ((double) sum.get()) / n;
+    }
+
+    /**
+     * @return snapshot of the bucket counts
+     */
+    public long[] getBuckets() {
+      long[] b = new long[buckets.length()];
+      for (int i = 0; i < b.length; i++) {
+        b[i] = buckets.get(i);
+      }
+      return b;
+    }
+
+    /**
+     * estimates a percentile by the upper bound of the bucket it falls into
+     *
+     * @param p percentile between 0 and 1, e.g. 0.99
+     * @return upper bound of the percentile (at most the maximal value), 0 if
+     * nothing was recorded
+     */
+    public long getPercentile(double p) {
+      long[] b = getBuckets();
+      long n = 0;
+      for (int i = 0; i < b.length; i++) {
+        n += b[i];
+      }
+      long rank = (long) Math.ceil(p * n);
+      long seen = 0;
+      for (int i = 0; i < b.length; i++) {
+        seen += b[i];
+        if (seen >= rank && seen > 0) {
+          return (i == 0) ? 0 : Math.min((i == 63) ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * statistics of one command
+   */
+  public static class CommandStats {
+
+    final int cmd;
+    final AtomicLong errors = new AtomicLong();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final Histogram latency = new Histogram();
+    final Histogram requestSize = new Histogram();
+    final Histogram responseSize = new Histogram();
+    final AtomicLongArray phaseNanos = new AtomicLongArray(PHASE_DECODE + 1);
+
+    CommandStats(int cmd) {
+      this.cmd = cmd;
+    }
+
+    public int getCommand() {
+      return cmd;
+    }
+
+    /**
+     * @return number of successful requests
+     */
+    public long getCount() {
+      return latency.getCount();
+    }
+
+    /**
+     * @return number of failed requests
+     */
+    public long getErrorCount() {
+      return errors.get();
+    }
+
+    /**
+     * @return number of requests sent but not completed yet
+     */
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    /**
+     * @return latencies of successful requests in nanoseconds
+     */
+    public Histogram getLatency() {
+      return latency;
+    }
+
+    public Histogram getRequestSize() {
+      return requestSize;
+    }
+
+    public Histogram getResponseSize() {
+      return responseSize;
+    }
+
+    /**
+     * @param phase one of the <code>PHASE_...</code> constants of
+     * {@link RserveMetrics}
+     * @return total time spent in the phase in nanoseconds
+     */
+    public long getPhaseNanos(int phase) {
+      return phaseNanos.get(phase);
+    }
+
+    public String toString() {
+      return "cmd 0x" + Integer.toHexString(cmd) + ": " + getCount() + " ok, " + getErrorCount() + " failed, " + getInFlight() + " in flight, mean "
+              + (long) (latency.getMean() / 1000) + "us, p99 " + latency.getPercentile(0.99) / 1000 + "us, mean request "
+              + (long) requestSize.getMean() + "B, mean response " + (long) responseSize.getMean() + "B";
+    }
+  }
+
+  final AtomicReferenceArray commands = new AtomicReferenceArray(256);
+  final AtomicInteger inFlight = new AtomicInteger();
+  /**
+   * failed requests by the error code returned by the server
+   */
+  final AtomicLongArray errors = new AtomicLongArray(128);
+  final AtomicLong transportErrors = new AtomicLong();
+
+  CommandStats stats(int cmd) {
+    int i = cmd & 255;
+    CommandStats s = (CommandStats) commands.get(i);
+    if (s == null) {
+      commands.compareAndSet(i, null, new CommandStats(cmd));
+      s = (CommandStats) commands.get(i);
+    }
+    return s;
+  }
+
+  public void requestStarted(int cmd) {
+    stats(cmd).inFlight.incrementAndGet();
+    inFlight.incrementAndGet();
+  }
+
+  public void requestCompleted(int cmd, long requestBytes, long responseBytes, long nanos) {
+    CommandStats s = stats(cmd);
+    s.inFlight.decrementAndGet();
+    inFlight.decrementAndGet();
+    s.latency.record(nanos);
+    s.requestSize.record(requestBytes);
+    s.responseSize.record(responseBytes);
+  }
+
+  public void requestFailed(int cmd, int returnCode, long nanos) {
+    CommandStats s = stats(cmd);
+    s.inFlight.decrementAndGet();
+    inFlight.decrementAndGet();
+    s.errors.incrementAndGet();
+    if (returnCode < 0) {
+      transportErrors.incrementAndGet();
+    } else {
+      errors.incrementAndGet(returnCode & 127);
+    }
+  }
+
+  public void phase(int cmd, int phase, long nanos) {
+    stats(cmd).phaseNanos.addAndGet(phase, nanos);
+  }
+
+  /**
+   * @param cmd command
+   * @return statistics of the command or <code>null</code> if it was never
+   * sent
+   */
+  public CommandStats getCommand(int cmd) {
+    return (CommandStats) commands.get(cmd & 255);
+  }
+
+  /**
+   * @return number of requests sent but not completed yet
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @param returnCode error code returned by the server (see
+   * {@link RserveException#getRequestReturnCode}), -1 for requests that
+   * failed on the transport level
+   * @return number of requests that failed with the code
+   */
+  public long getErrorCount(int returnCode) {
+    return (returnCode < 0) ? transportErrors.get() : errors.get(returnCode & 127);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("SimpleRserveMetrics[").append(getInFlight()).append(" in flight");
+    for (int i = 0; i < commands.length(); i++) {
+      if (commands.get(i) != null) {
+        sb.append("\n  ").append(commands.get(i));
+      }
+    }
+    return sb.append(']').toString();
+  }
+}
@@ -0,0 +1,75 @@
+package org.rosuda.rserve.protocol;
+
+import java.util.Collection;
+import org.rosuda.rengine.AbstractLazyRList;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+
+/**
+ * list whose elements are decoded from the binary QAP1 representation only
+ * when they are accessed for the first time. Until then each element is just
+ * the offset of its encoded form in the response buffer, so fetching a few
+ * elements of a big list costs only a scan over the element headers. Names
+ * are decoded right away since they are needed for lookups by key.
+ * <p>
+ * See {@link AbstractLazyRList} for the operations which decode elements. The
+ * response buffer is kept alive until all elements have been decoded.
+ *
+ * @version $Id$
+ */
+public class LazyRList extends AbstractLazyRList {
+
+  /**
+   * element which has not been decoded yet
+   */
+  static final class Pending {
+
+    final int off;
+
+    Pending(int off) {
+      this.off = off;
+    }
+  }
+
+  /**
+   * buffer holding the encoded elements, <code>null</code> once all elements
+   * are decoded
+   */
+  byte[] buf;
+
+  LazyRList(byte[] buf) {
+    super();
+    this.buf = buf;
+  }
+
+  LazyRList(byte[] buf, Collection contents, String[] names) {
+    super(contents, names);
+    this.buf = buf;
+  }
+
+  /**
+   * creates the placeholder of an encoded element, it counts as pending once
+   * added to this list
+   *
+   * @param off offset of the encoded element in the buffer
+   * @return placeholder
+   */
+  Object pending(int off) {
+    return pending(new Pending(off));
+  }
+
+  protected REXP decode(Object placeholder) {
+    REXPFactory f = new REXPFactory();
+    f.setLazyDecoding(true);
+    try {
+      f.parseREXP(buf, ((Pending) placeholder).off);
+    } catch (REXPMismatchException me) {
+      throw new IllegalStateException("unable to decode list element: " + me.getMessage());
+    }
+    return f.getREXP();
+  }
+
+  protected void allDecoded() {
+    buf = null;
+  }
+}
@@ -0,0 +1,79 @@
+package org.rosuda.rserve.protocol;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.rosuda.rserve.RserveMetrics;
+
+/**
+ * reply to a pipelined request (see {@link RTalk#submit}). The response is
+ * read lazily: {@link #get} reads all outstanding responses up to this one
+ * from the connection that created it.
+ *
+ * @version $Id$
+ */
+class PendingReply implements Future<RPacket> {
+
+  RTalk rt;
+  boolean done = false;
+  RPacket packet;
+  /**
+   * size of the request as sent
+   */
+  long requestBytes;
+  /**
+   * metrics the request was reported to (see {@link RTalk#setMetrics}) and
+   * the data needed to report its completion
+   */
+  RserveMetrics metrics;
+  int cmd;
+  long started, sent;
+
+  PendingReply(RTalk rt) {
+    this.rt = rt;
+  }
+
+  void complete(RPacket p) {
+    packet = p;
+    done = true;
+    rt = null;
+  }
+
+  /**
+   * pipelined requests cannot be cancelled since they have been sent already
+   *
+   * @return always <code>false</code>
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  public boolean isCancelled() {
+    return false;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * returns the response, reading it (and all responses queued before it) from
+   * the connection if necessary
+   *
+   * @return response packet or <code>null</code> if something went wrong
+   */
+  public RPacket get() {
+    while (!done) {
+      rt.completeNext();
+    }
+    return packet;
+  }
+
+  /**
+   * same as {@link #get()} - the timeout is ignored since the response is read
+   * synchronously from the calling thread
+   */
+  public RPacket get(long timeout, TimeUnit unit) {
+    return get();
+  }
+}
@@ -0,0 +1,521 @@
+package org.rosuda.rserve.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDirectDouble;
+import org.rosuda.rengine.REXPDirectInteger;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPEncodedString;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLanguage;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPNull;
+import org.rosuda.rengine.REXPRaw;
+import org.rosuda.rengine.REXPS4;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REXPSymbol;
+import org.rosuda.rengine.RList;
+import org.rosuda.rserve.RConnection;
+
+/**
+ * encodes R-eXpressions in the binary QAP1 representation. The constructor
+ * walks the expression once, determines the types and sizes of all nodes and
+ * converts all strings into the transfer encoding. {@link #encode} then writes
+ * the nodes without any further measuring or conversion, so the whole process
+ * is linear in the size of the expression regardless of its nesting depth.
+ * <p>
+ * Strings consisting of ASCII characters only are not converted at all, they
+ * are written character by character.
+ *
+ * @version $Id$
+ */
+public class REXPEncoder {
+
+  /**
+   * used for transport only - has attribute
+   */
+  private static final int XT_HAS_ATTR = 128;
+
+  int type;
+  REXP cont;
+  REXPEncoder attr;
+  /**
+   * encoded elements of lists and vectors
+   */
+  REXPEncoder[] elements;
+  /**
+   * encoded tags of tagged lists (symbols)
+   */
+  REXPEncoder[] tags;
+  /**
+   * encoded strings of XT_ARRAY_STR, <code>null</code> for NAs and ASCII
+   * strings
+   */
+  byte[][] strings;
+  String[] sa;
+  /**
+   * encoded contents of XT_SYMNAME and XT_STR, <code>null</code> for ASCII
+   */
+  byte[] str;
+  String name;
+  /**
+   * length of the contents (including attributes, excluding the header)
+   */
+  int len;
+
+  /**
+   * sizes the binary representation of a REXP using the current
+   * {@link RConnection#transferCharset}
+   *
+   * @param x REXP to encode
+   */
+  public REXPEncoder(REXP x) throws REXPMismatchException {
+    this(x, Charset.forName(RConnection.transferCharset));
+  }
+
+  /**
+   * sizes the binary representation of a REXP
+   *
+   * @param x REXP to encode
+   * @param cs charset used to encode strings
+   */
+  public REXPEncoder(REXP x, Charset cs) throws REXPMismatchException {
+    this(x, cs, isAsciiCompatible(cs));
+  }
+
+  REXPEncoder(REXP x, Charset cs, boolean ascii) throws REXPMismatchException {
+    if (x == null) {
+      x = new REXPNull();
+    }
+    cont = x;
+    int l = 0;
+    REXPList a = x._attr();
+    if (a != null && a.asList() != null && a.asList().size() > 0) {
+      attr = new REXPEncoder(a, cs, ascii);
+      l += attr.getBinaryLength();
+    }
+    type = typeOf(x);
+    switch (type) {
+      case REXPFactory.XT_ARRAY_INT:
+        l += x.length() * 4;
+        break;
+      case REXPFactory.XT_ARRAY_DOUBLE:
+        l += x.length() * 8;
+        break;
+      case REXPFactory.XT_ARRAY_BOOL:
+      case REXPFactory.XT_RAW:
+        l += align(4 + x.asBytes().length);
+        break;
+      case REXPFactory.XT_SYMNAME:
+        name = x.asString();
+        if (name == null) {
+          name = "";
+        }
+        str = encodeString(name, cs, ascii);
+        l += align(((str == null) ? name.length() : str.length) + 1);
+        break;
+      case REXPFactory.XT_ARRAY_STR: {
+        sa = x.asStrings();
+        strings = new byte[sa.length][];
+        byte[][] lb = null;
+        int[] codes = null;
+        if (x instanceof REXPEncodedString) { // encode each distinct value only once
+          String[] lv = ((REXPEncodedString) x).getLevels();
+          codes = ((REXPEncodedString) x).getCodes();
+          lb = new byte[lv.length][];
+          for (int i = 0; i < lv.length; i++) {
+            if (lv[i] != null) {
+              lb[i] = encodeString(lv[i], cs, ascii);
+            }
+          }
+        }
+        int sl = 0;
+        for (int i = 0; i < sa.length; i++) {
+          if (sa[i] == null) {
+            sl++; // NA
+          } else {
+            byte[] b = strings[i] = (lb == null) ? encodeString(sa[i], cs, ascii) : lb[codes[i] - 1];
+            if (b == null) {
+              sl += sa[i].length();
+            } else if (b.length > 0) {
+              if (b[0] == -1) {
+                sl++;
+              }
+              sl += b.length;
+            }
+          }
+          sl++;
+        }
+        l += align(sl);
+        break;
+      }
+      case REXPFactory.XT_LIST_TAG:
+      case REXPFactory.XT_LIST_NOTAG:
+      case REXPFactory.XT_LANG_TAG:
+      case REXPFactory.XT_LANG_NOTAG:
+      case REXPFactory.XT_VECTOR: {
+        RList lst = x.asList();
+        boolean tagged = (type == REXPFactory.XT_LIST_TAG || type == REXPFactory.XT_LANG_TAG);
+        int n = lst.size();
+        elements = new REXPEncoder[n];
+        if (tagged) {
+          tags = new REXPEncoder[n];
+        }
+        for (int i = 0; i < n; i++) {
+          elements[i] = new REXPEncoder(lst.at(i), cs, ascii);
+          l += elements[i].getBinaryLength();
+          if (tagged) {
+            tags[i] = new REXPEncoder(new REXPSymbol(lst.keyAt(i)), cs, ascii);
+            l += tags[i].getBinaryLength();
+          }
+        }
+        break;
+      }
+    }
+    if (l < 0) {
+      throw new REXPMismatchException(x, "encode (too large)");
+    }
+    len = l;
+  }
+
+  static int typeOf(REXP r) throws REXPMismatchException {
+    if (r instanceof REXPNull) {
+      return REXPFactory.XT_NULL;
+    } else if (r instanceof REXPList) {
+      boolean named = r.asList().isNamed();
+      if (r instanceof REXPLanguage) {
+        return named ? REXPFactory.XT_LANG_TAG : REXPFactory.XT_LANG_NOTAG;
+      }
+      return named ? REXPFactory.XT_LIST_TAG : REXPFactory.XT_LIST_NOTAG;
+    } else if (r instanceof REXPGenericVector) {
+      return REXPFactory.XT_VECTOR;
+    } else if (r instanceof REXPS4) {
+      return REXPFactory.XT_S4;
+    } else if (r instanceof REXPInteger) {
+      return REXPFactory.XT_ARRAY_INT;
+    } else if (r instanceof REXPDouble) {
+      return REXPFactory.XT_ARRAY_DOUBLE;
+    } else if (r instanceof REXPString) {
+      return REXPFactory.XT_ARRAY_STR;
+    } else if (r instanceof REXPSymbol) {
+      return REXPFactory.XT_SYMNAME;
+    } else if (r instanceof REXPRaw) {
+      return REXPFactory.XT_RAW;
+    } else if (r instanceof REXPLogical) {
+      return REXPFactory.XT_ARRAY_BOOL;
+    }
+    System.err.println("*** REXPEncoder unable to interpret " + r);
+    return REXPFactory.XT_NULL;
+  }
+
+  static int align(int l) {
+    return (l + 3) & ~3;
+  }
+
+  /**
+   * @return <code>true</code> if ASCII characters are represented by single
+   * bytes of the same value in the given charset
+   */
+  static boolean isAsciiCompatible(Charset cs) {
+    String n = cs.name();
+    return n.equals("UTF-8") || n.equals("US-ASCII") || n.startsWith("ISO-8859-") || n.startsWith("windows-125");
+  }
+
+  /**
+   * @return encoded string or <code>null</code> if the string can be written
+   * as-is because it consists of ASCII characters only
+   */
+  static byte[] encodeString(String s, Charset cs, boolean ascii) {
+    if (ascii) {
+      int i = 0, n = s.length();
+      while (i < n && s.charAt(i) < 128) {
+        i++;
+      }
+      if (i == n) {
+        return null;
+      }
+    }
+    return s.getBytes(cs);
+  }
+
+  /**
+   * @return length of the binary representation including the header
+   */
+  public int getBinaryLength() {
+    return len + ((len > 0xfffff0) ? 8 : 4);
+  }
+
+  /**
+   * stores the binary representation into a buffer
+   *
+   * @param buf buffer to store the REXP into, it must have at least
+   * {@link #getBinaryLength} bytes left behind <code>off</code>
+   * @param off offset of the first byte where to store the REXP
+   * @return the offset of the first byte behind the stored REXP
+   */
+  public int encode(byte[] buf, int off) throws REXPMismatchException {
+    Sink s = new Sink(buf, off);
+    try {
+      write(s);
+    } catch (IOException e) { // cannot happen, there is no stream
+      throw new IllegalStateException(e);
+    }
+    return s.pos;
+  }
+
+  /**
+   * stores the binary representation into a new buffer
+   *
+   * @return binary representation
+   */
+  public byte[] encode() throws REXPMismatchException {
+    byte[] b = new byte[getBinaryLength()];
+    encode(b, 0);
+    return b;
+  }
+
+  /**
+   * writes the binary representation to a stream. The representation is
+   * produced in chunks of at most <code>chunkSize</code> bytes, so it is never
+   * held in memory as a whole.
+   *
+   * @param os stream to write to
+   * @param chunkSize size of the chunks (at least 16 bytes)
+   */
+  public void encode(OutputStream os, int chunkSize) throws IOException, REXPMismatchException {
+    Sink s = new Sink(os, chunkSize);
+    write(s);
+    s.flush();
+  }
+
+  void write(Sink s) throws IOException, REXPMismatchException {
+    s.room(8);
+    s.pos = RTalk.setHdr(type | ((attr != null) ? XT_HAS_ATTR : 0), len, s.buf, s.pos);
+    if (attr != null) {
+      attr.write(s);
+    }
+    long start = s.written();
+    switch (type) {
+      case REXPFactory.XT_ARRAY_INT: {
+        if (cont instanceof REXPDirectInteger) { // already in transfer format
+          s.put(((REXPDirectInteger) cont).asByteBuffer());
+          break;
+        }
+        int[] d = cont.asIntegers();
+        int i = 0;
+        while (i < d.length) {
+          int c = s.room(4) / 4;
+          if (c > d.length - i) {
+            c = d.length - i;
+          }
+          ByteBuffer.wrap(s.buf, s.pos, c * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(d, i, c);
+          s.pos += c * 4;
+          i += c;
+        }
+        break;
+      }
+      case REXPFactory.XT_ARRAY_DOUBLE: {
+        if (cont instanceof REXPDirectDouble) { // already in transfer format
+          s.put(((REXPDirectDouble) cont).asByteBuffer());
+          break;
+        }
+        double[] d = cont.asDoubles();
+        int i = 0;
+        while (i < d.length) {
+          int c = s.room(8) / 8;
+          if (c > d.length - i) {
+            c = d.length - i;
+          }
+          ByteBuffer.wrap(s.buf, s.pos, c * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(d, i, c);
+          s.pos += c * 8;
+          i += c;
+        }
+        break;
+      }
+      case REXPFactory.XT_ARRAY_BOOL: {
+        byte[] ba = cont.asBytes();
+        s.room(4);
+        RTalk.setInt(ba.length, s.buf, s.pos);
+        s.pos += 4;
+        int i = 0;
+        while (i < ba.length) {
+          int c = s.room(1);
+          if (c > ba.length - i) {
+            c = ba.length - i;
+          }
+          byte[] buf = s.buf;
+          int io = s.pos;
+          for (int e = i + c; i < e; i++) {
+            buf[io++] = (byte) ((ba[i] == REXPLogical.NA) ? 2 : ((ba[i] == REXPLogical.FALSE) ? 0 : 1));
+          }
+          s.pos = io;
+        }
+        s.pad(start, (byte) 3);
+        break;
+      }
+      case REXPFactory.XT_RAW: {
+        byte[] by = cont.asBytes();
+        s.room(4);
+        RTalk.setInt(by.length, s.buf, s.pos);
+        s.pos += 4;
+        s.put(by, 0, by.length);
+        s.pad(start, (byte) 0);
+        break;
+      }
+      case REXPFactory.XT_SYMNAME:
+        putString(s, name, str);
+        s.put((byte) 0);
+        s.pad(start, (byte) 0);
+        break;
+      case REXPFactory.XT_ARRAY_STR: {
+        for (int i = 0; i < sa.length; i++) {
+          if (sa[i] == null) {
+            s.put((byte) -1); // NAs are stored as 0xff (-1 in signed bytes)
+          } else {
+            byte[] b = strings[i];
+            if (b != null && b.length > 0 && b[0] == -1) { // double a leading 0xff so it doesn't get confused with NA
+              s.put((byte) -1);
+            }
+            putString(s, sa[i], b);
+          }
+          s.put((byte) 0);
+        }
+        s.pad(start, (byte) 1);
+        break;
+      }
+      case REXPFactory.XT_LIST_TAG:
+      case REXPFactory.XT_LIST_NOTAG:
+      case REXPFactory.XT_LANG_TAG:
+      case REXPFactory.XT_LANG_NOTAG:
+      case REXPFactory.XT_VECTOR:
+        for (int i = 0; i < elements.length; i++) {
+          elements[i].write(s);
+          if (tags != null) {
+            tags[i].write(s);
+          }
+        }
+        break;
+    }
+  }
+
+  static void putString(Sink s, String str, byte[] b) throws IOException {
+    if (b != null) {
+      s.put(b, 0, b.length);
+      return;
+    }
+    int i = 0, n = str.length();
+    while (i < n) {
+      int c = s.room(1);
+      if (c > n - i) {
+        c = n - i;
+      }
+      byte[] buf = s.buf;
+      int io = s.pos;
+      for (int e = i + c; i < e; i++) {
+        buf[io++] = (byte) str.charAt(i);
+      }
+      s.pos = io;
+    }
+  }
+
+  /**
+   * destination of the encoded bytes: either a buffer large enough for the
+   * whole REXP or a chunk buffer which is written to a stream whenever it is
+   * full
+   */
+  static final class Sink {
+
+    byte[] buf;
+    int pos;
+    OutputStream os;
+    /**
+     * number of bytes written to the stream so far
+     */
+    long flushed;
+
+    Sink(byte[] buf, int off) {
+      this.buf = buf;
+      pos = off;
+      flushed = -off;
+    }
+
+    Sink(OutputStream os, int size) {
+      this.os = os;
+      buf = new byte[(size < 16) ? 16 : size];
+    }
+
+    /**
+     * @return number of bytes produced so far
+     */
+    long written() {
+      return flushed + pos;
+    }
+
+    /**
+     * makes sure that there are at least <code>n</code> bytes free in the
+     * buffer, flushing it if necessary
+     *
+     * @return number of free bytes in the buffer
+     */
+    int room(int n) throws IOException {
+      if (buf.length - pos < n) {
+        flush();
+      }
+      return buf.length - pos;
+    }
+
+    void flush() throws IOException {
+      if (os != null && pos > 0) {
+        os.write(buf, 0, pos);
+        flushed += pos;
+        pos = 0;
+      }
+    }
+
+    void put(byte b) throws IOException {
+      room(1);
+      buf[pos++] = b;
+    }
+
+    void put(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = room(1);
+        if (n > len) {
+          n = len;
+        }
+        System.arraycopy(b, off, buf, pos, n);
+        pos += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    void put(ByteBuffer b) throws IOException {
+      while (b.hasRemaining()) {
+        int n = room(1);
+        if (n > b.remaining()) {
+          n = b.remaining();
+        }
+        b.get(buf, pos, n);
+        pos += n;
+      }
+    }
+
+    /**
+     * pads the contents starting at <code>start</code> to a multiple of four
+     * bytes
+     */
+    void pad(long start, byte v) throws IOException {
+      while (((written() - start) & 3) != 0) {
+        put(v);
+      }
+    }
+  }
+}
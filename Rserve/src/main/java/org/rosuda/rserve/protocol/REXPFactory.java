@@ -3,6 +3,8 @@ package org.rosuda.rserve.protocol;
 // JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
 // Copyright (C) 2004-8 Simon Urbanek
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 import org.rosuda.rengine.REXP;
 import org.rosuda.rengine.REXPDouble;
@@ -168,6 +170,11 @@ public class REXPFactory {
   REXPFactory attr;
   REXP cont;
   RList rootList;
+  REXPEncoder encoder;
+  /**
+   * whether elements of lists are decoded on first access
+   */
+  boolean lazy;
 
   public REXP getREXP() {
     return cont;
@@ -180,6 +187,26 @@ public class REXPFactory {
   public REXPFactory() {
   }
 
+  /**
+   * enables or disables lazy decoding. If enabled, {@link #parseREXP} does not
+   * decode the elements of generic vectors and lists, they are decoded when
+   * they are first accessed instead (see {@link LazyRList}). This saves a lot
+   * of time and memory if only a few elements of a large result are used.
+   *
+   * @param lazy <code>true</code> to decode list elements on demand
+   */
+  public void setLazyDecoding(boolean lazy) {
+    this.lazy = lazy;
+  }
+
+  /**
+   * returns the offset behind the REXP starting at the given offset without
+   * decoding it
+   */
+  static int skipREXP(byte[] buf, int o) {
+    return o + (((buf[o] & 64) != 0) ? 8 : 4) + RTalk.getLen(buf, o);
+  }
+
   public REXPFactory(REXP r) throws REXPMismatchException {
     if (r == null) {
       r = new REXPNull();
@@ -244,6 +271,7 @@ public class REXPFactory {
 
     type = xt;
     attr = new REXPFactory();
+    attr.lazy = lazy;
     cont = null;
     if (hasAtt) {
       o = attr.parseREXP(buf, o);
@@ -264,13 +292,10 @@ public class REXPFactory {
       return o;
     }
     if (xt == XT_ARRAY_DOUBLE) {
-      int as = (eox - o) / 8, i = 0;
+      int as = (eox - o) / 8;
       double[] d = new double[as];
-      while (o < eox) {
-        d[i] = Double.longBitsToDouble(RTalk.getLong(buf, o));
-        o += 8;
-        i++;
-      }
+      ByteBuffer.wrap(buf, o, as * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(d);
+      o += as * 8;
       if (o != eox) {
         System.err.println("Warning: double array SEXP size mismatch\n");
         o = eox;
@@ -299,11 +324,7 @@ public class REXPFactory {
       byte[] d = new byte[as];
       System.arraycopy(buf, o, d, 0, eox - o);
       o = eox;
-      for (int j = 0; j < d.length; j++) {
-        if (d[j] != 0 && d[j] != 1) {
-          d[j] = REXPLogical.NA;
-        }
-      }
+      normalizeLogicals(d, 0, d.length);
       cont = new REXPLogical(d, getAttr());
       return o;
     }
@@ -312,11 +333,7 @@ public class REXPFactory {
       o += 4;
       byte[] d = new byte[as];
       System.arraycopy(buf, o, d, 0, as);
-      for (int j = 0; j < d.length; j++) {
-        if (d[j] != 0 && d[j] != 1) {
-          d[j] = REXPLogical.NA;
-        }
-      }
+      normalizeLogicals(d, 0, d.length);
       o = eox;
       cont = new REXPLogical(d, getAttr());
       return o;
@@ -332,34 +349,15 @@ public class REXPFactory {
       return o;
     }
     if (xt == XT_ARRAY_INT) {
-      int as = (eox - o) / 4, i = 0;
+      int as = (eox - o) / 4;
       int[] d = new int[as];
-      while (o < eox) {
-        d[i] = RTalk.getInt(buf, o);
-        o += 4;
-        i++;
-      }
+      ByteBuffer.wrap(buf, o, as * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(d);
+      o += as * 4;
       if (o != eox) {
         System.err.println("Warning: int array SEXP size mismatch\n");
         o = eox;
       }
-      cont = null;
-      // hack for lists - special lists attached to int are factors
-      try {
-        if (getAttr() != null) {
-          REXP ca = getAttr().asList().at("class");
-          REXP ls = getAttr().asList().at("levels");
-          if (ca != null && ls != null && ca.asString().equals("factor")) {
-            // R uses 1-based index, Java uses 0-based one
-            cont = new REXPFactor(d, ls.asStrings(), getAttr());
-            xt = XT_FACTOR;
-          }
-        }
-      } catch (Exception e) {
-      }
-      if (cont == null) {
-        cont = new REXPInteger(d, getAttr());
-      }
+      cont = newIntegerVector(d, getAttr());
       return o;
     }
     if (xt == XT_RAW) {
@@ -375,10 +373,18 @@ public class REXPFactory {
             || xt == XT_LANG_NOTAG || xt == XT_LANG_TAG) {
       REXPFactory lc = new REXPFactory();
       REXPFactory nf = new REXPFactory();
-      RList l = new RList();
+      lc.lazy = lazy;
+      RList l = lazy ? new LazyRList(buf) : new RList();
       while (o < eox) {
         String name = null;
-        o = lc.parseREXP(buf, o);
+        Object el;
+        if (lazy) {
+          el = ((LazyRList) l).pending(o);
+          o = skipREXP(buf, o);
+        } else {
+          o = lc.parseREXP(buf, o);
+          el = lc.cont;
+        }
         if (xt == XT_LIST_TAG || xt == XT_LANG_TAG) {
           o = nf.parseREXP(buf, o);
           if (nf.cont.isSymbol() || nf.cont.isString()) {
@@ -386,9 +392,9 @@ public class REXPFactory {
           }
         }
         if (name == null) {
-          l.add(lc.cont);
+          l.add(el);
         } else {
-          l.put(name, lc.cont);
+          l.put(name, el);
         }
       }
       cont = (xt == XT_LANG_NOTAG || xt == XT_LANG_TAG)
@@ -432,75 +438,25 @@ public class REXPFactory {
     if (xt == XT_VECTOR || xt == XT_VECTOR_EXP) {
       Vector v = new Vector(); //FIXME: could we use RList?
       while (o < eox) {
-        REXPFactory xx = new REXPFactory();
-        o = xx.parseREXP(buf, o);
-        v.addElement(xx.cont);
+        if (lazy) {
+          v.addElement(new LazyRList.Pending(o));
+          o = skipREXP(buf, o);
+        } else {
+          REXPFactory xx = new REXPFactory();
+          o = xx.parseREXP(buf, o);
+          v.addElement(xx.cont);
+        }
       }
       if (o != eox) {
         System.err.println("Warning: int vector SEXP size mismatch\n");
         o = eox;
       }
-      // fixup for lists since they're stored as attributes of vectors
-      if (getAttr() != null && getAttr().asList().at("names") != null) {
-        REXP nam = getAttr().asList().at("names");
-        String names[] = null;
-        if (nam.isString()) {
-          names = nam.asStrings();
-        } else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
-          RList l = nam.asList();
-          Object oa[] = l.toArray();
-          names = new String[oa.length];
-          for (int i = 0; i < oa.length; i++) {
-            names[i] = ((REXP) oa[i]).asString();
-          }
-        }
-        RList l = new RList(v, names);
-        cont = (xt == XT_VECTOR_EXP)
-                ? new REXPExpressionVector(l, getAttr())
-                : new REXPGenericVector(l, getAttr());
-      } else {
-        cont = (xt == XT_VECTOR_EXP)
-                ? new REXPExpressionVector(new RList(v), getAttr())
-                : new REXPGenericVector(new RList(v), getAttr());
-      }
+      cont = newGenericVector(v, xt == XT_VECTOR_EXP, getAttr(), lazy ? buf : null);
       return o;
     }
     if (xt == XT_ARRAY_STR) {
-      int c = 0, i = o;
-      /* count the entries */
-      while (i < eox) {
-        if (buf[i++] == 0) {
-          c++;
-        }
-      }
-      String s[] = new String[c];
-      if (c > 0) {
-        c = 0;
-        i = o;
-        while (o < eox) {
-          if (buf[o] == 0) {
-            try {
-              if (buf[i] == -1) { /* if the first byte is 0xff (-1 in signed char) then it either needs to be skipped (doubling) or there is an NA value */
-
-                if (buf[i + 1] == 0) {
-                  s[c] = null; /* NA */
-                } else {
-                  s[c] = new String(buf, i + 1, o - i - 1, RConnection.transferCharset);
-                }
-              } else {
-                s[c] = new String(buf, i, o - i, RConnection.transferCharset);
-              }
-            } catch (java.io.UnsupportedEncodingException ex) {
-              s[c] = "";
-            }
-            c++;
-            i = o + 1;
-          }
-          o++;
-        }
-      }
-      cont = new REXPString(s, getAttr());
-      return o;
+      cont = new REXPString(StringArrayDecoder.get().decode(buf, o, eox), getAttr());
+      return eox;
     }
     if (xt == XT_VECTOR_STR) {
       Vector v = new Vector();
@@ -524,14 +480,15 @@ public class REXPFactory {
     }
     if (xt == XT_STR || xt == XT_SYMNAME) {
       int i = o;
-      while (buf[i] != 0 && i < eox) {
+      while (i < eox && buf[i] != 0) {
         i++;
       }
       try {
+        String s = StringArrayDecoder.get().decodeString(buf, o, i - o);
         if (xt == XT_STR) {
-          cont = new REXPString(new String[]{new String(buf, o, i - o, RConnection.transferCharset)}, getAttr());
+          cont = new REXPString(new String[]{s}, getAttr());
         } else {
-          cont = new REXPSymbol(new String(buf, o, i - o, RConnection.transferCharset));
+          cont = new REXPSymbol(s);
         }
       } catch (Exception e) {
         System.err.println("unable to convert string\n");
@@ -583,295 +540,112 @@ public class REXPFactory {
   }
 
   /**
-   * Calculates the length of the binary representation of the REXP including
-   * all headers. This is the amount of memory necessary to store the REXP via
-   * {@link #getBinaryRepresentation}.
-   * <p>
-   * Please note that currently only XT_[ARRAY_]INT, XT_[ARRAY_]DOUBLE and
-   * XT_[ARRAY_]STR are supported! All other types will return 4 which is the
-   * size of the header.
+   * creates an integer vector from decoded contents. Integer vectors with the
+   * class "factor" and levels are turned into factors.
    *
-   * @return length of the REXP including headers (4 or 8 bytes)
+   * @param d contents
+   * @param attr attributes (can be <code>null</code>)
+   * @return integer or factor REXP
    */
-  public int getBinaryLength() throws REXPMismatchException {
-    int l = 0;
-    int rxt = type;
-    if (type == XT_LIST || type == XT_LIST_TAG || type == XT_LIST_NOTAG) {
-      rxt = (cont.asList() != null && cont.asList().isNamed()) ? XT_LIST_TAG : XT_LIST_NOTAG;
-    }
-    //System.out.print("len["+xtName(type)+"/"+xtName(rxt)+"] ");
-    if (type == XT_VECTOR_STR) {
-      rxt = XT_ARRAY_STR; // VECTOR_STR is broken right now
-    }
-    /*
-     if (type==XT_VECTOR && cont.asList()!=null && cont.asList().isNamed())
-     setAttribute("names",new REXPString(cont.asList().keys()));
-     */
-
-    boolean hasAttr = false;
-    REXPList a = getAttr();
-    RList al = null;
-    if (a != null) {
-      al = a.asList();
-    }
-    if (al != null && al.size() > 0) {
-      hasAttr = true;
-    }
-    if (hasAttr) {
-      l += attr.getBinaryLength();
-    }
-    switch (rxt) {
-      case XT_NULL:
-      case XT_S4:
-        break;
-      case XT_INT:
-        l += 4;
-        break;
-      case XT_DOUBLE:
-        l += 8;
-        break;
-      case XT_RAW:
-        l += 4 + cont.asBytes().length;
-        if ((l & 3) > 0) {
-          l = l - (l & 3) + 4;
-        }
-        break;
-      case XT_STR:
-      case XT_SYMNAME:
-        l += (cont == null) ? 1 : (cont.asString().length() + 1);
-        if ((l & 3) > 0) {
-          l = l - (l & 3) + 4;
-        }
-        break;
-      case XT_ARRAY_INT:
-        l += cont.asIntegers().length * 4;
-        break;
-      case XT_ARRAY_DOUBLE:
-        l += cont.asDoubles().length * 8;
-        break;
-      case XT_ARRAY_CPLX:
-        l += cont.asDoubles().length * 8;
-        break;
-      case XT_ARRAY_BOOL:
-        l += cont.asBytes().length + 4;
-        if ((l & 3) > 0) {
-          l = l - (l & 3) + 4;
-        }
-        break;
-      case XT_LIST_TAG:
-      case XT_LIST_NOTAG:
-      case XT_LANG_TAG:
-      case XT_LANG_NOTAG:
-      case XT_LIST:
-      case XT_VECTOR: {
-        final RList lst = cont.asList();
-        int i = 0;
-        while (i < lst.size()) {
-          REXP x = lst.at(i);
-          l += (x == null) ? 4 : (new REXPFactory(x).getBinaryLength());
-          if (rxt == XT_LIST_TAG) {
-            int pl = l;
-            String s = lst.keyAt(i);
-            l += 4; // header for a symbol
-            l += (s == null) ? 1 : (s.length() + 1);
-            if ((l & 3) > 0) {
-              l = l - (l & 3) + 4;
-            }
-            // System.out.println("TAG length: "+(l-pl));
-          }
-          i++;
-        }
-        if ((l & 3) > 0) {
-          l = l - (l & 3) + 4;
+  static REXP newIntegerVector(int[] d, REXPList attr) {
+    // hack for lists - special lists attached to int are factors
+    try {
+      if (attr != null) {
+        REXP ca = attr.asList().at("class");
+        REXP ls = attr.asList().at("levels");
+        if (ca != null && ls != null && ca.asString().equals("factor")) {
+          // R uses 1-based index, Java uses 0-based one
+          return new REXPFactor(d, ls.asStrings(), attr);
         }
-        break;
       }
-      case XT_ARRAY_STR: {
-        String sa[] = cont.asStrings();
-        int i = 0;
-        while (i < sa.length) {
-          if (sa[i] != null) {
-            try {
-              byte b[] = sa[i].getBytes(RConnection.transferCharset);
-              if (b.length > 0) {
-                if (b[0] == -1) {
-                  l++;
-                }
-                l += b.length;
-              }
-              b = null;
-            } catch (java.io.UnsupportedEncodingException uex) {
-              // FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
-            }
-          } else {
-            l++; // NA = -1
-          }
-          l++;
-          i++;
-        }
-        if ((l & 3) > 0) {
-          l = l - (l & 3) + 4;
+    } catch (Exception e) {
+    }
+    return new REXPInteger(d, attr);
+  }
+
+  /**
+   * creates a generic (or expression) vector from decoded elements, using the
+   * "names" attribute (if present) for the names of the list
+   *
+   * @param v elements
+   * @param isExp <code>true</code> for an expression vector
+   * @param attr attributes (can be <code>null</code>)
+   * @return generic or expression vector
+   */
+  static REXP newGenericVector(Vector v, boolean isExp, REXPList attr) throws REXPMismatchException {
+    return newGenericVector(v, isExp, attr, null);
+  }
+
+  /**
+   * @param lazyBuf buffer of the pending elements of <code>v</code> or
+   * <code>null</code> if all elements are decoded
+   */
+  static REXP newGenericVector(Vector v, boolean isExp, REXPList attr, byte[] lazyBuf) throws REXPMismatchException {
+    RList l;
+    // fixup for lists since they're stored as attributes of vectors
+    if (attr != null && attr.asList().at("names") != null) {
+      REXP nam = attr.asList().at("names");
+      String names[] = null;
+      if (nam.isString()) {
+        names = nam.asStrings();
+      } else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
+        RList nl = nam.asList();
+        Object oa[] = nl.toArray();
+        names = new String[oa.length];
+        for (int i = 0; i < oa.length; i++) {
+          names[i] = ((REXP) oa[i]).asString();
         }
-        break;
       }
-    } // switch
-    if (l > 0xfffff0) {
-      l += 4; // large data need 4 more bytes
-    }							  // System.out.println("len:"+(l+4)+" "+xtName(rxt)+"/"+xtName(type)+" "+cont);
-    return l + 4; // add the header
+      l = (lazyBuf == null) ? new RList(v, names) : new LazyRList(lazyBuf, v, names);
+    } else {
+      l = (lazyBuf == null) ? new RList(v) : new LazyRList(lazyBuf, v, null);
+    }
+    return isExp ? new REXPExpressionVector(l, attr) : new REXPGenericVector(l, attr);
+  }
+
+  /**
+   * replaces all values other than TRUE (1) and FALSE (0) by NA
+   */
+  static void normalizeLogicals(byte[] d, int off, int len) {
+    for (int j = off; j < off + len; j++) {
+      if (d[j] != 0 && d[j] != 1) {
+        d[j] = REXPLogical.NA;
+      }
+    }
+  }
+
+  /**
+   * Calculates the length of the binary representation of the REXP including
+   * all headers. This is the amount of memory necessary to store the REXP via
+   * {@link #getBinaryRepresentation}. The sizes of all nodes are determined
+   * only once (see {@link REXPEncoder}), so subsequent calls are cheap.
+   *
+   * @return length of the REXP including headers (4 or 8 bytes)
+   */
+  public int getBinaryLength() throws REXPMismatchException {
+    return getEncoder().getBinaryLength();
   }
 
   /**
    * Stores the REXP in its binary (ready-to-send) representation including
    * header into a buffer and returns the index of the byte behind the REXP.
-   * <p>
-   * Please note that currently only XT_[ARRAY_]INT, XT_[ARRAY_]DOUBLE and
-   * XT_[ARRAY_]STR are supported! All other types will be stored as SEXP of the
-   * length 0 without any contents.
    *
    * @param buf buffer to store the REXP binary into
    * @param off offset of the first byte where to store the REXP
    * @return the offset of the first byte behind the stored REXP
    */
   public int getBinaryRepresentation(byte[] buf, int off) throws REXPMismatchException {
-    int myl = getBinaryLength();
-    boolean isLarge = (myl > 0xfffff0);
-    boolean hasAttr = false;
-    final REXPList a = getAttr();
-    RList al = null;
-    if (a != null) {
-      al = a.asList();
-    }
-    if (al != null && al.size() > 0) {
-      hasAttr = true;
-    }
-    int rxt = type, ooff = off;
-    if (type == XT_VECTOR_STR) {
-      rxt = XT_ARRAY_STR; // VECTOR_STR is broken right now
-    }
-    if (type == XT_LIST || type == XT_LIST_TAG || type == XT_LIST_NOTAG) {
-      rxt = (cont.asList() != null && cont.asList().isNamed()) ? XT_LIST_TAG : XT_LIST_NOTAG;
-    }
-    // System.out.println("@"+off+": "+xtName(rxt)+"/"+xtName(type)+" "+cont+" ("+myl+"/"+buf.length+") att="+hasAttr);
-    RTalk.setHdr(rxt | (hasAttr ? XT_HAS_ATTR : 0), myl - (isLarge ? 8 : 4), buf, off);
-    off += (isLarge ? 8 : 4);
-    if (hasAttr) {
-      off = attr.getBinaryRepresentation(buf, off);
-    }
-    switch (rxt) {
-      case XT_S4:
-      case XT_NULL:
-        break;
-      case XT_INT:
-        RTalk.setInt(cont.asInteger(), buf, off);
-        break;
-      case XT_DOUBLE:
-        RTalk.setLong(Double.doubleToRawLongBits(cont.asDouble()), buf, off);
-        break;
-      case XT_ARRAY_INT: {
-        int ia[] = cont.asIntegers();
-        int i = 0, io = off;
-        while (i < ia.length) {
-          RTalk.setInt(ia[i++], buf, io);
-          io += 4;
-        }
-        break;
-      }
-      case XT_ARRAY_BOOL: {
-        byte ba[] = cont.asBytes();
-        int io = off;
-        RTalk.setInt(ba.length, buf, io);
-        io += 4;
-        if (ba.length > 0) {
-          for (int i = 0; i < ba.length; i++) {
-            buf[io++] = (byte) ((ba[i] == REXPLogical.NA) ? 2 : ((ba[i] == REXPLogical.FALSE) ? 0 : 1));
-          }
-          while ((io & 3) != 0) {
-            buf[io++] = 3;
-          }
-        }
-        break;
-      }
-      case XT_ARRAY_DOUBLE: {
-        double da[] = cont.asDoubles();
-        int i = 0, io = off;
-        while (i < da.length) {
-          RTalk.setLong(Double.doubleToRawLongBits(da[i++]), buf, io);
-          io += 8;
-        }
-        break;
-      }
-      case XT_RAW: {
-        byte by[] = cont.asBytes();
-        RTalk.setInt(by.length, buf, off);
-        off += 4;
-        System.arraycopy(by, 0, buf, off, by.length);
-        break;
-      }
-      case XT_ARRAY_STR: {
-        String sa[] = cont.asStrings();
-        int i = 0, io = off;
-        while (i < sa.length) {
-          if (sa[i] != null) {
-            try {
-              byte b[] = sa[i].getBytes(RConnection.transferCharset);
-              if (b.length > 0) {
-                if (b[0] == -1) /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */ {
-                  buf[io++] = -1;
-                }
-                System.arraycopy(b, 0, buf, io, b.length);
-                io += b.length;
-              }
-              b = null;
-            } catch (java.io.UnsupportedEncodingException uex) {
-              // FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
-            }
-          } else {
-            buf[io++] = -1; /* NAs are stored as 0xff (-1 in signed bytes) */
-          }
-          buf[io++] = 0;
-          i++;
-        }
-        i = io - off;
-        while ((i & 3) != 0) {
-          buf[io++] = 1;
-          i++;
-        } // padding if necessary..
-        break;
-      }
-      case XT_LIST_TAG:
-      case XT_LIST_NOTAG:
-      case XT_LANG_TAG:
-      case XT_LANG_NOTAG:
-      case XT_LIST:
-      case XT_VECTOR:
-      case XT_VECTOR_EXP: {
-        int io = off;
-        final RList lst = cont.asList();
-        if (lst != null) {
-          int i = 0;
-          while (i < lst.size()) {
-            REXP x = lst.at(i);
-            if (x == null) {
-              x = new REXPNull();
-            }
-            io = new REXPFactory(x).getBinaryRepresentation(buf, io);
-            if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG) {
-              io = new REXPFactory(new REXPSymbol(lst.keyAt(i))).getBinaryRepresentation(buf, io);
-            }
-            i++;
-          }
-        }
-        // System.out.println("io="+io+", expected: "+(ooff+myl));
-        break;
-      }
+    return getEncoder().encode(buf, off);
+  }
 
-      case XT_SYMNAME:
-      case XT_STR:
-        getStringBinaryRepresentation(buf, off, cont.asString());
-        break;
+  /**
+   * @return encoder of the contents, created on first use
+   */
+  public REXPEncoder getEncoder() throws REXPMismatchException {
+    if (encoder == null) {
+      encoder = new REXPEncoder(cont);
     }
-    return ooff + myl;
+    return encoder;
   }
 
   public static int getStringBinaryRepresentation(byte[] buf, int off, String s) {
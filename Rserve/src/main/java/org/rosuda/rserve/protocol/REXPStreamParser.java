@@ -0,0 +1,312 @@
+package org.rosuda.rserve.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Vector;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDirectDouble;
+import org.rosuda.rengine.REXPDirectInteger;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPLanguage;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPRaw;
+import org.rosuda.rengine.RList;
+
+/**
+ * decodes the binary QAP1 representation of R-eXpressions directly from a
+ * stream. In contrast to {@link REXPFactory#parseREXP} the encoded response
+ * does not need to be held in memory as a whole: the contents of numeric,
+ * integer, logical and raw vectors are read in small chunks straight into the
+ * resulting arrays and lists are decoded element by element. All other
+ * (usually small) nodes are read into a buffer and decoded by
+ * {@link REXPFactory}.
+ * <p>
+ * Optionally, numeric and integer vectors above a given size are kept off the
+ * Java heap in direct buffers (see {@link #setOffHeapThreshold}). If the
+ * stream is also a {@link ReadableByteChannel} (such as
+ * {@link RTalk#getBodyStream}) the contents are received straight into these
+ * buffers.
+ *
+ * @version $Id$
+ */
+public class REXPStreamParser {
+
+  /**
+   * size of the chunks in which vector contents are read
+   */
+  static final int CHUNK_SIZE = 65536;
+
+  InputStream in;
+  byte[] buf = new byte[CHUNK_SIZE];
+  /**
+   * little-endian views of the chunk buffer used for bulk conversion
+   */
+  DoubleBuffer dbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+  IntBuffer ibuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+  /**
+   * number of bytes consumed so far
+   */
+  long pos = 0;
+  /**
+   * minimal size (in bytes) of vector contents stored off-heap, negative if
+   * disabled
+   */
+  int offHeapThreshold = -1;
+
+  /**
+   * creates a new parser
+   *
+   * @param in stream positioned at the beginning of an encoded REXP
+   */
+  public REXPStreamParser(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * set the size above which the contents of numeric and integer vectors are
+   * stored in direct buffers, resulting in {@link REXPDirectDouble} and
+   * {@link REXPDirectInteger} objects. Factors are always stored on the heap.
+   *
+   * @param bytes minimal size of the contents in bytes, negative values
+   * disable off-heap storage (default)
+   */
+  public void setOffHeapThreshold(int bytes) {
+    offHeapThreshold = bytes;
+  }
+
+  /**
+   * @return number of bytes consumed from the stream so far
+   */
+  public long getPosition() {
+    return pos;
+  }
+
+  void readFully(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = in.read(b, off, len);
+      if (n < 0) {
+        throw new EOFException("unexpected end of REXP stream");
+      }
+      off += n;
+      len -= n;
+      pos += n;
+    }
+  }
+
+  void skip(long n) throws IOException {
+    while (n > 0) {
+      int l = (n > buf.length) ? buf.length : (int) n;
+      readFully(buf, 0, l);
+      n -= l;
+    }
+  }
+
+  /**
+   * reads the header of a QAP1 parameter (e.g. the DT_SEXP header preceding
+   * the result of an eval)
+   *
+   * @return parameter type (without the DT_LARGE flag)
+   */
+  public int readParameterHeader() throws IOException {
+    readFully(buf, 0, 4);
+    if ((buf[0] & RTalk.DT_LARGE) != 0) {
+      readFully(buf, 4, 4);
+    }
+    return buf[0] & ~RTalk.DT_LARGE & 255;
+  }
+
+  /**
+   * decodes one REXP (including its attributes) from the stream
+   *
+   * @return decoded REXP
+   */
+  public REXP parseREXP() throws IOException, REXPMismatchException {
+    readFully(buf, 0, 4);
+    int hl = 4;
+    if ((buf[0] & 64) != 0) {
+      readFully(buf, 4, 4);
+      hl = 8;
+    }
+    int xl = RTalk.getLen(buf, 0);
+    boolean hasAtt = ((buf[0] & 128) != 0);
+    int xt = (int) (buf[0] & 63);
+    if (xl < 0) {
+      throw new IOException("REXP too large");
+    }
+    switch (xt) {
+      case REXPFactory.XT_ARRAY_DOUBLE:
+      case REXPFactory.XT_ARRAY_INT:
+      case REXPFactory.XT_ARRAY_BOOL:
+      case REXPFactory.XT_RAW:
+      case REXPFactory.XT_VECTOR:
+      case REXPFactory.XT_VECTOR_EXP:
+      case REXPFactory.XT_LIST_TAG:
+      case REXPFactory.XT_LIST_NOTAG:
+      case REXPFactory.XT_LANG_TAG:
+      case REXPFactory.XT_LANG_NOTAG:
+        break;
+      default: { // anything else is decoded in memory
+        byte[] b = new byte[hl + xl];
+        System.arraycopy(buf, 0, b, 0, hl);
+        readFully(b, hl, xl);
+        REXPFactory f = new REXPFactory();
+        f.parseREXP(b, 0);
+        return f.getREXP();
+      }
+    }
+    long eox = pos + xl;
+    REXPList attr = null;
+    if (hasAtt) {
+      REXP a = parseREXP();
+      if (a instanceof REXPList) {
+        attr = (REXPList) a;
+      }
+    }
+    REXP x = null;
+    switch (xt) {
+      case REXPFactory.XT_ARRAY_DOUBLE: {
+        int n = (int) ((eox - pos) / 8);
+        if (offHeapThreshold >= 0 && n * 8 >= offHeapThreshold) {
+          x = new REXPDirectDouble(readDirect(n * 8), attr);
+        } else {
+          x = new REXPDouble(readDoubles(n), attr);
+        }
+        break;
+      }
+      case REXPFactory.XT_ARRAY_INT: {
+        int n = (int) ((eox - pos) / 4);
+        if (offHeapThreshold >= 0 && n * 4 >= offHeapThreshold && !isFactor(attr)) {
+          x = new REXPDirectInteger(readDirect(n * 4), attr);
+        } else {
+          x = REXPFactory.newIntegerVector(readInts(n), attr);
+        }
+        break;
+      }
+      case REXPFactory.XT_ARRAY_BOOL: {
+        readFully(buf, 0, 4);
+        byte[] d = new byte[RTalk.getInt(buf, 0)];
+        readFully(d, 0, d.length);
+        REXPFactory.normalizeLogicals(d, 0, d.length);
+        x = new REXPLogical(d, attr);
+        break;
+      }
+      case REXPFactory.XT_RAW: {
+        readFully(buf, 0, 4);
+        byte[] d = new byte[RTalk.getInt(buf, 0)];
+        readFully(d, 0, d.length);
+        x = new REXPRaw(d, attr);
+        break;
+      }
+      case REXPFactory.XT_VECTOR:
+      case REXPFactory.XT_VECTOR_EXP: {
+        Vector v = new Vector();
+        while (pos < eox) {
+          v.addElement(parseREXP());
+        }
+        x = REXPFactory.newGenericVector(v, xt == REXPFactory.XT_VECTOR_EXP, attr);
+        break;
+      }
+      default: { // dotted-pair lists
+        boolean tagged = (xt == REXPFactory.XT_LIST_TAG || xt == REXPFactory.XT_LANG_TAG);
+        RList l = new RList();
+        while (pos < eox) {
+          REXP v = parseREXP();
+          String name = null;
+          if (tagged) {
+            REXP tag = parseREXP();
+            if (tag != null && (tag.isSymbol() || tag.isString())) {
+              name = tag.asString();
+            }
+          }
+          if (name == null) {
+            l.add(v);
+          } else {
+            l.put(name, v);
+          }
+        }
+        x = (xt == REXPFactory.XT_LANG_NOTAG || xt == REXPFactory.XT_LANG_TAG)
+                ? new REXPLanguage(l, attr)
+                : new REXPList(l, attr);
+      }
+    }
+    if (pos > eox) {
+      throw new IOException("REXP size mismatch (" + REXPFactory.xtName(xt) + ")");
+    }
+    skip(eox - pos); // padding
+    return x;
+  }
+
+  static boolean isFactor(REXPList attr) {
+    try {
+      REXP ca = (attr == null) ? null : attr.asList().at("class");
+      return ca != null && ca.isString() && ca.asStrings().length > 0 && "factor".equals(ca.asStrings()[0]);
+    } catch (REXPMismatchException e) {
+      return false;
+    }
+  }
+
+  /**
+   * reads <code>len</code> bytes into a new direct buffer
+   */
+  ByteBuffer readDirect(int len) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocateDirect(len);
+    if (in instanceof ReadableByteChannel) {
+      ReadableByteChannel rc = (ReadableByteChannel) in;
+      while (bb.hasRemaining()) {
+        int n = rc.read(bb);
+        if (n < 0) {
+          throw new EOFException("unexpected end of REXP stream");
+        }
+        pos += n;
+      }
+    } else {
+      while (bb.hasRemaining()) {
+        int n = (bb.remaining() > buf.length) ? buf.length : bb.remaining();
+        readFully(buf, 0, n);
+        bb.put(buf, 0, n);
+      }
+    }
+    bb.flip();
+    return bb;
+  }
+
+  double[] readDoubles(int n) throws IOException {
+    double[] d = new double[n];
+    int i = 0;
+    while (i < n) {
+      int c = n - i;
+      if (c > buf.length / 8) {
+        c = buf.length / 8;
+      }
+      readFully(buf, 0, c * 8);
+      dbuf.clear();
+      dbuf.get(d, i, c);
+      i += c;
+    }
+    return d;
+  }
+
+  int[] readInts(int n) throws IOException {
+    int[] d = new int[n];
+    int i = 0;
+    while (i < n) {
+      int c = n - i;
+      if (c > buf.length / 4) {
+        c = buf.length / 4;
+      }
+      readFully(buf, 0, c * 4);
+      ibuf.clear();
+      ibuf.get(d, i, c);
+      i += c;
+    }
+    return d;
+  }
+}
@@ -1,9 +1,26 @@
 package org.rosuda.rserve.protocol;
 
 // JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.rosuda.rengine.REXPMismatchException;
 import org.rosuda.rserve.RConnection;
+import org.rosuda.rserve.RserveMetrics;
 
 // Copyright (C) 2004 Simon Urbanek
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
@@ -48,6 +65,24 @@ public class RTalk {
 
   public static final int CMD_setBufferSize = 0x081;
   public static final int CMD_setEncoding = 0x082;
+  /**
+   * asks the server to compress response bodies of at least the given number
+   * of bytes (DT_INT parameter, negative values disable compression). This is
+   * an extension of QAP1 which is only available if the server announces
+   * {@link #COMPRESSION_ATTR} in its ID string.
+   */
+  public static final int CMD_setCompression = 0x083;
+
+  /**
+   * flag of the command (or response) word indicating that the body is
+   * compressed: it consists of the uncompressed length (int) followed by the
+   * deflate stream of the uncompressed body
+   */
+  public static final int CMD_COMPRESSED = 0x40000;
+  /**
+   * attribute of the ID string announcing support of compressed bodies
+   */
+  public static final String COMPRESSION_ATTR = "CPdf";
 
   public static final int CMD_detachSession = 0x030;
   public static final int CMD_detachedVoidEval = 0x031;
@@ -76,8 +111,77 @@ public class RTalk {
   public static final int ERR_session_busy = 0x50;
   public static final int ERR_detach_failed = 0x51;
 
+  /**
+   * size of the buffer used to assemble outgoing requests. Requests that fit
+   * into the buffer are sent with a single write.
+   */
+  public static final int SEND_BUFFER_SIZE = 65536;
+
   InputStream is;
   OutputStream os;
+  /**
+   * channel used for I/O or <code>null</code> if this RTalk uses streams
+   */
+  SocketChannel ch;
+  /**
+   * direct buffer used to assemble requests in channel mode
+   */
+  ByteBuffer sbuf;
+  /**
+   * request header, used in stream mode only
+   */
+  byte[] qh = new byte[16];
+  /**
+   * response header, reused for all responses
+   */
+  byte[] ih = new byte[16];
+  /**
+   * number of bytes of a streamed response body (see
+   * {@link #requestStreamed}) that have not been read yet
+   */
+  int bodyLeft = 0;
+  /**
+   * whether the unread response body is compressed
+   */
+  boolean bodyCompressed = false;
+  /**
+   * minimal size of request bodies which are compressed, negative if
+   * compression is disabled
+   */
+  int compressionThreshold = -1;
+
+  /**
+   * set to <code>true</code> once a request failed on the transport level
+   * (I/O error or truncated response). The stream is out of sync with the
+   * server at that point and cannot be used for further requests.
+   */
+  boolean broken = false;
+
+  /**
+   * replies of pipelined requests that have not been read yet, oldest first
+   */
+  LinkedList pending = new LinkedList();
+  int maxPending = 128;
+  /**
+   * size of the requests whose replies have not been read yet and their
+   * limit, see {@link #setMaxPendingBytes}
+   */
+  long pendingBytes = 0;
+  int maxPendingBytes = 32768;
+
+  /**
+   * receives timings and sizes of requests, <code>null</code> if disabled
+   */
+  RserveMetrics metrics;
+  /**
+   * size of the last request sent and of the last response received
+   */
+  long sentBytes, receivedBytes;
+  /**
+   * time at which the header of the last response arrived (only maintained
+   * with metrics)
+   */
+  long headerTime;
 
   /**
    * constructor; parameters specify the streams
@@ -87,7 +191,120 @@ public class RTalk {
    */
   public RTalk(InputStream sis, OutputStream sos) {
     is = sis;
-    os = sos;
+    os = (sos instanceof BufferedOutputStream) ? sos : new BufferedOutputStream(sos, 8192);
+  }
+
+  /**
+   * constructor; requests are assembled in a direct buffer and sent in as few
+   * writes as possible, which avoids splitting a request into several small
+   * TCP segments. The channel must be connected and in blocking mode.
+   *
+   * @param sch socket channel
+   */
+  public RTalk(SocketChannel sch) {
+    ch = sch;
+    sbuf = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+    sbuf.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * sets the size above which request bodies are compressed (see
+   * {@link #CMD_COMPRESSED}). Bodies that do not shrink are sent as-is. The
+   * server must support compressed bodies, this is not checked here.
+   *
+   * @param bytes minimal size of the body in bytes, negative values disable
+   * compression (default)
+   */
+  public void setCompressionThreshold(int bytes) {
+    compressionThreshold = bytes;
+  }
+
+  /**
+   * @return current compression threshold (see
+   * {@link #setCompressionThreshold})
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * sets the receiver of timings and sizes of all requests
+   *
+   * @param m metrics or <code>null</code> to disable measuring (default)
+   */
+  public void setMetrics(RserveMetrics m) {
+    metrics = m;
+  }
+
+  /**
+   * @return receiver of timings and sizes or <code>null</code> if disabled
+   */
+  public RserveMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * compresses a body into the format used with {@link #CMD_COMPRESSED}
+   *
+   * @param b uncompressed body
+   * @param off offset of the body
+   * @param len length of the body
+   * @return compressed body
+   */
+  public static byte[] compress(byte[] b, int off, int len) {
+    Deflater d = new Deflater(Deflater.BEST_SPEED);
+    try {
+      d.setInput(b, off, len);
+      d.finish();
+      byte[] z = new byte[4 + Math.max(len / 4, 64)];
+      setInt(len, z, 0);
+      int n = 4;
+      while (!d.finished()) {
+        if (n == z.length) {
+          z = Arrays.copyOf(z, n + Math.max(n / 2, 64));
+        }
+        n += d.deflate(z, n, z.length - n);
+      }
+      return (n == z.length) ? z : Arrays.copyOf(z, n);
+    } finally {
+      d.end();
+    }
+  }
+
+  /**
+   * decompresses a body in the format used with {@link #CMD_COMPRESSED}
+   *
+   * @param z compressed body
+   * @param off offset of the body
+   * @param len length of the body
+   * @return uncompressed body
+   * @throws IOException if the body is corrupt
+   */
+  public static byte[] decompress(byte[] z, int off, int len) throws IOException {
+    if (len < 4 || getInt(z, off) < 0) {
+      throw new IOException("invalid compressed body");
+    }
+    byte[] b = new byte[getInt(z, off)];
+    Inflater inf = new Inflater();
+    try {
+      inf.setInput(z, off + 4, len - 4);
+      int n = 0;
+      while (n < b.length) {
+        int k = inf.inflate(b, n, b.length - n);
+        if (k == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+          break;
+        }
+        n += k;
+      }
+      if (n != b.length) {
+        throw new IOException("compressed body is truncated");
+      }
+      return b;
+    } catch (DataFormatException e) {
+      throw new IOException("invalid compressed body: " + e.getMessage());
+    } finally {
+      inf.end();
+    }
   }
 
   /**
@@ -208,8 +425,7 @@ public class RTalk {
    * @return returned packet or <code>null</code> if something went wrong
    */
   public RPacket request(int cmd) {
-    byte[] d = new byte[0];
-    return request(cmd, d);
+    return request(cmd, null, null, 0, 0);
   }
 
   /**
@@ -242,6 +458,226 @@ public class RTalk {
    * @return returned packet or <code>null</code> if something went wrong
    */
   public RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len) {
+    return request(cmd, prefix, cont, offset, len, -1);
+  }
+
+  RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len, int streamThreshold) {
+    if (!pending.isEmpty()) {
+      drain();
+    }
+    RserveMetrics m = (cmd == -1) ? null : metrics;
+    long t0 = 0, t1 = 0;
+    if (m != null) {
+      m.requestStarted(cmd);
+      t0 = System.nanoTime();
+    }
+    try {
+      if (bodyLeft > 0) {
+        skipBody();
+      }
+      if (cmd != -1) {
+        send(cmd, prefix, cont, offset, len);
+      }
+      if (m != null) {
+        t1 = System.nanoTime();
+        m.phase(cmd, RserveMetrics.PHASE_SEND, t1 - t0);
+      }
+      RPacket rp = receive(streamThreshold);
+      if (rp == null) {
+        broken = true;
+      }
+      if (m != null) {
+        record(m, cmd, t0, t1, sentBytes, rp);
+      }
+      return rp;
+    } catch (Exception e) {
+      broken = true;
+      e.printStackTrace();
+      if (m != null) {
+        record(m, cmd, t0, t1, sentBytes, null);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * reports the completion of a request to the metrics
+   *
+   * @param t0 time at which the request was started
+   * @param t1 time at which the request was sent
+   * @param rp response or <code>null</code> if the request failed
+   */
+  void record(RserveMetrics m, int cmd, long t0, long t1, long requestBytes, RPacket rp) {
+    long now = System.nanoTime();
+    if (rp == null || !rp.isOk()) {
+      m.requestFailed(cmd, (rp == null) ? -1 : rp.getStat(), now - t0);
+      return;
+    }
+    m.phase(cmd, RserveMetrics.PHASE_WAIT, headerTime - t1);
+    m.phase(cmd, RserveMetrics.PHASE_RECEIVE, now - headerTime);
+    m.requestCompleted(cmd, requestBytes, receivedBytes, now - t0);
+  }
+
+  /**
+   * sends a request whose parameters end with a REXP. The REXP is encoded
+   * straight to the connection in chunks, so neither the encoded REXP nor the
+   * whole request are ever held in memory.
+   *
+   * @param cmd command
+   * @param prefix parameters preceding the REXP, including the header of the
+   * parameter containing the REXP
+   * @param x encoded REXP
+   * @return returned packet or <code>null</code> if something went wrong
+   */
+  public RPacket request(int cmd, byte[] prefix, REXPEncoder x) {
+    if (!pending.isEmpty()) {
+      drain();
+    }
+    RserveMetrics m = metrics;
+    long t0 = 0, t1 = 0;
+    if (m != null) {
+      m.requestStarted(cmd);
+      t0 = System.nanoTime();
+    }
+    try {
+      if (bodyLeft > 0) {
+        skipBody();
+      }
+      send(cmd, prefix, x);
+      if (m != null) { // includes encoding, which is interleaved with sending
+        t1 = System.nanoTime();
+        m.phase(cmd, RserveMetrics.PHASE_SEND, t1 - t0);
+      }
+      RPacket rp = receive(-1);
+      if (rp == null) {
+        broken = true;
+      }
+      if (m != null) {
+        record(m, cmd, t0, t1, sentBytes, rp);
+      }
+      return rp;
+    } catch (Exception e) {
+      broken = true;
+      e.printStackTrace();
+      if (m != null) {
+        record(m, cmd, t0, t1, sentBytes, null);
+      }
+      return null;
+    }
+  }
+
+  void send(int cmd, byte[] prefix, REXPEncoder x) throws IOException, REXPMismatchException {
+    int contlen = prefix.length + x.getBinaryLength();
+    if (compressionThreshold >= 0 && contlen >= compressionThreshold) {
+      BoundedBuffer z = compress(prefix, x, contlen);
+      if (z != null) {
+        send(cmd | CMD_COMPRESSED, null, z.buf, 0, z.count);
+        return;
+      }
+    }
+    sentBytes = 16 + contlen;
+    if (ch != null) {
+      sbuf.clear();
+      sbuf.putInt(cmd);
+      sbuf.putInt(contlen);
+      sbuf.putLong(0L);
+      put(prefix, 0, prefix.length);
+      x.encode(new OutputStream() {
+        public void write(int b) throws IOException {
+          put(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+          put(b, off, len);
+        }
+      }, SEND_BUFFER_SIZE);
+      flushSendBuffer();
+      return;
+    }
+    setInt(cmd, qh, 0);
+    setInt(contlen, qh, 4);
+    os.write(qh);
+    os.write(prefix);
+    x.encode(os, SEND_BUFFER_SIZE);
+    os.flush();
+  }
+
+  /**
+   * thrown by {@link BoundedBuffer} when the limit is reached
+   */
+  static class LimitReachedException extends IOException {
+
+    LimitReachedException() {
+      super("buffer limit reached");
+    }
+  }
+
+  /**
+   * output stream collecting bytes in a buffer which may be sent as-is. Once
+   * the content would reach the limit, writing fails with a
+   * {@link LimitReachedException}.
+   */
+  static class BoundedBuffer extends OutputStream {
+
+    byte[] buf;
+    int count = 0;
+    final int limit;
+
+    BoundedBuffer(int size, int limit) {
+      buf = new byte[Math.min(size, limit)];
+      this.limit = limit;
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if ((long) count + len >= limit) {
+        throw new LimitReachedException();
+      }
+      if (count + len > buf.length) {
+        buf = Arrays.copyOf(buf, (int) Math.min(limit - 1L, Math.max(count + len, 2L * buf.length)));
+      }
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+  }
+
+  /**
+   * compresses a request body consisting of a prefix and an encoded REXP
+   * without holding the uncompressed body in memory. Compression stops as soon
+   * as the compressed body is not smaller than the uncompressed one, so an
+   * incompressible body never takes up its full size in memory.
+   *
+   * @return compressed body or <code>null</code> if it is not smaller than
+   * the uncompressed one
+   */
+  static BoundedBuffer compress(byte[] prefix, REXPEncoder x, int contlen) throws IOException, REXPMismatchException {
+    Deflater d = new Deflater(Deflater.BEST_SPEED);
+    try {
+      BoundedBuffer bo = new BoundedBuffer(Math.max(contlen / 4, 64), contlen);
+      byte[] l = new byte[4];
+      setInt(contlen, l, 0);
+      bo.write(l);
+      DeflaterOutputStream zo = new DeflaterOutputStream(bo, d, SEND_BUFFER_SIZE);
+      zo.write(prefix);
+      x.encode(zo, SEND_BUFFER_SIZE);
+      zo.finish();
+      return bo;
+    } catch (LimitReachedException e) {
+      return null;
+    } finally {
+      d.end();
+    }
+  }
+
+  /**
+   * writes a request to the server without waiting for the response. See
+   * {@link #request(int,byte[],byte[],int,int)} for the meaning of the
+   * parameters.
+   */
+  void send(int cmd, byte[] prefix, byte[] cont, int offset, int len) throws IOException {
     if (cont != null) {
       if (offset >= cont.length) {
         cont = null;
@@ -260,45 +696,335 @@ public class RTalk {
     if (prefix != null && prefix.length > 0) {
       contlen += prefix.length;
     }
-    byte[] hdr = new byte[16];
-    setInt(cmd, hdr, 0);
-    setInt(contlen, hdr, 4);
-    for (int i = 8; i < 16; i++) {
-      hdr[i] = 0;
-    }
-    try {
-      if (cmd != -1) {
-        os.write(hdr);
-        if (prefix != null && prefix.length > 0) {
-          os.write(prefix);
-        }
-        if (cont != null && cont.length > 0) {
-          os.write(cont, offset, len);
+    if (compressionThreshold >= 0 && contlen >= compressionThreshold && contlen > 0 && (cmd & CMD_COMPRESSED) == 0) {
+      byte[] b = cont;
+      int bo = offset;
+      if (prefix != null && prefix.length > 0) {
+        b = new byte[contlen];
+        System.arraycopy(prefix, 0, b, 0, prefix.length);
+        if (cont != null) {
+          System.arraycopy(cont, offset, b, prefix.length, len);
         }
+        bo = 0;
+      }
+      byte[] z = compress(b, bo, contlen);
+      if (z.length < contlen) {
+        send(cmd | CMD_COMPRESSED, null, z, 0, z.length);
+        return;
+      }
+    }
+    sentBytes = 16 + contlen;
+    if (ch != null) {
+      sbuf.clear();
+      sbuf.putInt(cmd);
+      sbuf.putInt(contlen);
+      sbuf.putLong(0L);
+      if (prefix != null && prefix.length > 0) {
+        put(prefix, 0, prefix.length);
       }
+      if (cont != null && len > 0) {
+        put(cont, offset, len);
+      }
+      flushSendBuffer();
+      return;
+    }
+    setInt(cmd, qh, 0);
+    setInt(contlen, qh, 4);
+    os.write(qh);
+    if (prefix != null && prefix.length > 0) {
+      os.write(prefix);
+    }
+    if (cont != null && len > 0) {
+      os.write(cont, offset, len);
+    }
+    os.flush();
+  }
 
-      byte[] ih = new byte[16];
-      if (is.read(ih) != 16) {
-        return null;
+  /**
+   * appends data to the send buffer, writing out the buffer whenever it is full
+   */
+  void put(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = sbuf.remaining();
+      if (n == 0) {
+        flushSendBuffer();
+        n = sbuf.remaining();
       }
-      int rep = getInt(ih, 0);
-      int rl = getInt(ih, 4);
-      if (rl > 0) {
-        byte[] ct = new byte[rl];
-        int n = 0;
-        while (n < rl) {
-          int rd = is.read(ct, n, rl - n);
-          n += rd;
+      if (n > len) {
+        n = len;
+      }
+      sbuf.put(b, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * writes the contents of the send buffer to the channel and clears the
+   * buffer
+   */
+  void flushSendBuffer() throws IOException {
+    sbuf.flip();
+    while (sbuf.hasRemaining()) {
+      ch.write(sbuf);
+    }
+    sbuf.clear();
+  }
+
+  /**
+   * reads exactly <code>len</code> bytes from the server
+   *
+   * @throws EOFException if the connection was closed before all data was
+   * received
+   */
+  void readFully(byte[] b, int off, int len) throws IOException {
+    if (ch != null) {
+      ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+      while (bb.hasRemaining()) {
+        if (ch.read(bb) < 0) {
+          throw new EOFException("connection closed by the server");
         }
-        return new RPacket(rep, ct);
       }
+      return;
+    }
+    while (len > 0) {
+      int n = is.read(b, off, len);
+      if (n < 0) {
+        throw new EOFException("connection closed by the server");
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * reads one response packet from the server
+   *
+   * @return response packet
+   */
+  RPacket receive() throws IOException {
+    return receive(-1);
+  }
+
+  /**
+   * reads one response packet from the server
+   *
+   * @param streamThreshold if not negative, the body of a successful response
+   * of at least that many bytes (uncompressed) is not read, but left for
+   * {@link #getBodyStream}
+   * @return response packet, its content is <code>null</code> if the body was
+   * left on the wire
+   */
+  RPacket receive(int streamThreshold) throws IOException {
+    readFully(ih, 0, 16);
+    int rep = getInt(ih, 0);
+    int rl = getInt(ih, 4);
+    if (rl < 0 || getInt(ih, 12) != 0) { // we support responses up to 2GB only
+      throw new IOException("response too large");
+    }
+    receivedBytes = 16 + (long) rl;
+    if (metrics != null) {
+      headerTime = System.nanoTime();
+    }
+    boolean z = (rep & CMD_COMPRESSED) != 0;
+    rep &= ~CMD_COMPRESSED;
+    boolean stream = streamThreshold >= 0 && rl > 0 && (rep & 15) == 1;
+    if (stream && z) { // the threshold applies to the uncompressed length which precedes the deflate stream
+      if (rl < 4) {
+        throw new IOException("invalid compressed body");
+      }
+      readFully(ih, 0, 4);
+      if (getInt(ih, 0) >= streamThreshold) {
+        bodyLeft = rl - 4;
+        bodyCompressed = true;
+        return new RPacket(rep, null);
+      }
+      byte[] ct = new byte[rl];
+      System.arraycopy(ih, 0, ct, 0, 4);
+      readFully(ct, 4, rl - 4);
+      return new RPacket(rep, decompress(ct, 0, rl));
+    }
+    if (stream && rl >= streamThreshold) {
+      bodyLeft = rl;
+      bodyCompressed = false;
       return new RPacket(rep, null);
+    }
+    if (rl > 0) {
+      byte[] ct = new byte[rl];
+      readFully(ct, 0, rl);
+      return new RPacket(rep, z ? decompress(ct, 0, rl) : ct);
+    }
+    return new RPacket(rep, null);
+  }
+
+  /**
+   * sends a request with attached prefix and parameters, but does not wait for
+   * the response (pipelining). The server processes requests in the order they
+   * were sent, so any number of requests can be submitted back-to-back and
+   * their responses collected later through the returned futures. Calling
+   * {@link Future#get} on a reply reads all responses up to (and including)
+   * that reply. Any blocking <code>request</code> call reads all outstanding
+   * replies first, so it is safe to mix both styles.
+   * <p>
+   * At most {@link #setMaxPending} replies are left unread, once that limit is
+   * reached the oldest reply is read before the next request is sent.
+   * <p>
+   * The server doesn't read further requests while it is writing a reply, so
+   * a reply larger than the socket buffers blocks it until we read the reply.
+   * If we were writing a large request at the same time, both sides would
+   * wait for each other. Since the sizes of replies are not known in advance,
+   * the requests are bounded instead: replies are read before sending a
+   * request as long as the requests with unread replies plus the new one would
+   * exceed {@link #setMaxPendingBytes} bytes. A large request is therefore
+   * only sent once all previous replies have been read.
+   * <p>
+   * Note that RTalk is not thread-safe, the same applies to the returned
+   * futures.
+   * <p>
+   * See {@link #request(int,byte[],byte[],int,int)} for the meaning of the
+   * parameters.
+   *
+   * @return future reply, it yields <code>null</code> if something went wrong
+   */
+  public Future<RPacket> submit(int cmd, byte[] prefix, byte[] cont, int offset, int len) {
+    PendingReply r = new PendingReply(this);
+    long size = 16 + ((prefix == null) ? 0 : prefix.length) + (long) len;
+    while (!pending.isEmpty() && (pending.size() >= maxPending || pendingBytes + size > maxPendingBytes)) {
+      completeNext();
+    }
+    RserveMetrics m = metrics;
+    if (m != null) {
+      m.requestStarted(cmd);
+      r.cmd = cmd;
+      r.started = System.nanoTime();
+    }
+    if (broken) {
+      r.complete(null);
+      if (m != null) {
+        record(m, cmd, r.started, 0, 0, null);
+      }
+      return r;
+    }
+    try {
+      if (bodyLeft > 0) {
+        skipBody();
+      }
+      send(cmd, prefix, cont, offset, len);
+      r.requestBytes = sentBytes;
+      if (m != null) {
+        r.sent = System.nanoTime();
+        m.phase(cmd, RserveMetrics.PHASE_SEND, r.sent - r.started);
+      }
+      r.metrics = m;
+      pending.addLast(r);
+      pendingBytes += r.requestBytes;
     } catch (Exception e) {
+      broken = true;
       e.printStackTrace();
-      return null;
+      r.complete(null);
+      if (m != null) {
+        record(m, cmd, r.started, 0, 0, null);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * same as {@link #submit(int,byte[],byte[],int,int)}, but with one string
+   * parameter attached (see {@link #request(int,String)})
+   *
+   * @param cmd command
+   * @param par parameter - length and DT_STRING will be prepended
+   * @return future reply
+   */
+  public Future<RPacket> submit(int cmd, String par) {
+    byte[] rq;
+    try {
+      rq = newStringParameter(par);
+    } catch (Exception e) {
+      e.printStackTrace();
+      PendingReply r = new PendingReply(this);
+      r.complete(null);
+      return r;
+    }
+    return submit(cmd, null, rq, 0, rq.length);
+  }
+
+  /**
+   * reads the response of the oldest outstanding pipelined request
+   */
+  void completeNext() {
+    PendingReply r = (PendingReply) pending.removeFirst();
+    pendingBytes -= r.requestBytes;
+    RPacket rp = null;
+    if (!broken) {
+      try {
+        rp = receive();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (rp == null) {
+        broken = true;
+      }
+    }
+    if (r.metrics != null) {
+      record(r.metrics, r.cmd, r.started, r.sent, r.requestBytes, rp);
+    }
+    r.complete(rp);
+  }
+
+  /**
+   * reads responses of all outstanding pipelined requests
+   */
+  public void drain() {
+    while (!pending.isEmpty()) {
+      completeNext();
     }
   }
 
+  /**
+   * @return number of pipelined requests whose responses have not been read
+   * yet
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * sets the maximal number of pipelined requests whose responses are left
+   * unread before {@link #submit} starts reading them (default is 128)
+   *
+   * @param max maximal number of outstanding replies (at least 1)
+   */
+  public void setMaxPending(int max) {
+    maxPending = (max < 1) ? 1 : max;
+  }
+
+  /**
+   * sets the maximal total size of the pipelined requests whose responses are
+   * left unread (default is 32k). It must not exceed what the socket buffers
+   * of both sides can hold, otherwise pipelining can deadlock (see
+   * {@link #submit}). Single requests larger than that are sent only once all
+   * outstanding replies have been read.
+   *
+   * @param max maximal size in bytes
+   */
+  public void setMaxPendingBytes(int max) {
+    maxPendingBytes = (max < 0) ? 0 : max;
+  }
+
+  /**
+   * check whether the transport has failed. Once a request returned
+   * <code>null</code> because of an I/O problem, the connection cannot be
+   * recovered and should be discarded.
+   *
+   * @return <code>true</code> if a previous request failed on the transport
+   * level
+   */
+  public boolean isBroken() {
+    return broken;
+  }
+
   /**
    * sends a request with one string parameter attached
    *
@@ -307,29 +1033,187 @@ public class RTalk {
    * @return returned packet or <code>null</code> if something went wrong
    */
   public RPacket request(int cmd, String par) {
+    return requestStreamed(cmd, par, -1);
+  }
+
+  /**
+   * same as {@link #request(int,String)}, but the body of a successful
+   * response that is at least <code>streamThreshold</code> bytes long is not
+   * read. In that case the content of the returned packet is
+   * <code>null</code> and the body must be consumed through
+   * {@link #getBodyStream}. Any unread part of the body is skipped before the
+   * next request is sent.
+   *
+   * @param cmd command
+   * @param par parameter - length and DT_STRING will be prepended
+   * @param streamThreshold minimal body size to leave on the wire, negative
+   * values disable streaming
+   * @return returned packet or <code>null</code> if something went wrong
+   */
+  public RPacket requestStreamed(int cmd, String par, int streamThreshold) {
     try {
-      byte[] b = par.getBytes(RConnection.transferCharset);
-      int sl = b.length + 1;
-      if ((sl & 3) > 0) {
-        sl = (sl & 0xfffffc) + 4; // make sure the length is divisible by 4
-      }
-      byte[] rq = new byte[sl + 5];
-      int i;
-      for (i = 0; i < b.length; i++) {
-        rq[i + 4] = b[i];
-      }
-      while (i < sl) { // pad with 0
-        rq[i + 4] = 0;
-        i++;
-      };
-      setHdr(DT_STRING, sl, rq, 0);
-      return request(cmd, rq);
+      byte[] rq = newStringParameter(par);
+      return request(cmd, null, rq, 0, rq.length, streamThreshold);
     } catch (Exception e) {
       e.printStackTrace();
     }
     return null;
   }
 
+  /**
+   * returns a stream of the response body left on the wire by
+   * {@link #requestStreamed}. The stream ends with the body and is only valid
+   * until the next request.
+   *
+   * @return body stream or <code>null</code> if there is no unread body
+   */
+  public InputStream getBodyStream() {
+    if (bodyLeft <= 0) {
+      return null;
+    }
+    if (bodyCompressed) {
+      final Inflater inf = new Inflater();
+      return new InflaterInputStream(new BodyInputStream(), inf, SEND_BUFFER_SIZE) {
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+    }
+    return new BodyInputStream();
+  }
+
+  /**
+   * reads and discards the rest of a streamed response body
+   */
+  void skipBody() throws IOException {
+    byte[] b = new byte[(bodyLeft > 8192) ? 8192 : bodyLeft];
+    while (bodyLeft > 0) {
+      int n = (bodyLeft > b.length) ? b.length : bodyLeft;
+      readFully(b, 0, n);
+      bodyLeft -= n;
+    }
+  }
+
+  /**
+   * stream over the unread part of a response body. It can also be used as a
+   * channel which allows data to be read directly into (direct) buffers.
+   */
+  class BodyInputStream extends InputStream implements ReadableByteChannel {
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 1) ? -1 : (b[0] & 255);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (bodyLeft <= 0) {
+        return -1;
+      }
+      if (len > bodyLeft) {
+        len = bodyLeft;
+      }
+      int n;
+      try {
+        n = (ch != null) ? ch.read(ByteBuffer.wrap(b, off, len)) : is.read(b, off, len);
+        if (n < 0) {
+          throw new EOFException("connection closed by the server");
+        }
+      } catch (IOException e) {
+        broken = true;
+        bodyLeft = 0;
+        throw e;
+      }
+      bodyLeft -= n;
+      return n;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+      if (bodyLeft <= 0) {
+        return -1;
+      }
+      if (ch == null || !dst.isDirect()) {
+        if (!dst.hasArray()) { // we have to copy anyway, use the stream
+          byte[] b = new byte[Math.min(dst.remaining(), 65536)];
+          int n = read(b, 0, b.length);
+          if (n > 0) {
+            dst.put(b, 0, n);
+          }
+          return n;
+        }
+        int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        if (n > 0) {
+          dst.position(dst.position() + n);
+        }
+        return n;
+      }
+      int lim = dst.limit();
+      if (dst.remaining() > bodyLeft) {
+        dst.limit(dst.position() + bodyLeft);
+      }
+      int n;
+      try {
+        n = ch.read(dst);
+        if (n < 0) {
+          throw new EOFException("connection closed by the server");
+        }
+      } catch (IOException e) {
+        broken = true;
+        bodyLeft = 0;
+        throw e;
+      } finally {
+        dst.limit(lim);
+      }
+      bodyLeft -= n;
+      return n;
+    }
+
+    public boolean isOpen() {
+      return bodyLeft > 0;
+    }
+
+    /**
+     * skips the rest of the body
+     */
+    public void close() throws IOException {
+      try {
+        skipBody();
+      } catch (IOException e) {
+        broken = true;
+        bodyLeft = 0;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * creates a DT_STRING parameter including its header
+   *
+   * @param par parameter
+   * @return parameter in its binary representation
+   */
+  public static byte[] newStringParameter(String par) throws java.io.UnsupportedEncodingException {
+    byte[] b = par.getBytes(RConnection.transferCharset);
+    int sl = b.length + 1;
+    if ((sl & 3) > 0) {
+      sl = (sl & 0xfffffc) + 4; // make sure the length is divisible by 4
+    }
+    byte[] rq = new byte[sl + 5];
+    int i;
+    for (i = 0; i < b.length; i++) {
+      rq[i + 4] = b[i];
+    }
+    while (i < sl) { // pad with 0
+      rq[i + 4] = 0;
+      i++;
+    };
+    setHdr(DT_STRING, sl, rq, 0);
+    return rq;
+  }
+
   /**
    * sends a request with one string parameter attached
    *
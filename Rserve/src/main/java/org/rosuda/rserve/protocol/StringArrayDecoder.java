@@ -0,0 +1,179 @@
+package org.rosuda.rserve.protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.rosuda.rserve.RConnection;
+
+/**
+ * decodes the NUL-terminated strings of XT_ARRAY_STR (and symbol names) from
+ * their transfer encoding. The buffer is scanned only once: while looking for
+ * the terminating NUL each string is checked for non-ASCII bytes, pure ASCII
+ * strings (the vast majority in practice) are then converted without going
+ * through the charset decoder.
+ * <p>
+ * Optionally, repeated values such as factor labels or category columns can be
+ * deduplicated: short strings are looked up in a small cache of recently
+ * decoded values (keyed by their encoded bytes), so equal values share one
+ * <code>String</code> instance and are decoded only once. The cache has a
+ * fixed size and is kept per thread across responses.
+ * <p>
+ * Decoders are not thread-safe, {@link #get} returns one for the calling
+ * thread.
+ *
+ * @version $Id$
+ */
+public class StringArrayDecoder {
+
+  /**
+   * strings longer than this (in bytes) are never deduplicated
+   */
+  static final int MAX_DEDUP_LENGTH = 64;
+  /**
+   * number of entries of the deduplication cache (power of two)
+   */
+  static final int CACHE_SIZE = 4096;
+
+  static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+  static volatile boolean defaultDeduplication = false;
+
+  static final ThreadLocal current = new ThreadLocal();
+
+  Charset cs;
+  boolean ascii;
+  boolean dedup;
+  byte[][] keys;
+  String[] values;
+
+  /**
+   * creates a new decoder
+   *
+   * @param cs charset of the encoded strings
+   * @param dedup whether to deduplicate repeated values
+   */
+  public StringArrayDecoder(Charset cs, boolean dedup) {
+    this.cs = cs;
+    this.ascii = REXPEncoder.isAsciiCompatible(cs);
+    this.dedup = dedup;
+    if (dedup) {
+      keys = new byte[CACHE_SIZE][];
+      values = new String[CACHE_SIZE];
+    }
+  }
+
+  /**
+   * returns the decoder of the calling thread for the current
+   * {@link RConnection#transferCharset}
+   *
+   * @return decoder
+   */
+  public static StringArrayDecoder get() {
+    StringArrayDecoder d = (StringArrayDecoder) current.get();
+    if (d == null || d.dedup != defaultDeduplication || !d.cs.name().equalsIgnoreCase(RConnection.transferCharset)) {
+      d = new StringArrayDecoder(Charset.forName(RConnection.transferCharset), defaultDeduplication);
+      current.set(d);
+    }
+    return d;
+  }
+
+  /**
+   * enables or disables deduplication of strings for all decoded responses
+   * (it is disabled by default). Deduplication pays off if strings repeat a
+   * lot, e.g. for category labels, and costs a little time otherwise.
+   *
+   * @param dedup <code>true</code> to deduplicate
+   */
+  public static void setDeduplication(boolean dedup) {
+    defaultDeduplication = dedup;
+  }
+
+  /**
+   * @return whether strings are deduplicated
+   */
+  public static boolean getDeduplication() {
+    return defaultDeduplication;
+  }
+
+  /**
+   * decodes the contents of a XT_ARRAY_STR
+   *
+   * @param buf buffer
+   * @param o offset of the first string
+   * @param eox end of the contents (padding included)
+   * @return decoded strings (NAs are <code>null</code>)
+   */
+  public String[] decode(byte[] buf, int o, int eox) {
+    String[] s = new String[Math.min(16, eox - o)];
+    int c = 0;
+    while (o < eox) {
+      int i = o, h = 0, m = 0;
+      while (i < eox) {
+        byte b = buf[i];
+        if (b == 0) {
+          break;
+        }
+        m |= b;
+        h = 31 * h + b;
+        i++;
+      }
+      if (i >= eox) { // padding
+        break;
+      }
+      if (c == s.length) {
+        s = Arrays.copyOf(s, c * 2);
+      }
+      if (buf[o] == -1) { // if the first byte is 0xff then it either needs to be skipped (doubling) or there is an NA value
+        s[c++] = (i == o + 1) ? null : decodeString(buf, o + 1, i - o - 1);
+      } else {
+        s[c++] = decode(buf, o, i - o, h, m >= 0);
+      }
+      o = i + 1;
+    }
+    return (c == s.length) ? s : Arrays.copyOf(s, c);
+  }
+
+  /**
+   * decodes a single string
+   *
+   * @param buf buffer
+   * @param off offset of the string
+   * @param len length of the encoded string (without the terminating NUL)
+   * @return decoded string
+   */
+  public String decodeString(byte[] buf, int off, int len) {
+    int h = 0, m = 0;
+    for (int i = off; i < off + len; i++) {
+      m |= buf[i];
+      h = 31 * h + buf[i];
+    }
+    return decode(buf, off, len, h, m >= 0);
+  }
+
+  String decode(byte[] buf, int off, int len, int h, boolean isAscii) {
+    if (len == 0) {
+      return "";
+    }
+    if (!dedup || len > MAX_DEDUP_LENGTH) {
+      return convert(buf, off, len, isAscii);
+    }
+    int slot = (h ^ (h >>> 16)) & (CACHE_SIZE - 1);
+    byte[] k = keys[slot];
+    if (k != null && k.length == len) {
+      int i = 0;
+      while (i < len && k[i] == buf[off + i]) {
+        i++;
+      }
+      if (i == len) {
+        return values[slot];
+      }
+    }
+    String s = convert(buf, off, len, isAscii);
+    keys[slot] = Arrays.copyOfRange(buf, off, off + len);
+    values[slot] = s;
+    return s;
+  }
+
+  String convert(byte[] buf, int off, int len, boolean isAscii) {
+    return new String(buf, off, len, (isAscii && ascii) ? ASCII : cs);
+  }
+}
@@ -0,0 +1,394 @@
+package org.rosuda.rserve.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPNull;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.RConnection;
+import org.rosuda.rserve.protocol.REXPEncoder;
+import org.rosuda.rserve.protocol.REXPFactory;
+import org.rosuda.rserve.protocol.RTalk;
+
+/**
+ * state of one connection to an {@link EmbeddedRserve}. All methods are
+ * called by the I/O thread of the server.
+ *
+ * @version $Id$
+ */
+class EmbeddedConnection {
+
+  static final int RESP_OK = 0x10001;
+  static final int RESP_ERR = 0x10002;
+
+  /**
+   * chunk size of <code>readFile</code> without a length
+   */
+  static final int DEFAULT_READ_SIZE = 16384;
+
+  EmbeddedRserve server;
+  SocketChannel ch;
+  SelectionKey key;
+  boolean compression;
+  int threshold = -1;
+  /**
+   * user and password required for login, <code>null</code> once logged in or
+   * if there is no authentication
+   */
+  String[] credentials;
+
+  /**
+   * variables of the "R session" of this connection
+   */
+  HashMap variables = new HashMap();
+
+  ByteBuffer in = ByteBuffer.allocate(RTalk.SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  int cmd;
+  byte[] body;
+  int bodyPos;
+
+  /**
+   * responses not written yet, in the order of the requests
+   */
+  LinkedList out = new LinkedList();
+  boolean closeAfterWrite = false;
+  boolean closed = false;
+
+  byte[] readFile;
+  int readPos;
+  String writeName;
+  ByteArrayOutputStream writeFile;
+
+  /**
+   * response waiting to be written
+   */
+  static class Response {
+
+    ByteBuffer buf;
+    long due;
+
+    Response(byte[] b, long due) {
+      buf = ByteBuffer.wrap(b);
+      this.due = due;
+    }
+  }
+
+  EmbeddedConnection(EmbeddedRserve server, SocketChannel ch, boolean compression, String[] credentials) {
+    this.server = server;
+    this.ch = ch;
+    this.compression = compression;
+    this.credentials = credentials;
+  }
+
+  void handshake() throws IOException {
+    String id = "Rsrv0103QAP1\r\n\r\n" + (compression ? RTalk.COMPRESSION_ATTR : "----") + ((credentials != null) ? "ARpt" : "----") + "--------";
+    enqueue(id.getBytes("US-ASCII"), System.nanoTime());
+  }
+
+  void handle(SelectionKey key) {
+    try {
+      if (key.isReadable()) {
+        read();
+      }
+      if (!closed && key.isValid() && key.isWritable()) {
+        flush(System.nanoTime());
+      }
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  void read() throws IOException {
+    int n = ch.read(in);
+    if (n < 0) {
+      close();
+      return;
+    }
+    server.bytesIn += n;
+    long now = System.nanoTime();
+    in.flip();
+    while (!closeAfterWrite) {
+      if (body == null) {
+        if (in.remaining() < 16) {
+          break;
+        }
+        cmd = in.getInt();
+        int len = in.getInt();
+        in.getInt();
+        if (in.getInt() != 0 || len < 0) {
+          throw new IOException("request too large");
+        }
+        body = new byte[len];
+        bodyPos = 0;
+      }
+      int k = Math.min(in.remaining(), body.length - bodyPos);
+      in.get(body, bodyPos, k);
+      bodyPos += k;
+      if (bodyPos < body.length) {
+        break;
+      }
+      byte[] b = body;
+      body = null;
+      server.requests++;
+      process(cmd, b, now + server.latency);
+    }
+    in.compact();
+  }
+
+  void process(int cmd, byte[] b, long due) throws IOException {
+    if ((cmd & RTalk.CMD_COMPRESSED) != 0) {
+      b = RTalk.decompress(b, 0, b.length);
+      cmd &= ~RTalk.CMD_COMPRESSED;
+    }
+    if (credentials != null) {
+      if (cmd == RTalk.CMD_login && stringParam(b, 0).equals(credentials[0] + "\n" + credentials[1])) {
+        credentials = null;
+        respond(RESP_OK, null, due);
+      } else {
+        error(RTalk.ERR_auth_failed, due);
+      }
+      return;
+    }
+    switch (cmd) {
+      case RTalk.CMD_login:
+      case RTalk.CMD_setBufferSize:
+      case RTalk.CMD_setEncoding:
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_setCompression:
+        if (!compression) {
+          error(RTalk.ERR_unsupported_cmd, due);
+          break;
+        }
+        threshold = intParam(b);
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_voidEval:
+      case RTalk.CMD_eval:
+        REXP x;
+        try {
+          x = server.evaluate(stringParam(b, 0).trim(), variables);
+        } catch (REngineException e) {
+          error(RTalk.ERR_Rerror, due);
+          break;
+        }
+        if (cmd == RTalk.CMD_voidEval) {
+          respond(RESP_OK, null, due);
+        } else {
+          sexp((x == null) ? new REXPNull() : x, due);
+        }
+        break;
+      case RTalk.CMD_setSEXP:
+      case RTalk.CMD_assignSEXP:
+        try {
+          String sym = stringParam(b, 0);
+          int o = next(b, 0);
+          if ((b[o] & ~RTalk.DT_LARGE) == RTalk.DT_STRING) { // assign(String, String)
+            variables.put(sym, new REXPString(stringParam(b, o)));
+            respond(RESP_OK, null, due);
+            break;
+          }
+          REXPFactory f = new REXPFactory();
+          f.parseREXP(b, o + headerLength(b, o));
+          variables.put(sym, f.getREXP());
+        } catch (REXPMismatchException e) {
+          error(RTalk.ERR_inv_par, due);
+          break;
+        }
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_openFile:
+        readFile = server.getFile(stringParam(b, 0));
+        readPos = 0;
+        if (readFile == null) {
+          error(RTalk.ERR_IOerror, due);
+        } else {
+          respond(RESP_OK, null, due);
+        }
+        break;
+      case RTalk.CMD_createFile:
+        writeName = stringParam(b, 0);
+        writeFile = new ByteArrayOutputStream();
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_readFile:
+        if (readFile == null) {
+          error(RTalk.ERR_not_open, due);
+          break;
+        }
+        int n = Math.min((b.length > 0) ? intParam(b) : DEFAULT_READ_SIZE, readFile.length - readPos);
+        byte[] chunk = new byte[n];
+        System.arraycopy(readFile, readPos, chunk, 0, n);
+        readPos += n;
+        respond(RESP_OK, chunk, due);
+        break;
+      case RTalk.CMD_writeFile:
+        if (writeFile == null) {
+          error(RTalk.ERR_not_open, due);
+          break;
+        }
+        writeFile.write(b, headerLength(b, 0), RTalk.getLen(b, 0));
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_closeFile:
+        if (writeFile != null) {
+          server.putFile(writeName, writeFile.toByteArray());
+        }
+        readFile = null;
+        writeFile = null;
+        respond(RESP_OK, null, due);
+        break;
+      case RTalk.CMD_removeFile:
+        if (server.removeFile(stringParam(b, 0))) {
+          respond(RESP_OK, null, due);
+        } else {
+          error(RTalk.ERR_IOerror, due);
+        }
+        break;
+      case RTalk.CMD_shutdown:
+        respond(RESP_OK, null, due);
+        closeAfterWrite = true;
+        break;
+      default:
+        error(RTalk.ERR_unknown_cmd, due);
+    }
+  }
+
+  static int headerLength(byte[] b, int o) {
+    return ((b[o] & RTalk.DT_LARGE) != 0) ? 8 : 4;
+  }
+
+  /**
+   * @return offset of the parameter following the one at <code>o</code>
+   */
+  static int next(byte[] b, int o) {
+    return o + headerLength(b, o) + RTalk.getLen(b, o);
+  }
+
+  static int intParam(byte[] b) {
+    return RTalk.getInt(b, headerLength(b, 0));
+  }
+
+  static String stringParam(byte[] b, int o) throws UnsupportedEncodingException {
+    int s = o + headerLength(b, o);
+    int e = s;
+    int end = s + RTalk.getLen(b, o);
+    while (e < end && b[e] != 0) {
+      e++;
+    }
+    return new String(b, s, e - s, RConnection.transferCharset);
+  }
+
+  void sexp(REXP x, long due) throws IOException {
+    try {
+      REXPEncoder enc = new REXPEncoder(x);
+      int len = enc.getBinaryLength();
+      int hl = (len > 0xfffff0) ? 8 : 4;
+      byte[] res = new byte[16 + hl + len];
+      enc.encode(res, RTalk.setHdr(RTalk.DT_SEXP, len, res, 16));
+      frame(RESP_OK, res, due);
+    } catch (REXPMismatchException e) {
+      error(RTalk.ERR_Rerror, due);
+    }
+  }
+
+  void error(int err, long due) {
+    respond(RESP_ERR | (err << 24), null, due);
+  }
+
+  void respond(int rep, byte[] content, long due) {
+    byte[] res = new byte[16 + ((content == null) ? 0 : content.length)];
+    if (content != null) {
+      System.arraycopy(content, 0, res, 16, content.length);
+    }
+    frame(rep, res, due);
+  }
+
+  /**
+   * fills in the header of a response (whose body starts at offset 16),
+   * compresses the body if asked for and queues it
+   */
+  void frame(int rep, byte[] res, long due) {
+    int len = res.length - 16;
+    if (threshold >= 0 && len > 0 && len >= threshold) {
+      byte[] z = RTalk.compress(res, 16, len);
+      if (z.length < len) {
+        res = new byte[16 + z.length];
+        System.arraycopy(z, 0, res, 16, z.length);
+        rep |= RTalk.CMD_COMPRESSED;
+        len = z.length;
+      }
+    }
+    RTalk.setInt(rep, res, 0);
+    RTalk.setInt(len, res, 4);
+    enqueue(res, due);
+  }
+
+  void enqueue(byte[] res, long due) {
+    out.addLast(new Response(res, due));
+    server.busy.add(this);
+  }
+
+  /**
+   * @return time at which the next response is due or
+   * <code>Long.MAX_VALUE</code> if there is none
+   */
+  long nextDue() {
+    return out.isEmpty() ? Long.MAX_VALUE : ((Response) out.getFirst()).due;
+  }
+
+  /**
+   * writes all responses which are due, as far as the socket accepts them
+   */
+  void flush(long now) {
+    try {
+      while (!out.isEmpty()) {
+        Response r = (Response) out.getFirst();
+        if (r.due > now) {
+          break;
+        }
+        server.bytesOut += ch.write(r.buf);
+        if (r.buf.hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        out.removeFirst();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (out.isEmpty()) {
+        server.busy.remove(this);
+        if (closeAfterWrite) {
+          close();
+        }
+      }
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    server.busy.remove(this);
+    out.clear();
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      ch.close();
+    } catch (IOException e) {
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package org.rosuda.rserve.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REngineException;
+
+/**
+ * in-process stand-in for Rserve speaking the QAP1 protocol (as Rserve
+ * 0103), so that the client can be tested, load tested and profiled without
+ * R. A single I/O thread serves any number of connections using a NIO
+ * selector.
+ * <p>
+ * Each connection has its own set of variables, just like each Rserve
+ * connection has its own R process: objects assigned by the client are
+ * returned when their name is evaluated. Other commands get canned results
+ * (see {@link #respond}) or are passed to an {@link Evaluator}. Files are
+ * kept in memory and shared by all connections. Optionally, responses can be
+ * delayed to simulate the latency of R and the network, and compressed
+ * bodies (see {@link org.rosuda.rserve.protocol.RTalk#CMD_COMPRESSED}) can be
+ * enabled.
+ * <pre>
+ * EmbeddedRserve srv = new EmbeddedRserve();
+ * srv.respond("R.version.string", new REXPString("R version 4.3.0"));
+ * RConnection c = new RConnection("127.0.0.1", srv.getPort());
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class EmbeddedRserve {
+
+  Selector selector;
+  ServerSocketChannel server;
+  Thread thread;
+  volatile boolean closed = false;
+
+  /**
+   * connections with responses that have not been written yet
+   */
+  HashSet busy = new HashSet();
+
+  final HashMap responses = new HashMap();
+  final HashMap files = new HashMap();
+  volatile Evaluator evaluator;
+  volatile long latency = 0;
+  volatile boolean compression = false;
+  volatile String[] credentials;
+
+  volatile long requests = 0;
+  volatile long bytesIn = 0;
+  volatile long bytesOut = 0;
+
+  /**
+   * starts a server on an ephemeral port of the loopback interface
+   */
+  public EmbeddedRserve() throws IOException {
+    this(0);
+  }
+
+  /**
+   * starts a server on the loopback interface
+   *
+   * @param port TCP port, 0 for an ephemeral port
+   */
+  public EmbeddedRserve(int port) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "EmbeddedRserve I/O");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return TCP port the server listens on
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * sets a canned result: whenever <code>cmd</code> is evaluated, the result
+   * is returned without consulting the variables or the {@link Evaluator}
+   *
+   * @param cmd command (leading and trailing whitespace is ignored)
+   * @param result result, <code>null</code> removes the canned result
+   */
+  public void respond(String cmd, REXP result) {
+    synchronized (responses) {
+      if (result == null) {
+        responses.remove(cmd.trim());
+      } else {
+        responses.put(cmd.trim(), result);
+      }
+    }
+  }
+
+  /**
+   * sets the evaluator of commands without a canned result which are not the
+   * name of a variable
+   *
+   * @param e evaluator or <code>null</code> if such commands should fail
+   */
+  public void setEvaluator(Evaluator e) {
+    evaluator = e;
+  }
+
+  /**
+   * delays all responses by the given time. The server does not block
+   * meanwhile, responses to pipelined requests are delayed independently.
+   *
+   * @param time delay, 0 to respond right away (default)
+   * @param unit unit of the delay
+   */
+  public void setLatency(long time, TimeUnit unit) {
+    latency = unit.toNanos(time);
+  }
+
+  /**
+   * enables compressed bodies for connections opened from now on. The server
+   * announces the capability in its ID string and compresses responses once
+   * the client asks for it.
+   *
+   * @param enable <code>true</code> to support compression
+   */
+  public void setCompression(boolean enable) {
+    compression = enable;
+  }
+
+  /**
+   * requires connections opened from now on to log in with the given
+   * credentials (plain text authentication) before any other command
+   *
+   * @param user username
+   * @param pwd password, <code>null</code> disables authentication (default)
+   */
+  public void setCredentials(String user, String pwd) {
+    credentials = (pwd == null) ? null : new String[]{user, pwd};
+  }
+
+  /**
+   * stores a file which can be read through
+   * {@link org.rosuda.rserve.RConnection#openFile}
+   *
+   * @param name file name
+   * @param content content
+   */
+  public void putFile(String name, byte[] content) {
+    synchronized (files) {
+      files.put(name, content);
+    }
+  }
+
+  /**
+   * @param name file name
+   * @return content of a file or <code>null</code> if it doesn't exist
+   */
+  public byte[] getFile(String name) {
+    synchronized (files) {
+      return (byte[]) files.get(name);
+    }
+  }
+
+  boolean removeFile(String name) {
+    synchronized (files) {
+      return files.remove(name) != null;
+    }
+  }
+
+  /**
+   * @return number of requests received so far
+   */
+  public long getRequestCount() {
+    return requests;
+  }
+
+  /**
+   * @return number of bytes received so far (as they appear on the wire)
+   */
+  public long getBytesReceived() {
+    return bytesIn;
+  }
+
+  /**
+   * @return number of bytes sent so far (as they appear on the wire)
+   */
+  public long getBytesSent() {
+    return bytesOut;
+  }
+
+  /**
+   * evaluates a command: canned results come first, then variables and
+   * finally the evaluator
+   */
+  REXP evaluate(String cmd, Map variables) throws REngineException {
+    synchronized (responses) {
+      REXP x = (REXP) responses.get(cmd);
+      if (x != null) {
+        return x;
+      }
+    }
+    REXP x = (REXP) variables.get(cmd);
+    if (x != null) {
+      return x;
+    }
+    Evaluator e = evaluator;
+    if (e == null) {
+      throw new REngineException(null, "object '" + cmd + "' not found");
+    }
+    return e.eval(cmd, variables);
+  }
+
+  void loop() {
+    try {
+      while (!closed) {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Iterator it = busy.iterator();
+        while (it.hasNext()) {
+          long d = ((EmbeddedConnection) it.next()).nextDue();
+          if (d < next) {
+            next = d;
+          }
+        }
+        if (next == Long.MAX_VALUE) {
+          selector.select();
+        } else if (next > now) {
+          selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now)));
+        } else {
+          selector.selectNow();
+        }
+        it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = (SelectionKey) it.next();
+          it.remove();
+          if (key.isValid() && key.isAcceptable()) {
+            accept();
+          } else if (key.isValid()) {
+            ((EmbeddedConnection) key.attachment()).handle(key);
+          }
+        }
+        now = System.nanoTime();
+        Object[] b = busy.toArray();
+        for (int i = 0; i < b.length; i++) {
+          ((EmbeddedConnection) b[i]).flush(now);
+        }
+      }
+    } catch (Exception e) {
+      if (!closed) {
+        e.printStackTrace();
+      }
+    }
+    Object[] keys = selector.keys().toArray();
+    for (int i = 0; i < keys.length; i++) {
+      Object a = ((SelectionKey) keys[i]).attachment();
+      if (a instanceof EmbeddedConnection) {
+        ((EmbeddedConnection) a).close();
+      }
+    }
+    try {
+      server.close();
+      selector.close();
+    } catch (IOException e) {
+    }
+  }
+
+  void accept() throws IOException {
+    SocketChannel ch = server.accept();
+    if (ch == null) {
+      return;
+    }
+    ch.configureBlocking(false);
+    ch.socket().setTcpNoDelay(true);
+    EmbeddedConnection c = new EmbeddedConnection(this, ch, compression, credentials);
+    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+    c.handshake();
+  }
+
+  /**
+   * closes all connections and stops the server
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+    }
+  }
+}
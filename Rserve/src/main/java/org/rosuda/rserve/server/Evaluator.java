@@ -0,0 +1,31 @@
+package org.rosuda.rserve.server;
+
+import java.util.Map;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REngineException;
+
+/**
+ * computes the results of <code>eval</code> and <code>voidEval</code>
+ * requests received by an {@link EmbeddedRserve}. Implementations play the
+ * part of R, e.g. by returning scripted results depending on the command.
+ * All requests are evaluated by the I/O thread of the server, so
+ * implementations should be fast and must not block.
+ *
+ * @version $Id$
+ */
+public interface Evaluator {
+
+  /**
+   * evaluates a command
+   *
+   * @param cmd command as sent by the client (without trailing whitespace)
+   * @param variables variables of the connection (symbol names mapped to
+   * {@link REXP}s) which includes all objects assigned by the client; it may
+   * be modified
+   * @return result, <code>null</code> is returned to the client as
+   * <code>NULL</code>
+   * @throws REngineException to report an evaluation error to the client
+   */
+  REXP eval(String cmd, Map variables) throws REngineException;
+}
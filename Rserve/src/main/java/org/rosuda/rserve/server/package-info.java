@@ -0,0 +1,4 @@
+/**
+ * in-process stand-in for Rserve, used to test and load the client without R
+ */
+package org.rosuda.rserve.server ;
@@ -0,0 +1,101 @@
+package org.rosuda.rserve;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDirectDouble;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rserve.server.EmbeddedRserve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionTest {
+
+  static double[] series(int n) {
+    double[] d = new double[n];
+    for (int i = 0; i < n; i++) {
+      d[i] = 100 + (i % 250) * 0.25;
+    }
+    return d;
+  }
+
+  @Test
+  public void compressesRequestsAndResponses() throws Exception {
+    EmbeddedRserve srv = new EmbeddedRserve();
+    srv.setCompression(true);
+    RConnection c = new RConnection("127.0.0.1", srv.getPort());
+    assertTrue(c.supportsCompression());
+    c.setCompressionThreshold(1024);
+    double[] d = series(200000);
+    c.assign("x", new REXPDouble(d));
+    assertTrue(srv.getBytesReceived() < d.length * 8 / 10);
+    REXP x = c.eval("x");
+    assertArrayEquals(d, x.asDoubles(), 0.0);
+    assertTrue(srv.getBytesSent() < d.length * 8 / 10);
+    c.setStreamingThreshold(0); // inflated straight from the socket
+    assertArrayEquals(d, c.eval("x").asDoubles(), 0.0);
+    c.assign("y", new REXPDouble(1.5)); // too small to be compressed
+    assertEquals(1.5, c.eval("y").asDouble(), 0.0);
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void sendsIncompressibleRequestsAsIs() throws Exception {
+    EmbeddedRserve srv = new EmbeddedRserve();
+    srv.setCompression(true);
+    RConnection c = new RConnection("127.0.0.1", srv.getPort());
+    c.setCompressionThreshold(1024);
+    double[] d = new double[200000];
+    Random r = new Random(1);
+    for (int i = 0; i < d.length; i++) {
+      d[i] = Double.longBitsToDouble(r.nextLong()); // random bits do not deflate
+      if (Double.isNaN(d[i]) || Double.isInfinite(d[i])) {
+        d[i] = 0;
+      }
+    }
+    long n = srv.getBytesReceived();
+    c.assign("x", new REXPDouble(d));
+    assertTrue(srv.getBytesReceived() - n > d.length * 8);
+    assertArrayEquals(d, c.eval("x").asDoubles(), 0.0);
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void streamingThresholdAppliesToUncompressedSize() throws Exception {
+    EmbeddedRserve srv = new EmbeddedRserve();
+    srv.setCompression(true);
+    srv.respond("x", new REXPDouble(series(200000)));
+    RConnection c = new RConnection("127.0.0.1", srv.getPort());
+    c.setCompressionThreshold(1024);
+    // off-heap vectors are only created for streamed bodies, the compressed body is much smaller than the threshold
+    c.setOffHeapThreshold(1000000);
+    REXP x = c.eval("x");
+    assertTrue(srv.getBytesSent() < 1000000);
+    assertTrue(x instanceof REXPDirectDouble);
+    assertArrayEquals(series(200000), x.asDoubles(), 0.0);
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void refusesCompressionWithoutServerSupport() throws Exception {
+    EmbeddedRserve srv = new EmbeddedRserve();
+    RConnection c = new RConnection("127.0.0.1", srv.getPort());
+    assertFalse(c.supportsCompression());
+    try {
+      c.setCompressionThreshold(1024);
+      fail("compression enabled on a server without support");
+    } catch (RserveException e) {
+    }
+    assertEquals(-1, c.getCompressionThreshold());
+    c.close();
+    srv.close();
+  }
+}
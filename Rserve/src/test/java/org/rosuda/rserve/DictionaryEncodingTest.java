@@ -0,0 +1,113 @@
+package org.rosuda.rserve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.server.EmbeddedRserve;
+import org.rosuda.rserve.server.Evaluator;
+
+/**
+ * character vectors assigned as factors, against an embedded server which
+ * plays the part of <code>as.character</code>
+ */
+public class DictionaryEncodingTest {
+
+  static final String TMP = RConnection.DICTIONARY_TMP;
+
+  EmbeddedRserve srv;
+  RConnection c;
+  ArrayList commands = new ArrayList();
+  /**
+   * values of the temporary symbol seen by the conversion
+   */
+  ArrayList encoded = new ArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    srv = new EmbeddedRserve();
+    srv.setEvaluator(new Evaluator() {
+      public REXP eval(String cmd, Map variables) throws REngineException {
+        commands.add(cmd);
+        String conv = " <- as.character(" + TMP + "); rm(" + TMP + ")";
+        if (cmd.endsWith(conv)) {
+          REXP f = (REXP) variables.remove(TMP);
+          encoded.add(f);
+          try {
+            variables.put(cmd.substring(1, cmd.length() - conv.length() - 1), new REXPString(f.asStrings()));
+          } catch (REXPMismatchException e) {
+            throw new REngineException(null, e.getMessage());
+          }
+          return null;
+        }
+        throw new REngineException(null, "cannot evaluate " + cmd);
+      }
+    });
+    c = new RConnection("127.0.0.1", srv.getPort());
+    c.setDictionaryEncoding(true);
+  }
+
+  @After
+  public void tearDown() {
+    c.close();
+    srv.close();
+  }
+
+  static String[] repetitive(int n) {
+    String[] s = new String[n];
+    for (int i = 0; i < n; i++) {
+      s[i] = "level" + (i % 7);
+    }
+    return s;
+  }
+
+  @Test
+  public void sendsFactorsInOneRoundTrip() throws Exception {
+    String[] s = repetitive(5000);
+    srv.setLatency(200, TimeUnit.MILLISECONDS);
+    long n = srv.getRequestCount();
+    long t0 = System.nanoTime();
+    c.assign("s", new REXPString(s));
+    long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+    assertTrue("took " + ms + "ms", ms < 390); // two round trips take at least 400ms
+    assertEquals(n + 2, srv.getRequestCount());
+    assertEquals(1, commands.size());
+    assertEquals("`s` <- as.character(" + TMP + "); rm(" + TMP + ")", commands.get(0));
+    assertTrue(encoded.get(0) instanceof REXPFactor);
+    assertEquals(7, ((REXPFactor) encoded.get(0)).asFactor().levels().length);
+    srv.setLatency(0, TimeUnit.MILLISECONDS);
+    assertArrayEquals(s, c.eval("s").asStrings());
+  }
+
+  @Test
+  public void shortOrUniqueVectorsAreSentAsIs() throws Exception {
+    c.assign("short", new REXPString(repetitive(RConnection.DICTIONARY_MIN_LENGTH - 1)));
+    String[] u = new String[5000];
+    for (int i = 0; i < u.length; i++) {
+      u[i] = "value" + i;
+    }
+    c.assign("unique", new REXPString(u));
+    assertTrue(commands.isEmpty());
+    assertArrayEquals(u, c.eval("unique").asStrings());
+    assertEquals(RConnection.DICTIONARY_MIN_LENGTH - 1, c.eval("short").length());
+
+    // disabled: sent as-is as well
+    c.setDictionaryEncoding(false);
+    c.assign("s", new REXPString(repetitive(5000)));
+    assertTrue(commands.isEmpty());
+    assertFalse(c.eval("s") instanceof REXPFactor);
+  }
+}
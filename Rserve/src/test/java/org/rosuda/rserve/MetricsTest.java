@@ -0,0 +1,73 @@
+package org.rosuda.rserve;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rserve.protocol.RTalk;
+import org.rosuda.rserve.server.EmbeddedRserve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsTest {
+
+  @Test
+  public void recordsTimingsSizesAndErrors() throws Exception {
+    EmbeddedRserve srv = new EmbeddedRserve();
+    srv.respond("x", new REXPDouble(new double[1000]));
+    srv.setLatency(2, TimeUnit.MILLISECONDS);
+    RConnection c = new RConnection("127.0.0.1", srv.getPort());
+    SimpleRserveMetrics m = new SimpleRserveMetrics();
+    c.setMetrics(m);
+    for (int i = 0; i < 5; i++) {
+      c.eval("x");
+    }
+    c.assign("y", new REXPDouble(1.0));
+    try {
+      c.eval("z");
+      fail("unknown object evaluated");
+    } catch (RserveException e) {
+      assertEquals(RTalk.ERR_Rerror, e.getRequestReturnCode());
+    }
+    OutputStream os = c.createFile("f");
+    os.write(new byte[100]);
+    os.close();
+
+    SimpleRserveMetrics.CommandStats ev = m.getCommand(RTalk.CMD_eval);
+    assertEquals(5, ev.getCount());
+    assertEquals(1, ev.getErrorCount());
+    assertEquals(0, ev.getInFlight());
+    assertTrue(ev.getLatency().getPercentile(0.5) >= TimeUnit.MILLISECONDS.toNanos(2));
+    assertTrue(ev.getResponseSize().getMax() > 8000);
+    assertTrue(ev.getPhaseNanos(RserveMetrics.PHASE_WAIT) >= TimeUnit.MILLISECONDS.toNanos(10));
+    assertTrue(ev.getPhaseNanos(RserveMetrics.PHASE_DECODE) > 0);
+    assertEquals(1, m.getCommand(RTalk.CMD_setSEXP).getCount());
+    assertEquals(1, m.getCommand(RTalk.CMD_writeFile).getCount());
+    assertEquals(1, m.getErrorCount(RTalk.ERR_Rerror));
+    assertEquals(0, m.getErrorCount(-1));
+    assertEquals(0, m.getInFlight());
+    assertNull(m.getCommand(RTalk.CMD_removeFile));
+
+    c.setMetrics(null);
+    c.eval("x");
+    assertEquals(5, ev.getCount());
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void estimatesPercentiles() {
+    SimpleRserveMetrics.Histogram h = new SimpleRserveMetrics.Histogram();
+    for (int i = 1; i <= 100; i++) {
+      h.record(i);
+    }
+    assertEquals(100, h.getCount());
+    assertEquals(50.5, h.getMean(), 1e-9);
+    assertEquals(63, h.getPercentile(0.5)); // 50 falls into 32..63
+    assertEquals(100, h.getPercentile(0.99)); // capped by the maximum
+  }
+}
@@ -0,0 +1,162 @@
+package org.rosuda.rserve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rserve.protocol.RTalk;
+import org.rosuda.rserve.server.EmbeddedRserve;
+
+/**
+ * asynchronous requests against an embedded server
+ */
+public class RAsyncConnectionTest {
+
+  EmbeddedRserve srv;
+  RAsyncClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    srv = new EmbeddedRserve();
+    srv.respond("x", new REXPDouble(1.0));
+    srv.respond("y", new REXPDouble(2.0));
+    client = new RAsyncClient();
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    srv.close();
+  }
+
+  RAsyncConnection connect() throws Exception {
+    return client.connect("127.0.0.1", srv.getPort()).get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * waits for a future which must fail with a {@link RserveException}
+   */
+  static RserveException failure(CompletableFuture f) throws Exception {
+    try {
+      f.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), e.getCause() instanceof RserveException);
+      return (RserveException) e.getCause();
+    }
+    fail("request succeeded");
+    return null;
+  }
+
+  @Test
+  public void pipelinedEvals() throws Exception {
+    RAsyncConnection c = connect();
+    assertEquals(103, c.getServerVersion());
+    assertFalse(c.needLogin());
+    srv.setLatency(20, TimeUnit.MILLISECONDS);
+    CompletableFuture[] f = new CompletableFuture[50];
+    for (int i = 0; i < f.length; i++) {
+      f[i] = c.eval((i % 2 == 0) ? "x" : "y");
+    }
+    assertTrue(c.getPendingCount() > 0);
+    for (int i = 0; i < f.length; i++) {
+      assertEquals((i % 2 == 0) ? 1.0 : 2.0, ((REXP) f[i].get(5, TimeUnit.SECONDS)).asDouble(), 0.0);
+    }
+    assertEquals(0, c.getPendingCount());
+    // all requests were on the wire before the first (delayed) response
+    assertTrue(srv.getRequestCount() >= f.length);
+    c.close();
+  }
+
+  @Test
+  public void largeAssign() throws Exception {
+    RAsyncConnection c = connect();
+    double[] d = new double[1000000];
+    for (int i = 0; i < d.length; i++) {
+      d[i] = i * 0.5;
+    }
+    CompletableFuture a = c.assign("big", new REXPDouble(d));
+    CompletableFuture<REXP> x = c.eval("big");
+    assertEquals(null, a.get(5, TimeUnit.SECONDS));
+    assertArrayEquals(d, x.get(5, TimeUnit.SECONDS).asDoubles(), 0.0);
+    c.assign("s", "text").get(5, TimeUnit.SECONDS);
+    assertEquals("text", c.eval("s").get(5, TimeUnit.SECONDS).asString());
+    c.close();
+  }
+
+  @Test
+  public void serverErrors() throws Exception {
+    RAsyncConnection c = connect();
+    CompletableFuture<REXP> bad = c.eval("undefined");
+    CompletableFuture<Void> badVoid = c.voidEval("undefined");
+    CompletableFuture<REXP> good = c.eval("x");
+    assertEquals(RTalk.ERR_Rerror, failure(bad).getRequestReturnCode());
+    assertEquals(RTalk.ERR_Rerror, failure(badVoid).getRequestReturnCode());
+    // an R error does not affect the connection
+    assertEquals(1.0, good.get(5, TimeUnit.SECONDS).asDouble(), 0.0);
+    assertTrue(c.isConnected());
+    c.close();
+  }
+
+  @Test
+  public void serverClosesWithRequestsInFlight() throws Exception {
+    RAsyncConnection c = connect();
+    srv.setLatency(500, TimeUnit.MILLISECONDS);
+    CompletableFuture<REXP> f1 = c.eval("x");
+    CompletableFuture<REXP> f2 = c.eval("y");
+    while (srv.getRequestCount() < 2) {
+      Thread.sleep(1);
+    }
+    srv.close();
+    assertEquals(RTalk.ERR_conn_broken, failure(f1).getRequestReturnCode());
+    assertEquals(RTalk.ERR_conn_broken, failure(f2).getRequestReturnCode());
+    assertFalse(c.isConnected());
+    assertEquals(0, c.getPendingCount());
+    // later requests fail right away
+    assertEquals(RTalk.ERR_conn_broken, failure(c.eval("x")).getRequestReturnCode());
+  }
+
+  @Test
+  public void login() throws Exception {
+    srv.setCredentials("user", "secret");
+    RAsyncConnection c = client.connect("127.0.0.1", srv.getPort(), "user", "secret").get(5, TimeUnit.SECONDS);
+    assertTrue(c.needLogin());
+    assertEquals(1.0, c.eval("x").get(5, TimeUnit.SECONDS).asDouble(), 0.0);
+    c.close();
+
+    RserveException e = failure(client.connect("127.0.0.1", srv.getPort(), "user", "wrong"));
+    assertEquals(RTalk.ERR_auth_failed, e.getRequestReturnCode());
+
+    // without login the server refuses to evaluate anything
+    RAsyncConnection d = connect();
+    assertTrue(d.needLogin());
+    assertEquals(RTalk.ERR_auth_failed, failure(d.eval("x")).getRequestReturnCode());
+    d.close();
+  }
+
+  @Test
+  public void closingTheClientFailsPendingRequests() throws Exception {
+    RAsyncConnection c = connect();
+    srv.setLatency(1, TimeUnit.SECONDS);
+    CompletableFuture<REXP> f = c.eval("x");
+    CompletableFuture<Void> g = c.voidEval("y");
+    client.close();
+    assertTrue(client.isClosed());
+    failure(f);
+    failure(g);
+    assertFalse(c.isConnected());
+    failure(c.eval("x"));
+    // connecting after the client was closed fails as well
+    failure(client.connect("127.0.0.1", srv.getPort()));
+  }
+}
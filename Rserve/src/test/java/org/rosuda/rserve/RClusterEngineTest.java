@@ -0,0 +1,106 @@
+package org.rosuda.rserve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.server.EmbeddedRserve;
+import org.rosuda.rserve.server.Evaluator;
+
+/**
+ * routing of requests over two embedded servers
+ */
+public class RClusterEngineTest {
+
+  EmbeddedRserve a, b;
+  RClusterEngine eng;
+
+  @Before
+  public void setUp() throws Exception {
+    a = new EmbeddedRserve();
+    b = new EmbeddedRserve();
+    a.respond("x", new REXPDouble(1.0));
+    b.respond("x", new REXPDouble(2.0));
+    eng = new RClusterEngine(new String[]{"127.0.0.1", "127.0.0.1"}, new int[]{a.getPort(), b.getPort()}, 8);
+    eng.setBalancing(RClusterEngine.BALANCE_LATENCY);
+  }
+
+  @After
+  public void tearDown() {
+    eng.close();
+    a.close();
+    b.close();
+  }
+
+  @Test
+  public void coldStartSpreadsConcurrentRequests() throws Exception {
+    a.setLatency(50, TimeUnit.MILLISECONDS);
+    b.setLatency(50, TimeUnit.MILLISECONDS);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger onA = new AtomicInteger(), onB = new AtomicInteger();
+    Thread[] t = new Thread[6];
+    for (int i = 0; i < t.length; i++) {
+      t[i] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+            (eng.eval("x").asDouble() == 1.0 ? onA : onB).incrementAndGet();
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      t[i].start();
+    }
+    start.countDown();
+    for (int i = 0; i < t.length; i++) {
+      t[i].join();
+    }
+    assertEquals(t.length, onA.get() + onB.get());
+    assertTrue("A: " + onA + ", B: " + onB, onA.get() >= 2 && onB.get() >= 2);
+  }
+
+  @Test
+  public void prefersTheFasterNode() throws Exception {
+    b.setLatency(30, TimeUnit.MILLISECONDS);
+    int onA = 0;
+    for (int i = 0; i < 20; i++) {
+      if (eng.eval("x").asDouble() == 1.0) {
+        onA++;
+      }
+    }
+    assertTrue("A: " + onA, onA >= 17);
+    assertTrue(eng.getLatency(0) < eng.getLatency(1));
+  }
+
+  @Test
+  public void failingNodeDoesNotAttractAllRequests() throws Exception {
+    a.respond("x", null);
+    a.setEvaluator(new Evaluator() {
+      public REXP eval(String cmd, Map variables) throws REngineException {
+        throw new REngineException(null, "node is broken");
+      }
+    });
+    b.setLatency(5, TimeUnit.MILLISECONDS);
+    int ok = 0;
+    for (int i = 0; i < 30; i++) {
+      try {
+        eng.eval("x");
+        ok++;
+      } catch (RserveException e) {
+      }
+    }
+    assertTrue(eng.isNodeUp(0)); // R errors don't mark the node down
+    assertTrue("ok: " + ok, ok >= 15);
+  }
+}
@@ -0,0 +1,123 @@
+package org.rosuda.rserve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPNull;
+import org.rosuda.rserve.server.EmbeddedRserve;
+
+/**
+ * borrowing, reuse, validation and eviction of pooled connections to an
+ * embedded server
+ */
+public class RConnectionPoolTest {
+
+  EmbeddedRserve srv;
+  RConnectionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    srv = new EmbeddedRserve();
+    srv.respond("x", new REXPDouble(1.0));
+    pool = new RConnectionPool("127.0.0.1", srv.getPort(), 1, 2);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+    srv.close();
+  }
+
+  @Test
+  public void reusesConnectionsUpToMaxSize() throws Exception {
+    assertEquals(1, pool.getIdleCount());
+    RConnection c1 = pool.borrow();
+    RConnection c2 = pool.borrow();
+    assertNotSame(c1, c2);
+    assertEquals(2, pool.getSize());
+    assertEquals(1.0, c2.eval("x").asDouble(), 0.0);
+
+    pool.setMaxWait(50);
+    try {
+      pool.borrow();
+      fail("borrowed more than the maximal size");
+    } catch (RserveException e) {
+    }
+    pool.release(c2);
+    assertSame(c2, pool.borrow());
+    pool.release(c1);
+    pool.release(c2);
+    assertEquals(2, pool.getIdleCount());
+    assertEquals(0, pool.getBorrowedCount());
+  }
+
+  @Test
+  public void evictsClosedConnections() throws Exception {
+    RConnection c = pool.borrow();
+    c.close();
+    pool.release(c);
+    // refilled to the minimal size
+    assertEquals(1, pool.getSize());
+    assertEquals(1, pool.getIdleCount());
+    RConnection d = pool.borrow();
+    assertNotSame(c, d);
+    assertEquals(1.0, d.eval("x").asDouble(), 0.0);
+    pool.invalidate(d);
+    assertEquals(1, pool.getSize());
+    try {
+      pool.release(d);
+      fail("released a connection twice");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void validatesIdleConnections() throws Exception {
+    srv.respond("NULL", new REXPNull());
+    pool.setValidationInterval(0);
+    RConnection c = pool.borrow();
+    pool.release(c);
+    long n = srv.getRequestCount();
+    assertSame(c, pool.borrow());
+    assertEquals(n + 1, srv.getRequestCount()); // the probe
+    pool.release(c);
+
+    // a failing probe replaces the connection
+    srv.respond("NULL", null);
+    RConnection d = pool.borrow();
+    assertNotSame(c, d);
+    assertFalse(c.isConnected());
+    pool.release(d);
+
+    // connections used recently are not probed
+    pool.setValidationInterval(60000);
+    n = srv.getRequestCount();
+    assertSame(d, pool.borrow());
+    assertEquals(n, srv.getRequestCount());
+    pool.release(d);
+  }
+
+  @Test
+  public void evictsBrokenConnections() throws Exception {
+    RConnection c = pool.borrow();
+    srv.close();
+    try {
+      c.eval("x");
+      fail("eval succeeded without a server");
+    } catch (RserveException e) {
+    }
+    assertTrue(c.rt.isBroken());
+    pool.release(c);
+    // the server is gone, so the pool cannot be refilled
+    assertEquals(0, pool.getSize());
+    assertEquals(0, pool.getIdleCount());
+  }
+}
@@ -0,0 +1,224 @@
+package org.rosuda.rserve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rserve.server.EmbeddedRserve;
+import org.rosuda.rserve.server.Evaluator;
+
+/**
+ * R code generated by vector and data frame appenders, checked against an
+ * embedded server which records the commands
+ */
+public class RVectorAppenderTest {
+
+  /**
+   * records all commands and the chunks stored by <code>tmp[[k]] &lt;- tmp.chunk</code>
+   */
+  static class Recorder implements Evaluator {
+
+    ArrayList commands = new ArrayList();
+    ArrayList chunks = new ArrayList();
+    Map variables;
+
+    public REXP eval(String cmd, Map variables) {
+      this.variables = variables;
+      commands.add(cmd);
+      int i = cmd.indexOf("]] <- ");
+      if (i > 0) {
+        chunks.add(variables.get(cmd.substring(i + 6)));
+      }
+      return null;
+    }
+
+    /**
+     * @return name of the temporary list of the i-th appender
+     */
+    String tmp(int i) {
+      for (int j = 0; j < commands.size(); j++) {
+        String c = (String) commands.get(j);
+        if (c.endsWith(" <- list()") && i-- == 0) {
+          return c.substring(0, c.length() - 10);
+        }
+      }
+      return null;
+    }
+
+    String last() {
+      return (String) commands.get(commands.size() - 1);
+    }
+  }
+
+  EmbeddedRserve srv;
+  Recorder rec;
+  RConnection c;
+
+  @Before
+  public void setUp() throws Exception {
+    srv = new EmbeddedRserve();
+    rec = new Recorder();
+    srv.setEvaluator(rec);
+    c = new RConnection("127.0.0.1", srv.getPort());
+  }
+
+  @After
+  public void tearDown() {
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void sendsChunks() throws Exception {
+    RVectorAppender a = c.appender("x", RVectorAppender.TYPE_DOUBLE, 4);
+    for (int i = 0; i < 3; i++) {
+      a.append((double) i);
+    }
+    a.append(new double[]{9, 3, 4, 5, 6, 7, 8}, 1, 6);
+    a.append(9.0);
+    assertEquals(10, a.getLength());
+    a.finish();
+
+    String t = rec.tmp(0);
+    assertEquals(3, rec.chunks.size());
+    assertArrayEquals(new double[]{0, 1, 2, 3}, ((REXP) rec.chunks.get(0)).asDoubles(), 0.0);
+    assertArrayEquals(new double[]{4, 5, 6, 7}, ((REXP) rec.chunks.get(1)).asDoubles(), 0.0);
+    assertArrayEquals(new double[]{8, 9}, ((REXP) rec.chunks.get(2)).asDoubles(), 0.0);
+    assertTrue(rec.commands.contains(t + "[[3]] <- " + t + ".chunk"));
+    assertTrue(rec.commands.contains("x <- unlist(" + t + ", use.names=FALSE)"));
+    assertEquals("rm(list=intersect(c(\"" + t + "\", \"" + t + ".chunk\", \"" + t + ".levels\"), ls(all.names=TRUE)))", rec.last());
+    try {
+      a.append(1.0);
+      fail("appended to a finished vector");
+    } catch (IllegalStateException e) {
+    }
+
+    // a single chunk is used as-is
+    RVectorAppender b = c.appender("y", RVectorAppender.TYPE_INT, 4);
+    b.append(new int[]{1, 2}, 0, 2);
+    b.finish();
+    assertTrue(rec.commands.contains("y <- " + rec.tmp(1) + "[[1]]"));
+  }
+
+  @Test
+  public void emptyVectors() throws Exception {
+    c.appender("s", RVectorAppender.TYPE_STRING, 4).finish();
+    c.appender("i", RVectorAppender.TYPE_INT).finish();
+    assertEquals(0, rec.chunks.size());
+    assertTrue(rec.commands.contains("s <- character(0)"));
+    assertTrue(rec.commands.contains("i <- integer(0)"));
+  }
+
+  @Test
+  public void factorCodesAndNames() throws Exception {
+    RVectorAppender f = c.factorAppender("f", new String[]{"a", "b"}, 3);
+    f.append(1);
+    f.append("b");
+    f.append("unknown");
+    f.append((String) null);
+    f.append(new int[]{2, 1}, 0, 2);
+    try {
+      f.append(1.0);
+      fail("appended a double to a factor");
+    } catch (IllegalArgumentException e) {
+    }
+    f.finish();
+
+    String t = rec.tmp(0);
+    assertArrayEquals(new String[]{"a", "b"}, ((REXP) rec.variables.get(t + ".levels")).asStrings());
+    assertEquals(2, rec.chunks.size());
+    int na = REXPInteger.NA;
+    assertArrayEquals(new int[]{1, 2, na}, ((REXP) rec.chunks.get(0)).asIntegers());
+    assertArrayEquals(new int[]{na, 2, 1}, ((REXP) rec.chunks.get(1)).asIntegers());
+    assertTrue(rec.commands.contains("f <- structure(unlist(" + t + ", use.names=FALSE), levels=" + t + ".levels, class=\"factor\")"));
+
+    try {
+      c.appender("g", RVectorAppender.TYPE_FACTOR);
+      fail("factor appender without levels");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void dataFrames() throws Exception {
+    RDataFrameAppender df = c.dataFrameAppender("df", 2);
+    RVectorAppender a = df.addColumn("a", RVectorAppender.TYPE_DOUBLE);
+    RVectorAppender g = df.addFactorColumn("g", new String[]{"u", "v"});
+    assertEquals(2, df.getColumnCount());
+    for (int i = 0; i < 3; i++) {
+      a.append(i * 1.5);
+      g.append((i == 1) ? "v" : "u");
+    }
+    try {
+      a.finish();
+      fail("finished a column on its own");
+    } catch (IllegalStateException e) {
+    }
+    df.finish();
+
+    String ta = rec.tmp(0), tg = rec.tmp(1);
+    String cmd = null;
+    for (int i = 0; i < rec.commands.size(); i++) {
+      if (((String) rec.commands.get(i)).startsWith("df <- ")) {
+        cmd = (String) rec.commands.get(i);
+      }
+    }
+    String names = cmd.substring(cmd.lastIndexOf(", names=") + 8, cmd.indexOf(", class=\"data.frame\""));
+    assertEquals("df <- structure(list(unlist(" + ta + ", use.names=FALSE), structure(unlist(" + tg + ", use.names=FALSE), levels="
+            + tg + ".levels, class=\"factor\")), names=" + names + ", class=\"data.frame\", row.names=c(NA, -3L))", cmd);
+    assertArrayEquals(new String[]{"a", "g"}, ((REXP) rec.variables.get(names)).asStrings());
+    assertTrue(rec.commands.contains("rm(" + names + ")"));
+    assertTrue(rec.last().startsWith("rm(list=intersect(c(\"" + tg + "\""));
+
+    try {
+      df.addColumn("b", RVectorAppender.TYPE_INT);
+      fail("added a column to a finished data frame");
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void emptyDataFrame() throws Exception {
+    RDataFrameAppender df = c.dataFrameAppender("df");
+    df.addColumn("s", RVectorAppender.TYPE_STRING);
+    df.finish();
+    assertTrue(rec.last().startsWith("rm("));
+    boolean found = false;
+    for (int i = 0; i < rec.commands.size(); i++) {
+      String cmd = (String) rec.commands.get(i);
+      if (cmd.startsWith("df <- structure(list(character(0)), names=")) {
+        found = cmd.endsWith(", class=\"data.frame\", row.names=integer(0))");
+      }
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void columnLengthMismatch() throws Exception {
+    RDataFrameAppender df = c.dataFrameAppender("df", 2);
+    RVectorAppender a = df.addColumn("a", RVectorAppender.TYPE_INT);
+    RVectorAppender b = df.addColumn("b", RVectorAppender.TYPE_INT);
+    a.append(new int[]{1, 2, 3}, 0, 3);
+    b.append(1);
+    try {
+      df.finish();
+      fail("finished columns of different length");
+    } catch (RserveException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("column b has 1 values, expected 3"));
+    }
+    try {
+      df.addColumn("f", RVectorAppender.TYPE_FACTOR);
+      fail("factor column without levels");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
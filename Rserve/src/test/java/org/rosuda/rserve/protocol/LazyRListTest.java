@@ -0,0 +1,64 @@
+package org.rosuda.rserve.protocol;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REXPSymbol;
+import org.rosuda.rengine.RList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LazyRListTest {
+
+  static REXP parse(REXP x) throws Exception {
+    byte[] b = new REXPEncoder(x).encode();
+    REXPFactory f = new REXPFactory();
+    f.setLazyDecoding(true);
+    assertEquals(b.length, f.parseREXP(b, 0));
+    return f.getREXP();
+  }
+
+  static REXP model() {
+    RList l = new RList();
+    l.put("coefficients", new REXPDouble(new double[]{1.5, -2}));
+    l.put("residuals", new REXPDouble(new double[1000]));
+    RList inner = new RList();
+    inner.put("call", new REXPString("lm(y ~ x)"));
+    inner.put("df", new REXPDouble(998));
+    l.put("details", new REXPGenericVector(inner));
+    return new REXPGenericVector(l);
+  }
+
+  @Test
+  public void decodesElementsOnFirstAccess() throws Exception {
+    REXP x = parse(model());
+    LazyRList l = (LazyRList) x.asList();
+    assertEquals(3, l.getPendingCount());
+    assertArrayEquals(new double[]{1.5, -2}, l.at("coefficients").asDoubles(), 0.0);
+    assertEquals(2, l.getPendingCount());
+    REXP d = l.at("details");
+    assertEquals(2, ((LazyRList) d.asList()).getPendingCount());
+    assertEquals("lm(y ~ x)", d.asList().at("call").asString());
+    assertEquals(1, l.getPendingCount());
+    assertEquals(1000, l.at("residuals").length());
+    assertEquals(0, l.getPendingCount());
+  }
+
+  @Test
+  public void decodesTaggedListsOnIteration() throws Exception {
+    RList l = new RList();
+    l.put("a", new REXPDouble(1));
+    l.put("b", new REXPSymbol("s"));
+    RList r = parse(new REXPList(l)).asList();
+    assertEquals(2, ((LazyRList) r).getPendingCount());
+    assertArrayEquals(new String[]{"a", "b"}, r.keys());
+    Object[] o = r.toArray();
+    assertEquals(1.0, ((REXP) o[0]).asDouble(), 0.0);
+    assertEquals("s", ((REXP) o[1]).asString());
+    assertEquals(0, ((LazyRList) r).getPendingCount());
+  }
+}
@@ -0,0 +1,108 @@
+package org.rosuda.rserve.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPEncodedString;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLanguage;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPRaw;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REXPSymbol;
+import org.rosuda.rengine.RFactor;
+import org.rosuda.rengine.RList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class REXPEncoderTest {
+
+  static REXP decode(byte[] b) throws Exception {
+    REXPFactory f = new REXPFactory();
+    assertEquals(b.length, f.parseREXP(b, 0));
+    return f.getREXP();
+  }
+
+  static REXP nested(int depth) {
+    REXP x = new REXPString(new String[]{"a", "\u00e9t\u00e9", null, "\u00ff"});
+    for (int i = 0; i < depth; i++) {
+      RList l = new RList();
+      l.put("n\u00e4me" + i, x);
+      l.put("raw", new REXPRaw(new byte[]{1, 2, 3}));
+      x = new REXPGenericVector(l);
+    }
+    return x;
+  }
+
+  @Test
+  public void encodesNestedListsWithNonAsciiNames() throws Exception {
+    REXPEncoder e = new REXPEncoder(nested(50));
+    byte[] b = e.encode();
+    assertEquals(b.length, e.getBinaryLength());
+    REXP x = decode(b);
+    for (int i = 49; i >= 0; i--) {
+      assertEquals(2, x.length());
+      assertArrayEquals(new byte[]{1, 2, 3}, x.asList().at("raw").asBytes());
+      x = x.asList().at("n\u00e4me" + i);
+    }
+    assertArrayEquals(new String[]{"a", "\u00e9t\u00e9", null, "\u00ff"}, x.asStrings());
+  }
+
+  @Test
+  public void sizesTaggedLanguageObjects() throws Exception {
+    RList l = new RList();
+    l.add(new REXPSymbol("f"));
+    l.put("x", new REXPDouble(1.5));
+    l.put("na.rm", new REXPLogical(true));
+    REXPEncoder e = new REXPEncoder(new REXPLanguage(l));
+    byte[] b = e.encode();
+    REXP x = decode(b);
+    assertTrue(x instanceof REXPLanguage);
+    assertEquals(1.5, ((REXPList) x).asList().at("x").asDouble(), 0.0);
+  }
+
+  @Test
+  public void overwritesReusedBuffers() throws Exception {
+    REXPEncoder e = new REXPEncoder(nested(3));
+    byte[] b = new byte[e.getBinaryLength() + 5];
+    Arrays.fill(b, (byte) 0x55);
+    assertEquals(e.getBinaryLength() + 2, e.encode(b, 2));
+    assertArrayEquals(e.encode(), Arrays.copyOfRange(b, 2, 2 + e.getBinaryLength()));
+  }
+
+  @Test
+  public void streamsInChunks() throws Exception {
+    double[] d = new double[1001];
+    for (int i = 0; i < d.length; i++) {
+      d[i] = i / 3.0;
+    }
+    RList l = new RList();
+    l.put("d", new REXPDouble(d));
+    l.put("b", new REXPLogical(new boolean[]{true, false, true}));
+    l.put("x", nested(2));
+    REXPEncoder e = new REXPEncoder(new REXPGenericVector(l));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    e.encode(os, 20);
+    assertArrayEquals(e.encode(), os.toByteArray());
+  }
+
+  @Test
+  public void encodesDictionaryStringsLikePlainStrings() throws Exception {
+    String[] s = new String[]{"b", null, "\u00e9", "b", "\u00e9", "b"};
+    RFactor f = RFactor.create(s, 1, 3);
+    assertArrayEquals(new String[]{"b", "\u00e9"}, f.levels());
+    assertArrayEquals(new int[]{1, REXPInteger.NA, 2, 1, 2, 1}, f.asIntegers());
+    assertNull(RFactor.create(s, 1, 1));
+    REXPEncodedString es = new REXPEncodedString(f);
+    assertArrayEquals(s, es.asStrings());
+    assertArrayEquals(new REXPEncoder(new REXPString(s)).encode(), new REXPEncoder(es).encode());
+  }
+}
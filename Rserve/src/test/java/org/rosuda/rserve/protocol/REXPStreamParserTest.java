@@ -0,0 +1,90 @@
+package org.rosuda.rserve.protocol;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDirectDouble;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.RList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class REXPStreamParserTest {
+
+  static byte[] encode(REXP x) throws Exception {
+    REXPFactory f = new REXPFactory(x);
+    byte[] b = new byte[f.getBinaryLength()];
+    f.getBinaryRepresentation(b, 0);
+    return b;
+  }
+
+  static REXP roundTrip(REXP x) throws Exception {
+    return roundTrip(x, -1);
+  }
+
+  static REXP roundTrip(REXP x, int offHeapThreshold) throws Exception {
+    byte[] b = encode(x);
+    REXPStreamParser p = new REXPStreamParser(new ByteArrayInputStream(b));
+    p.setOffHeapThreshold(offHeapThreshold);
+    REXP r = p.parseREXP();
+    assertEquals(b.length, p.getPosition());
+    return r;
+  }
+
+  @Test
+  public void parsesLargeNumericVectors() throws Exception {
+    double[] d = new double[100003];
+    for (int i = 0; i < d.length; i++) {
+      d[i] = i * 0.5;
+    }
+    d[7] = REXPDouble.NA;
+    REXP r = roundTrip(new REXPDouble(d));
+    assertTrue(r instanceof REXPDouble);
+    assertArrayEquals(d, r.asDoubles(), 0.0);
+    assertTrue(r.isNA()[7]);
+  }
+
+  @Test
+  public void parsesNamedListsAndFactors() throws Exception {
+    RList l = new RList();
+    l.put("i", new REXPInteger(new int[]{1, 2, REXPInteger.NA}));
+    l.put("f", new REXPFactor(new int[]{1, 2, 1}, new String[]{"a", "b"}));
+    l.put("b", new REXPLogical(new boolean[]{true, false, true}));
+    l.put("s", new REXPString(new String[]{"x", null, "zz"}));
+    REXP r = roundTrip(new REXPGenericVector(l));
+    RList rl = r.asList();
+    assertEquals(4, rl.size());
+    assertArrayEquals(new int[]{1, 2, REXPInteger.NA}, rl.at("i").asIntegers());
+    assertTrue(rl.at("f") instanceof REXPFactor);
+    assertArrayEquals(new String[]{"a", "b", "a"}, rl.at("f").asStrings());
+    assertArrayEquals(new byte[]{1, 0, 1}, rl.at("b").asBytes());
+    assertArrayEquals(new String[]{"x", null, "zz"}, rl.at("s").asStrings());
+  }
+
+  @Test
+  public void storesLargeVectorsOffHeap() throws Exception {
+    double[] d = new double[5000];
+    for (int i = 0; i < d.length; i++) {
+      d[i] = Math.sqrt(i);
+    }
+    REXP r = roundTrip(new REXPDouble(d), 1024);
+    assertTrue(r instanceof REXPDirectDouble);
+    REXPDirectDouble dd = (REXPDirectDouble) r;
+    assertEquals(d.length, dd.length());
+    assertEquals(d[4999], dd.get(4999), 0.0);
+    assertEquals(d[17], dd.asDoubleBuffer().get(17), 0.0);
+    assertArrayEquals(d, dd.asDoubles(), 0.0);
+    // off-heap vectors are encoded exactly like regular ones
+    assertArrayEquals(encode(new REXPDouble(d)), encode(dd));
+    // small vectors stay on the heap
+    assertTrue(!(roundTrip(new REXPDouble(new double[]{1, 2}), 1024) instanceof REXPDirectDouble));
+  }
+}
@@ -0,0 +1,50 @@
+package org.rosuda.rserve.protocol;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StringArrayDecoderTest {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static byte[] bytes(String s) {
+    return s.getBytes(UTF8);
+  }
+
+  @Test
+  public void decodesNAsEscapesAndNonAscii() {
+    byte[] e = bytes("\u00e9t\u00e9");
+    byte[] b = new byte[32];
+    int o = 0;
+    b[o++] = 'a';
+    b[o++] = 0;
+    b[o++] = -1; // NA
+    b[o++] = 0;
+    b[o++] = -1; // escaped leading 0xff
+    b[o++] = -1;
+    b[o++] = 'x';
+    b[o++] = 0;
+    System.arraycopy(e, 0, b, o, e.length);
+    o += e.length;
+    b[o++] = 0;
+    b[o++] = 0; // empty string
+    b[o++] = 1; // padding
+    StringArrayDecoder d = new StringArrayDecoder(UTF8, false);
+    assertArrayEquals(new String[]{"a", null, new String(new byte[]{-1, 'x'}, UTF8), "\u00e9t\u00e9", ""}, d.decode(b, 0, o));
+  }
+
+  @Test
+  public void deduplicatesRepeatedValues() {
+    byte[] b = bytes("red\u0000green\u0000red\u0000red\u0000");
+    String[] s = new StringArrayDecoder(UTF8, true).decode(b, 0, b.length);
+    assertEquals(4, s.length);
+    assertSame(s[0], s[2]);
+    assertSame(s[0], s[3]);
+    assertEquals("green", s[1]);
+  }
+}
@@ -0,0 +1,139 @@
+package org.rosuda.rserve.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.RConnection;
+import org.rosuda.rserve.RPipeline;
+import org.rosuda.rserve.RserveException;
+import org.rosuda.rserve.protocol.RPacket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EmbeddedRserveTest {
+
+  EmbeddedRserve srv;
+  RConnection c;
+
+  @Before
+  public void setUp() throws Exception {
+    srv = new EmbeddedRserve();
+    c = new RConnection("127.0.0.1", srv.getPort());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    c.close();
+    srv.close();
+  }
+
+  @Test
+  public void evaluatesCannedScriptedAndAssignedValues() throws Exception {
+    srv.respond("R.version.string", new REXPString("R version 4.3.0"));
+    srv.setEvaluator(new Evaluator() {
+      public REXP eval(String cmd, Map variables) throws REngineException {
+        if (cmd.startsWith("length(")) {
+          REXP x = (REXP) variables.get(cmd.substring(7, cmd.length() - 1));
+          try {
+            return new REXPInteger((x == null) ? 0 : x.length());
+          } catch (REXPMismatchException e) {
+            throw new REngineException(null, e.getMessage());
+          }
+        }
+        throw new REngineException(null, "cannot evaluate " + cmd);
+      }
+    });
+    assertEquals("R version 4.3.0", c.eval("R.version.string").asString());
+    double[] d = {1.5, 2.5, 3.5};
+    c.assign("x", new REXPDouble(d));
+    assertArrayEquals(d, c.eval("x").asDoubles(), 0.0);
+    assertEquals(3, c.eval("length(x)").asInteger());
+    try {
+      c.voidEval("stop('boom')");
+      fail("error not reported");
+    } catch (RserveException e) {
+    }
+    RConnection other = new RConnection("127.0.0.1", srv.getPort());
+    assertEquals(0, other.eval("length(x)").asInteger()); // variables are per connection
+    other.close();
+  }
+
+  @Test
+  public void storesFiles() throws Exception {
+    byte[] b = new byte[40000];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) i;
+    }
+    OutputStream os = c.createFile("data.bin");
+    os.write(b);
+    os.close();
+    assertArrayEquals(b, srv.getFile("data.bin"));
+    InputStream is = c.openFile("data.bin");
+    byte[] r = new byte[b.length];
+    int n = 0, k;
+    while ((k = is.read(r, n, Math.min(8192, r.length - n))) > 0) {
+      n += k;
+    }
+    is.close();
+    assertEquals(b.length, n);
+    assertArrayEquals(b, r);
+    c.removeFile("data.bin");
+    try {
+      c.openFile("data.bin");
+      fail("removed file opened");
+    } catch (java.io.IOException e) {
+    }
+  }
+
+  @Test
+  public void delaysPipelinedResponsesIndependently() throws Exception {
+    srv.respond("x", new REXPDouble(1.0));
+    srv.setLatency(50, TimeUnit.MILLISECONDS);
+    long t0 = System.nanoTime();
+    RPipeline p = c.pipeline();
+    ArrayList replies = new ArrayList();
+    for (int i = 0; i < 20; i++) {
+      replies.add(p.eval("x"));
+    }
+    for (int i = 0; i < replies.size(); i++) {
+      assertEquals(1.0, p.get((Future<RPacket>) replies.get(i)).asDouble(), 0.0);
+    }
+    long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+    assertTrue(ms >= 50);
+    assertTrue(ms < 20 * 50); // not serialized
+    assertTrue(srv.getRequestCount() >= 20);
+  }
+
+  @Test
+  public void readsRepliesBeforeLargePipelinedRequests() throws Exception {
+    srv.respond("x", new REXPDouble(1.0));
+    RPipeline p = c.pipeline();
+    Future<RPacket> a = p.eval("x");
+    Future<RPacket> b = p.eval("x");
+    assertEquals(2, p.getPendingCount());
+    assertTrue(!a.isDone());
+    // the server might be blocked writing a large reply, so the replies are read before writing a large request
+    Future<RPacket> big = p.assign("big", new REXPDouble(new double[10000]));
+    assertTrue(a.isDone() && b.isDone());
+    assertEquals(1, p.getPendingCount());
+    p.sync();
+    assertTrue(big.isDone());
+    assertEquals(10000, c.eval("big").length());
+  }
+}
@@ -0,0 +1,143 @@
+package org.rosuda.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rserve.protocol.REXPFactory;
+import org.rosuda.rserve.protocol.RTalk;
+
+/**
+ * encoding and decoding of large numeric and integer vectors in the QAP1
+ * format. The <code>*PerElement</code> benchmarks replicate the former
+ * byte-by-byte conversion through {@link RTalk#getLong}/{@link RTalk#setLong}
+ * and serve as the baseline for the bulk <code>ByteBuffer</code> conversion
+ * used by {@link REXPFactory}.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ArrayCodecBenchmark {
+
+  @Param({"10000000"})
+  int size;
+
+  REXP doubles;
+  REXP ints;
+  byte[] encodedDoubles;
+  byte[] encodedInts;
+  byte[] target;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Random r = new Random(42);
+    double[] d = new double[size];
+    int[] i = new int[size];
+    for (int k = 0; k < size; k++) {
+      d[k] = r.nextGaussian();
+      i[k] = r.nextInt();
+    }
+    doubles = new REXPDouble(d);
+    ints = new REXPInteger(i);
+    encodedDoubles = encode(doubles);
+    encodedInts = encode(ints);
+    target = new byte[encodedDoubles.length];
+  }
+
+  static byte[] encode(REXP x) throws Exception {
+    REXPFactory f = new REXPFactory(x);
+    byte[] b = new byte[f.getBinaryLength()];
+    f.getBinaryRepresentation(b, 0);
+    return b;
+  }
+
+  /**
+   * offset of the array contents behind the REXP header
+   */
+  static int contentOffset(byte[] b) {
+    return ((b[0] & 64) != 0) ? 8 : 4;
+  }
+
+  @Benchmark
+  public REXP decodeDoubles() throws Exception {
+    REXPFactory f = new REXPFactory();
+    f.parseREXP(encodedDoubles, 0);
+    return f.getREXP();
+  }
+
+  @Benchmark
+  public double[] decodeDoublesPerElement() {
+    int o = contentOffset(encodedDoubles);
+    double[] d = new double[(encodedDoubles.length - o) / 8];
+    for (int i = 0; i < d.length; i++, o += 8) {
+      d[i] = Double.longBitsToDouble(RTalk.getLong(encodedDoubles, o));
+    }
+    return d;
+  }
+
+  @Benchmark
+  public REXP decodeInts() throws Exception {
+    REXPFactory f = new REXPFactory();
+    f.parseREXP(encodedInts, 0);
+    return f.getREXP();
+  }
+
+  @Benchmark
+  public int[] decodeIntsPerElement() {
+    int o = contentOffset(encodedInts);
+    int[] d = new int[(encodedInts.length - o) / 4];
+    for (int i = 0; i < d.length; i++, o += 4) {
+      d[i] = RTalk.getInt(encodedInts, o);
+    }
+    return d;
+  }
+
+  @Benchmark
+  public int encodeDoubles() throws Exception {
+    return new REXPFactory(doubles).getBinaryRepresentation(target, 0);
+  }
+
+  @Benchmark
+  public int encodeDoublesPerElement() throws Exception {
+    double[] d = doubles.asDoubles();
+    int o = contentOffset(encodedDoubles);
+    for (int i = 0; i < d.length; i++, o += 8) {
+      RTalk.setLong(Double.doubleToRawLongBits(d[i]), target, o);
+    }
+    return o;
+  }
+
+  @Benchmark
+  public int encodeInts() throws Exception {
+    return new REXPFactory(ints).getBinaryRepresentation(target, 0);
+  }
+
+  @Benchmark
+  public int encodeIntsPerElement() throws Exception {
+    int[] d = ints.asIntegers();
+    int o = contentOffset(encodedInts);
+    for (int i = 0; i < d.length; i++, o += 4) {
+      RTalk.setInt(d[i], target, o);
+    }
+    return o;
+  }
+}
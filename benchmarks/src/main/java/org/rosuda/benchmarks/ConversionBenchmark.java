@@ -0,0 +1,105 @@
+package org.rosuda.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patocarranza.dataframe.DataFrame;
+import org.rosuda.rengine.REXP;
+
+/**
+ * conversions between R objects and Java structures: matrices
+ * ({@link REXP#asDoubleMatrix}, {@link REXP#createDoubleMatrix}) and data
+ * frames ({@link DataFrame}).
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ConversionBenchmark {
+
+  /**
+   * number of rows of the matrix and the data frame
+   */
+  @Param({"100000"})
+  int rows;
+
+  /**
+   * number of columns of the matrix
+   */
+  @Param({"20"})
+  int cols;
+
+  double[][] matrix;
+  REXP rMatrix;
+  DataFrame frame;
+  REXP rFrame;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Random r = new Random(42);
+    matrix = new double[rows][cols];
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
+        matrix[i][j] = r.nextGaussian();
+      }
+    }
+    rMatrix = REXP.createDoubleMatrix(matrix);
+    double[] price = new double[rows];
+    int[] qty = new int[rows];
+    String[] sym = new String[rows];
+    int[] side = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      price[i] = 100 + r.nextGaussian();
+      qty[i] = r.nextInt(1000);
+      sym[i] = "SYM" + r.nextInt(500);
+      side[i] = 1 + r.nextInt(2);
+    }
+    frame = new DataFrame(rows, null)
+            .addColumn("price", price)
+            .addColumn("qty", qty)
+            .addColumn("symbol", sym)
+            .addFactorColumn("side", side, new String[]{"buy", "sell"});
+    rFrame = frame.toREXP();
+  }
+
+  @Benchmark
+  public REXP createDoubleMatrix() {
+    return REXP.createDoubleMatrix(matrix);
+  }
+
+  @Benchmark
+  public double[][] asDoubleMatrix() throws Exception {
+    return rMatrix.asDoubleMatrix();
+  }
+
+  @Benchmark
+  public DataFrame dataFrameFromREXP() throws Exception {
+    return new DataFrame(rFrame);
+  }
+
+  @Benchmark
+  public REXP dataFrameToREXP() throws Exception {
+    return frame.toREXP();
+  }
+
+  @Benchmark
+  public Object[][] dataFrameObjects() throws Exception {
+    return new DataFrame(rFrame).getObjects();
+  }
+}
@@ -0,0 +1,110 @@
+package org.rosuda.benchmarks;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rserve.RConnection;
+import org.rosuda.rserve.RPipeline;
+import org.rosuda.rserve.server.EmbeddedRserve;
+import org.rosuda.rserve.server.Evaluator;
+
+/**
+ * complete client round trips through {@link RConnection} against a
+ * {@link EmbeddedRserve} on the loopback interface, i.e. everything but the
+ * work done by R: request encoding, socket I/O and response decoding.
+ * <code>x</code> always evaluates to the vector, any other command to
+ * <code>NULL</code>.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class EvalRoundTripBenchmark {
+
+  /**
+   * length of the numeric vector returned by <code>eval</code> and sent by
+   * <code>assign</code>
+   */
+  @Param({"1", "1000000"})
+  int size;
+
+  EmbeddedRserve server;
+  RConnection c;
+  RConnection streaming;
+  REXP vector;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Random r = new Random(42);
+    double[] d = new double[size];
+    for (int i = 0; i < size; i++) {
+      d[i] = r.nextGaussian();
+    }
+    vector = new REXPDouble(d);
+    server = new EmbeddedRserve();
+    server.respond("x", vector);
+    server.setEvaluator(new Evaluator() {
+      public REXP eval(String cmd, Map variables) throws REngineException {
+        return null;
+      }
+    });
+    c = new RConnection("127.0.0.1", server.getPort());
+    streaming = new RConnection("127.0.0.1", server.getPort());
+    streaming.setStreamingThreshold(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    c.close();
+    streaming.close();
+    server.close();
+  }
+
+  @Benchmark
+  public REXP eval() throws Exception {
+    return c.eval("x");
+  }
+
+  @Benchmark
+  public REXP evalStreamed() throws Exception {
+    return streaming.eval("x");
+  }
+
+  @Benchmark
+  public void assign() throws Exception {
+    c.assign("x", vector);
+  }
+
+  /**
+   * ten small commands sent back-to-back through a pipeline
+   */
+  @Benchmark
+  public void pipelinedVoidEval() throws Exception {
+    RPipeline p = c.pipeline();
+    for (int i = 0; i < 10; i++) {
+      p.voidEval("y <- " + i);
+    }
+    p.sync();
+  }
+}
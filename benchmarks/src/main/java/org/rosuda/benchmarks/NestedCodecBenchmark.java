@@ -0,0 +1,112 @@
+package org.rosuda.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.RList;
+import org.rosuda.rserve.protocol.REXPEncoder;
+import org.rosuda.rserve.protocol.REXPFactory;
+
+/**
+ * encoding and decoding of nested lists as returned by typical model fitting
+ * functions: a named list of fits, each holding coefficients, residuals,
+ * factors and character vectors. <code>decodeLazyOneField</code> fetches a
+ * single field from the lazily decoded result, which is the common case of
+ * reading a couple of values out of a big object.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class NestedCodecBenchmark {
+
+  /**
+   * number of fits in the list
+   */
+  @Param({"200"})
+  int fits;
+
+  /**
+   * number of observations per fit
+   */
+  @Param({"1000"})
+  int obs;
+
+  REXP payload;
+  byte[] encoded;
+  byte[] target;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    Random r = new Random(42);
+    String[] groups = new String[]{"control", "treatment A", "treatment B", "placebo"};
+    RList l = new RList();
+    for (int k = 0; k < fits; k++) {
+      double[] res = new double[obs];
+      int[] grp = new int[obs];
+      String[] ids = new String[obs];
+      for (int i = 0; i < obs; i++) {
+        res[i] = r.nextGaussian();
+        grp[i] = 1 + r.nextInt(groups.length);
+        ids[i] = "subject" + r.nextInt(100000);
+      }
+      RList fit = new RList();
+      fit.put("coefficients", new REXPDouble(new double[]{r.nextDouble(), r.nextDouble(), r.nextDouble()}));
+      fit.put("residuals", new REXPDouble(res));
+      fit.put("group", new REXPFactor(grp, groups));
+      fit.put("id", new REXPString(ids));
+      fit.put("df.residual", new REXPInteger(obs - 3));
+      l.put("fit" + k, new REXPGenericVector(fit));
+    }
+    payload = new REXPGenericVector(l);
+    encoded = new REXPEncoder(payload).encode();
+    target = new byte[encoded.length];
+  }
+
+  @Benchmark
+  public REXP decode() throws Exception {
+    REXPFactory f = new REXPFactory();
+    f.parseREXP(encoded, 0);
+    return f.getREXP();
+  }
+
+  @Benchmark
+  public REXP decodeLazyOneField() throws Exception {
+    REXPFactory f = new REXPFactory();
+    f.setLazyDecoding(true);
+    f.parseREXP(encoded, 0);
+    return f.getREXP().asList().at("fit" + (fits / 2)).asList().at("coefficients");
+  }
+
+  @Benchmark
+  public int encodeFactory() throws Exception {
+    return new REXPFactory(payload).getBinaryRepresentation(target, 0);
+  }
+
+  @Benchmark
+  public int encodeEncoder() throws Exception {
+    return new REXPEncoder(payload).encode(target, 0);
+  }
+}
@@ -0,0 +1,103 @@
+package org.rosuda.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.RFactor;
+import org.rosuda.rengine.RList;
+import org.rosuda.rengine.UnsynchronizedRList;
+
+/**
+ * lookups by key in named lists ({@link RList} and
+ * {@link UnsynchronizedRList}) and construction of factors from string
+ * arrays with few distinct values.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RListBenchmark {
+
+  /**
+   * number of elements of the lists
+   */
+  @Param({"10", "1000"})
+  int size;
+
+  /**
+   * number of strings to factorize
+   */
+  @Param({"1000000"})
+  int strings;
+
+  RList list;
+  RList unsynchronized;
+  String[] keys;
+  String[] values;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random r = new Random(42);
+    list = new RList();
+    unsynchronized = new UnsynchronizedRList();
+    keys = new String[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = "column" + i;
+      REXP x = new REXPDouble(i);
+      list.put(keys[i], x);
+      unsynchronized.put(keys[i], x);
+    }
+    for (int i = 0; i < size; i++) { // make sure the keys are not the same instances as the names
+      keys[i] = new String(keys[i]);
+    }
+    values = new String[strings];
+    for (int i = 0; i < strings; i++) {
+      values[i] = "category" + r.nextInt(50);
+    }
+  }
+
+  @Benchmark
+  public void lookupAll(Blackhole bh) {
+    for (int i = 0; i < keys.length; i++) {
+      bh.consume(list.at(keys[i]));
+    }
+  }
+
+  @Benchmark
+  public void lookupAllUnsynchronized(Blackhole bh) {
+    for (int i = 0; i < keys.length; i++) {
+      bh.consume(unsynchronized.at(keys[i]));
+    }
+  }
+
+  @Benchmark
+  public void iterate(Blackhole bh) {
+    for (int i = 0; i < list.size(); i++) {
+      bh.consume(list.at(i));
+    }
+  }
+
+  @Benchmark
+  public RFactor factorize() {
+    return new RFactor(values);
+  }
+}